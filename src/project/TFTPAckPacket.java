@@ -1,9 +1,8 @@
 package project;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -41,15 +40,15 @@ public class TFTPAckPacket extends TFTPPacket {
 	}
 
 	/**
-	 * Convert the block number into byte array of length 2
+	 * Reuse the packet to acknowledge another block of the same transfer, so
+	 * that a receiver sends every ack packet with the same packet
 	 * 
-	 * @return byteArray
+	 * @param blockNumber
 	 */
-	private byte[] blockNumber() {
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-		stream.write(blockNumber >> 8);
-		stream.write(blockNumber);
-		return stream.toByteArray();
+	void setBlockNumber(int blockNumber) {
+		if (!validBlockNumber(blockNumber))
+			throw new IllegalArgumentException("Invalid block number");
+		this.blockNumber = blockNumber;
 	}
 
 	/**
@@ -110,17 +109,44 @@ public class TFTPAckPacket extends TFTPPacket {
 	}
 
 	/**
-	 * Generate the byte array that contains all information
+	 * Write the packet into the buffer
+	 * 
+	 * @param buffer
+	 */
+	@Override
+	public void encodeTo(ByteBuffer buffer) {
+		DEFAULT_TYPE.encodeTo(buffer);
+		encodeShort(buffer, blockNumber);
+	}
+
+	/**
+	 * Getter the pre-encoded ack frames, shared by all ack packets
+	 * 
+	 * @return frame
+	 */
+	@Override
+	public byte[] getFrame() {
+		return TFTPFrameCache.getAckFrames();
+	}
+
+	/**
+	 * Getter the offset of the ack frame of this block number
+	 * 
+	 * @return frameOffset
+	 */
+	@Override
+	public int getFrameOffset() {
+		return TFTPFrameCache.getAckFrameOffset(blockNumber);
+	}
+
+	/**
+	 * Getter the number of bytes written by encodeTo
 	 * 
-	 * @return byteArray
-	 * @throws IOException
+	 * @return encodedLength
 	 */
 	@Override
-	protected byte[] getData() throws IOException {
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-		stream.write(DEFAULT_TYPE.OPCODE());
-		stream.write(blockNumber());
-		return stream.toByteArray();
+	public int getEncodedLength() {
+		return PACKET_LENGTH;
 	}
 	
 	/**
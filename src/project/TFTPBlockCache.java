@@ -0,0 +1,307 @@
+package project;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Cache of the blocks of the files sent by the server, shared by all
+ * transfers. Servers often send the same few files(i.e. boot images) to
+ * many clients, with the cache those transfers send the blocks from memory
+ * instead of reading the file again.
+ * 
+ * The blocks are stored in slots of a few large direct buffers(slabs, off
+ * the heap) that are allocated once and never freed, so the budget limits
+ * the native memory of the cache and caching a block allocates nothing.
+ * Each slab is cut into slots of one size, the block size of the transfer
+ * rounded up to SLOT_ALIGNMENT. When no slot is free, the least recently used blocks are
+ * evicted until a slot of the size, or a whole slab, is free. Since a slot
+ * is reused for another block once it has been evicted, the blocks are
+ * copied out of the cache while it is locked.
+ * 
+ * A block is identified by the file(its path and the key of the file on the
+ * disk), the modification time and length of the file, the block size and
+ * the block number, so a file that has changed or been replaced never hits
+ * the blocks of the old file. The blocks of the old file are dropped the
+ * first time the changed file is read.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPBlockCache {
+	public static final int SLAB_SIZE = 1024 * 1024; // size of each slab in bytes
+	public static final int SLOT_ALIGNMENT = 512; // slot sizes are multiples of this number of bytes
+	private int slabSize; // size of each slab, the budget if it is smaller than SLAB_SIZE
+	private int maxSlabs; // largest number of slabs, the budget in slabs
+	private List<Slab> slabs; // slabs that have been allocated
+	private long size; // number of bytes of file data in the cache
+	private LinkedHashMap<Key, Block> blocks; // cached blocks in least recently used order
+	private Map<String, Key> versions; // path of each cached file to a key of its current version
+	private long numHits; // number of blocks found in the cache
+	private long numMisses; // number of blocks read from the file
+	private long numEvictions; // number of blocks evicted to make room for other blocks
+
+	/**
+	 * Identity of a cached block
+	 */
+	static class Key {
+		private final String path; // canonical path of the file
+		private final Object fileKey; // key of the file on the disk, null if the file system has none
+		private final long lastModified; // modification time of the file
+		private final long length; // length of the file
+		private final int blockSize; // block size of the transfer
+		private final long block; // logical block number
+
+		/**
+		 * Constructor
+		 * 
+		 * @param path
+		 * @param fileKey
+		 * @param lastModified
+		 * @param length
+		 * @param blockSize
+		 * @param block
+		 */
+		Key(String path, Object fileKey, long lastModified, long length, int blockSize, long block) {
+			this.path = path;
+			this.fileKey = fileKey;
+			this.lastModified = lastModified;
+			this.length = length;
+			this.blockSize = blockSize;
+			this.block = block;
+		}
+
+		/**
+		 * Check if the key belongs to the same version of the same file
+		 * 
+		 * @param other
+		 * @return true if the file is the same, false otherwise
+		 */
+		boolean isSameFile(Key other) {
+			return path.equals(other.path) && Objects.equals(fileKey, other.fileKey)
+					&& lastModified == other.lastModified && length == other.length;
+		}
+
+		/**
+		 * Override equals method
+		 */
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key other = (Key) o;
+			return block == other.block && blockSize == other.blockSize && isSameFile(other);
+		}
+
+		/**
+		 * Override hashCode method
+		 */
+		@Override
+		public int hashCode() {
+			return (path.hashCode() * 31 + Long.hashCode(lastModified)) * 31 + blockSize * 31 + Long.hashCode(block);
+		}
+	}
+
+	/**
+	 * Direct buffer that is cut into slots of one size
+	 */
+	static class Slab {
+		private ByteBuffer memory; // direct memory of the slab
+		private int slotSize; // size of each slot, 0 until the slab is cut
+		private ArrayDeque<ByteBuffer> freeSlots; // slots that hold no block
+		private int numUsed; // number of slots that hold a block
+
+		/**
+		 * Constructor, allocates the memory of the slab
+		 * 
+		 * @param slabSize
+		 */
+		Slab(int slabSize) {
+			this.memory = ByteBuffer.allocateDirect(slabSize);
+			this.freeSlots = new ArrayDeque<>();
+		}
+
+		/**
+		 * Cut the empty slab into slots of the given size
+		 * 
+		 * @param slotSize
+		 */
+		void cut(int slotSize) {
+			this.slotSize = slotSize;
+			freeSlots.clear();
+			for (int offset = 0; offset + slotSize <= memory.capacity(); offset += slotSize) {
+				ByteBuffer slot = memory.duplicate();
+				slot.position(offset).limit(offset + slotSize);
+				freeSlots.add(slot.slice());
+			}
+		}
+	}
+
+	/**
+	 * Cached block, stored in a slot of a slab
+	 */
+	static class Block {
+		private Slab slab; // slab of the slot
+		private ByteBuffer slot; // slot that holds the file data
+		private int length; // number of bytes of file data
+
+		/**
+		 * Constructor
+		 * 
+		 * @param slab
+		 * @param slot
+		 * @param length
+		 */
+		Block(Slab slab, ByteBuffer slot, int length) {
+			this.slab = slab;
+			this.slot = slot;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param budget - largest number of bytes of memory of the cache
+	 */
+	TFTPBlockCache(long budget) {
+		this.slabSize = (int) Math.min(SLAB_SIZE, budget);
+		this.maxSlabs = (int) (budget / slabSize);
+		this.slabs = new ArrayList<>();
+		this.blocks = new LinkedHashMap<>(16, 0.75f, true);
+		this.versions = new HashMap<>();
+	}
+
+	/**
+	 * Copy the cached block into the buffer
+	 * 
+	 * @param key
+	 * @param buffer - receives the file data between the position and the limit
+	 * @return true if the block is cached, false otherwise
+	 */
+	public synchronized boolean get(Key key, ByteBuffer buffer) {
+		Block block = blocks.get(key);
+		if (block == null) {
+			++numMisses;
+			return false;
+		}
+		++numHits;
+		ByteBuffer fileData = block.slot.duplicate();
+		fileData.clear();
+		fileData.limit(block.length);
+		buffer.clear();
+		buffer.put(fileData);
+		buffer.flip();
+		return true;
+	}
+
+	/**
+	 * Add a block that has been read from the file, the file data is copied
+	 * into a free slot. Blocks larger than a slab are not cached.
+	 * 
+	 * @param key
+	 * @param fileData - file data between the position and the limit, not modified
+	 */
+	public synchronized void put(Key key, ByteBuffer fileData) {
+		int length = fileData.remaining();
+		// the last block of a file is shorter, it takes a slot of its block size all the same
+		int blockSize = Math.max(key.blockSize, length);
+		int slotSize = Math.max(SLOT_ALIGNMENT, (blockSize + SLOT_ALIGNMENT - 1) / SLOT_ALIGNMENT * SLOT_ALIGNMENT);
+		if (slotSize > slabSize || blocks.containsKey(key)) // another transfer has read the same block
+			return;
+		invalidateOldVersion(key);
+		Slab slab = findSlab(slotSize);
+		while (slab == null) { // evict the least recently used blocks until a slot is free
+			if (blocks.isEmpty())
+				return;
+			Iterator<Map.Entry<Key, Block>> it = blocks.entrySet().iterator();
+			Block eldest = it.next().getValue();
+			it.remove();
+			release(eldest);
+			++numEvictions;
+			slab = findSlab(slotSize);
+		}
+		ByteBuffer slot = slab.freeSlots.poll();
+		++slab.numUsed;
+		slot.clear();
+		slot.put(fileData.duplicate());
+		blocks.put(key, new Block(slab, slot, length));
+		size += length;
+	}
+
+	/**
+	 * Find a slab with a free slot of the size, an empty slab is cut into
+	 * slots of the size, and a new slab is allocated while the budget allows
+	 * 
+	 * @param slotSize
+	 * @return slab, or null if a block has to be evicted first
+	 */
+	private Slab findSlab(int slotSize) {
+		Slab empty = null;
+		for (Slab slab : slabs) {
+			if (slab.slotSize == slotSize && !slab.freeSlots.isEmpty())
+				return slab;
+			if (slab.numUsed == 0 && empty == null)
+				empty = slab;
+		}
+		if (empty == null && slabs.size() < maxSlabs) {
+			empty = new Slab(slabSize);
+			slabs.add(empty);
+		}
+		if (empty != null)
+			empty.cut(slotSize);
+		return empty;
+	}
+
+	/**
+	 * Return the slot of a block that has been removed from the cache
+	 * 
+	 * @param block
+	 */
+	private void release(Block block) {
+		block.slab.freeSlots.add(block.slot);
+		--block.slab.numUsed;
+		size -= block.length;
+	}
+
+	/**
+	 * Drop the blocks of the file if they belong to another version of the file
+	 * 
+	 * @param key
+	 */
+	private void invalidateOldVersion(Key key) {
+		Key current = versions.get(key.path);
+		if (current != null && current.isSameFile(key))
+			return;
+		versions.put(key.path, key);
+		if (current == null)
+			return;
+		Iterator<Map.Entry<Key, Block>> it = blocks.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<Key, Block> entry = it.next();
+			if (entry.getKey().path.equals(key.path) && !entry.getKey().isSameFile(key)) {
+				release(entry.getValue());
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * toString method, used for printing
+	 */
+	@Override
+	public synchronized String toString() {
+		long lookups = numHits + numMisses;
+		return "Block cache: " + blocks.size() + " blocks, " + size / 1024 + "KB in " + slabs.size() + " of "
+				+ maxSlabs + " slabs of " + slabSize / 1024 + "KB\n"
+				+ "Block cache lookups: " + numHits + " hits, " + numMisses + " misses"
+				+ (lookups == 0 ? "" : String.format(" (%.1f%% hit rate)", 100.0 * numHits / lookups))
+				+ ", " + numEvictions + " evictions\n";
+	}
+}
@@ -0,0 +1,51 @@
+package project;
+
+/**
+ * Block numbers in the packets are 16 bits, so they roll over after 65535,
+ * to 0 by default or to 1 when the rollover option is negotiated. The sender
+ * and the receiver count blocks with a 64 bit logical block number that
+ * never rolls over, these methods convert between the two.
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPBlockNumber {
+	// largest window that can be told apart from the blocks before it after rollover
+	public static final int MAX_WINDOW_SIZE = (TFTPPacket.MAX_BLOCK_NUMBER + 1) / 2 - 1;
+
+	/**
+	 * Constructor, no instance is needed
+	 */
+	private TFTPBlockNumber() {
+	}
+
+	/**
+	 * Convert the logical block number into the block number of the packet
+	 * 
+	 * @param blockNumber - logical block number
+	 * @param rollover - block number that follows 65535(0 or 1)
+	 * @return block number of the packet
+	 */
+	public static int toPacketBlockNumber(long blockNumber, int rollover) {
+		if (blockNumber < rollover) // block 0 only exists before the first rollover
+			return (int) blockNumber;
+		return (int) ((blockNumber - rollover) % (TFTPPacket.MAX_BLOCK_NUMBER + 1 - rollover)) + rollover;
+	}
+
+	/**
+	 * Convert the block number of a received packet into the logical block
+	 * number that is closest to the given logical block number
+	 * 
+	 * @param blockNumber - block number of the packet
+	 * @param reference - logical block number the packet is expected to be close to
+	 * @param rollover - block number that follows 65535(0 or 1)
+	 * @return logical block number
+	 */
+	public static long toLogicalBlockNumber(int blockNumber, long reference, int rollover) {
+		int period = TFTPPacket.MAX_BLOCK_NUMBER + 1 - rollover;
+		int distance = Math.floorMod(blockNumber - toPacketBlockNumber(reference, rollover), period);
+		if (distance > period / 2) // the packet is before the reference
+			distance -= period;
+		return reference + distance;
+	}
+}
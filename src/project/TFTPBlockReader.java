@@ -0,0 +1,26 @@
+package project;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reader of the blocks of a file that is being sent. The blocks are read by
+ * block number, so that a block that has to be sent again is read again
+ * instead of being kept by the sender.
+ * 
+ * @author yunkai wang
+ *
+ */
+public interface TFTPBlockReader extends Closeable {
+	/**
+	 * Read the file data of the given block
+	 * 
+	 * @param block - logical block number, starting at 1
+	 * @return buffer that holds the file data between its position and limit,
+	 *         less than the block size only at the end of the file. The buffer
+	 *         is only valid until the next block is read.
+	 * @throws IOException
+	 */
+	ByteBuffer readBlock(long block) throws IOException;
+}
@@ -0,0 +1,64 @@
+package project;
+
+/**
+ * Block size option(RFC 2348), the number of bytes of file data in each
+ * data packet. The server may answer with a smaller block size than the
+ * one requested, limited by the maximum block size of the server.
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPBlockSizeOption extends TFTPOption {
+	public static final String NAME = "blksize"; // option name
+
+	/**
+	 * Constructor
+	 */
+	TFTPBlockSizeOption() {
+		super(NAME);
+	}
+
+	/**
+	 * Check if the block size is in the valid range
+	 * 
+	 * @param blockSize
+	 * @return true if the block size is valid, false otherwise
+	 */
+	private static boolean validBlockSize(int blockSize) {
+		return blockSize >= TFTPDataPacket.MIN_BLOCK_SIZE && blockSize <= TFTPDataPacket.MAX_BLOCK_SIZE;
+	}
+
+	/**
+	 * The block size must be between 8 and 65464
+	 */
+	@Override
+	public void checkRequestedValue(String value) {
+		if (!validBlockSize(parseInt(value)))
+			throw new IllegalArgumentException("Block size must be between " + TFTPDataPacket.MIN_BLOCK_SIZE
+					+ " and " + TFTPDataPacket.MAX_BLOCK_SIZE);
+	}
+
+	/**
+	 * Use the requested block size, but no more than the maximum block size of the server
+	 */
+	@Override
+	public String negotiate(String value, TFTPTransferOptions options) {
+		int blockSize = parseInt(value);
+		if (blockSize < TFTPDataPacket.MIN_BLOCK_SIZE)
+			throw new IllegalArgumentException("Block size " + blockSize + " is too small");
+		blockSize = Math.min(blockSize, options.getConfig().getMaxBlockSize());
+		options.setBlockSize(blockSize);
+		return String.valueOf(blockSize);
+	}
+
+	/**
+	 * The server may only acknowledge a block size that is not larger than the requested one
+	 */
+	@Override
+	public void accept(String requestedValue, String value, TFTPTransferOptions options) {
+		int blockSize = parseInt(value);
+		if (!validBlockSize(blockSize) || blockSize > parseInt(requestedValue))
+			throw new IllegalArgumentException("Server has acknowledged invalid block size " + value);
+		options.setBlockSize(blockSize);
+	}
+}
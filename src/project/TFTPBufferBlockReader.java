@@ -0,0 +1,49 @@
+package project;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Block reader that reads the blocks as slices of a buffer that holds the
+ * whole file(i.e. a file of the memory storage), the file data is never
+ * copied.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPBufferBlockReader implements TFTPBlockReader {
+	private ByteBuffer view; // view of the file with its own position and limit
+	private int blockSize; // number of bytes in each block
+
+	/**
+	 * Constructor
+	 * 
+	 * @param data - whole file between 0 and the capacity, not modified
+	 * @param blockSize
+	 */
+	TFTPBufferBlockReader(ByteBuffer data, int blockSize) {
+		this.view = data.duplicate();
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Read the file data of the given block
+	 * 
+	 * @param block
+	 * @return view of the file, positioned on the block and valid until the
+	 *         next block is read
+	 */
+	@Override
+	public ByteBuffer readBlock(long block) {
+		long start = Math.min((block - 1) * blockSize, view.capacity());
+		view.clear();
+		view.limit((int) Math.min(start + blockSize, view.capacity()));
+		view.position((int) start);
+		return view;
+	}
+
+	/**
+	 * Nothing to release, the buffer belongs to the storage
+	 */
+	@Override
+	public void close() { }
+}
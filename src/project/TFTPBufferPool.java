@@ -0,0 +1,392 @@
+package project;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of the buffers that transfers send and receive packets with. The
+ * buffers are leased when a transfer knows its block size and returned when
+ * it ends, so that the next transfer with a similar block size reuses them.
+ * The memory of all buffers(leased and idle) is limited by a budget, a lease
+ * that does not fit waits until other transfers have returned their buffers,
+ * which delays the new transfer instead of allocating without limit. The
+ * pool is locked with a ReentrantLock instead of a monitor, so that a
+ * virtual thread waiting for a buffer does not pin its carrier thread.
+ * 
+ * New transfers are admitted before their thread and socket are created:
+ * while the budget has no room for one more transfer, the start of the
+ * transfer is queued(once per client) and run by the transfer that returns
+ * the memory, so the request listener never waits. The buffers that a part
+ * of the server keeps while it runs(i.e. the buffers of
+ * the event loops) are reserved outside of the budget, they are kept until
+ * the server stops, so counting them would only shrink the budget of the
+ * transfers.
+ * 
+ * Buffers are handed out in size classes(powers of two), a buffer may be
+ * larger than the capacity that was asked for. Direct buffers are used where
+ * the packets are sent and received with a channel, heap buffers where they
+ * are sent and received with a datagram socket, which needs an array.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPBufferPool {
+	private static final int MIN_SIZE_CLASS = 1024; // smallest buffer handed out
+	private long budget; // largest number of bytes the pool may hold(leased and idle)
+	private long leasedBytes; // number of bytes currently leased
+	private long idleBytes; // number of bytes of the idle buffers
+	private long reservedBytes; // number of bytes reserved outside of the budget
+	private int numLeased; // number of buffers currently leased
+	private long numLeases; // number of leases, from the start of the server
+	private long numReused; // number of leases that reused an idle buffer
+	private long numDelayed; // number of leases that had to wait for memory
+	private int numAdmitting; // number of admitted transfers that have not leased their buffer yet
+	private long numQueued; // number of transfers whose start was queued until memory was returned
+	private LinkedHashMap<Object, Runnable> queuedStarts; // client of each queued transfer to its start
+	private ReentrantLock lock; // lock of the pool
+	private Condition returned; // signalled when a buffer has been returned
+	private Map<Integer, ArrayDeque<ByteBuffer>> idleHeapBuffers; // idle heap buffers by size class
+	private Map<Integer, ArrayDeque<ByteBuffer>> idleDirectBuffers; // idle direct buffers by size class
+
+	/**
+	 * Constructor
+	 * 
+	 * @param budget - largest number of bytes the pool may hold
+	 */
+	TFTPBufferPool(long budget) {
+		if (budget <= 0)
+			throw new IllegalArgumentException("Buffer budget must be positive");
+		this.budget = budget;
+		this.idleHeapBuffers = new HashMap<>();
+		this.idleDirectBuffers = new HashMap<>();
+		this.queuedStarts = new LinkedHashMap<>();
+		this.lock = new ReentrantLock();
+		this.returned = lock.newCondition();
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return budget
+	 */
+	public long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return leasedBytes
+	 */
+	public long getLeasedBytes() {
+		lock.lock();
+		try {
+			return leasedBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return idleBytes
+	 */
+	public long getIdleBytes() {
+		lock.lock();
+		try {
+			return idleBytes;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Get the size class of the buffers that fit the given capacity
+	 * 
+	 * @param capacity
+	 * @return sizeClass
+	 */
+	private static int getSizeClass(int capacity) {
+		if (capacity <= MIN_SIZE_CLASS)
+			return MIN_SIZE_CLASS;
+		return Integer.highestOneBit(capacity - 1) << 1;
+	}
+
+	/**
+	 * Lease a buffer with at least the given capacity, waits while the buffer
+	 * does not fit in the budget. A buffer larger than the whole budget is only
+	 * handed out when no other buffer is leased.
+	 * 
+	 * @param capacity
+	 * @param direct - true for a direct buffer, false for a heap buffer
+	 * @return buffer, cleared
+	 * @throws InterruptedException
+	 */
+	public ByteBuffer lease(int capacity, boolean direct) throws InterruptedException {
+		int size = getSizeClass(capacity);
+		boolean delayed = false;
+		ByteBuffer buffer;
+		lock.lock();
+		try {
+			while ((buffer = pollIdleBuffer(size, direct)) == null) {
+				if (leasedBytes == 0 || leasedBytes + size <= budget) {
+					buffer = allocate(size, direct);
+					break;
+				}
+				if (!delayed) {
+					++numDelayed;
+					delayed = true;
+				}
+				returned.await(); // wait until a buffer is returned
+			}
+			leased(size);
+		} finally {
+			lock.unlock();
+		}
+		return buffer;
+	}
+
+	/**
+	 * Start a new transfer if the budget has room for one more transfer,
+	 * otherwise queue its start until another transfer returns its memory.
+	 * Never waits. A client that sends its request again while the start is
+	 * queued is only started once. The admitted transfer must call
+	 * finishAdmission once it has leased its buffer or ended without one.
+	 * 
+	 * @param client - identifies the client of the transfer(i.e. its socket address)
+	 * @param start - starts the transfer(i.e. its thread)
+	 */
+	public void admit(Object client, Runnable start) {
+		lock.lock();
+		try {
+			if (!queuedStarts.isEmpty() || !hasRoom()) {
+				if (queuedStarts.putIfAbsent(client, start) == null)
+					++numQueued;
+				return;
+			}
+			++numAdmitting;
+		} finally {
+			lock.unlock();
+		}
+		start.run();
+	}
+
+	/**
+	 * An admitted transfer has leased its buffer, or ended without one, the
+	 * queued transfers that now fit are started
+	 */
+	public void finishAdmission() {
+		List<Runnable> starts;
+		lock.lock();
+		try {
+			--numAdmitting;
+			starts = pollQueuedStarts();
+		} finally {
+			lock.unlock();
+		}
+		for (Runnable start : starts)
+			start.run();
+	}
+
+	/**
+	 * Check if the budget has room for one more transfer, the admitted
+	 * transfers that have not leased their buffer yet count with the smallest
+	 * buffer
+	 * 
+	 * @return true if another transfer can be started, false otherwise
+	 */
+	private boolean hasRoom() {
+		if (leasedBytes == 0 && numAdmitting == 0)
+			return true;
+		return leasedBytes + (long) (numAdmitting + 1) * MIN_SIZE_CLASS <= budget;
+	}
+
+	/**
+	 * Take the queued starts of the transfers that fit in the budget, they
+	 * are run after the lock has been released
+	 * 
+	 * @return starts, in the order the requests arrived
+	 */
+	private List<Runnable> pollQueuedStarts() {
+		List<Runnable> starts = new ArrayList<>();
+		Iterator<Runnable> it = queuedStarts.values().iterator();
+		while (it.hasNext() && hasRoom()) {
+			starts.add(it.next());
+			it.remove();
+			++numAdmitting;
+		}
+		return starts;
+	}
+
+	/**
+	 * Reserve a buffer with at least the given capacity for a part of the
+	 * server that cannot run without it(i.e. the buffers of the event loops),
+	 * the buffer is allocated outside of the budget and never waits
+	 * 
+	 * @param capacity
+	 * @param direct - true for a direct buffer, false for a heap buffer
+	 * @return buffer, cleared
+	 */
+	public ByteBuffer reserve(int capacity, boolean direct) {
+		int size = getSizeClass(capacity);
+		lock.lock();
+		try {
+			reservedBytes += size;
+		} finally {
+			lock.unlock();
+		}
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+
+	/**
+	 * Give up a reserved buffer, the buffer must not be used after it has
+	 * been given up and its memory is freed by the garbage collector
+	 * 
+	 * @param buffer
+	 */
+	public void unreserve(ByteBuffer buffer) {
+		lock.lock();
+		try {
+			reservedBytes -= buffer.capacity();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Return a leased buffer to the pool, the buffer must not be used after it
+	 * has been returned. The queued transfers that now fit are started.
+	 * 
+	 * @param buffer
+	 */
+	public void release(ByteBuffer buffer) {
+		int size = buffer.capacity();
+		List<Runnable> starts;
+		lock.lock();
+		try {
+			leasedBytes -= size;
+			--numLeased;
+			// keep the buffer for the next lease if the pool still has room for it
+			if (leasedBytes + idleBytes + size <= budget) {
+				Map<Integer, ArrayDeque<ByteBuffer>> idleBuffers = getIdleBuffers(buffer.isDirect());
+				if (!idleBuffers.containsKey(size))
+					idleBuffers.put(size, new ArrayDeque<ByteBuffer>());
+				idleBuffers.get(size).push(buffer);
+				idleBytes += size;
+			}
+			returned.signalAll();
+			starts = pollQueuedStarts();
+		} finally {
+			lock.unlock();
+		}
+		for (Runnable start : starts)
+			start.run();
+	}
+
+	/**
+	 * Take an idle buffer of the given size class
+	 * 
+	 * @param size
+	 * @param direct
+	 * @return buffer, cleared, or null if there is no idle buffer of the size class
+	 */
+	private ByteBuffer pollIdleBuffer(int size, boolean direct) {
+		ArrayDeque<ByteBuffer> idleBuffers = getIdleBuffers(direct).get(size);
+		if (idleBuffers == null || idleBuffers.isEmpty())
+			return null;
+		ByteBuffer buffer = idleBuffers.pop();
+		idleBytes -= size;
+		++numReused;
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Allocate a new buffer of the given size class, idle buffers are dropped
+	 * if the new buffer does not fit in the budget otherwise
+	 * 
+	 * @param size
+	 * @param direct
+	 * @return buffer
+	 */
+	private ByteBuffer allocate(int size, boolean direct) {
+		freeIdleBuffers(size);
+		return direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+	}
+
+	/**
+	 * Record a lease of a buffer of the given size
+	 * 
+	 * @param size
+	 */
+	private void leased(int size) {
+		leasedBytes += size;
+		++numLeased;
+		++numLeases;
+	}
+
+	/**
+	 * Getter the idle heap or direct buffers
+	 * 
+	 * @param direct
+	 * @return idleBuffers
+	 */
+	private Map<Integer, ArrayDeque<ByteBuffer>> getIdleBuffers(boolean direct) {
+		return direct ? idleDirectBuffers : idleHeapBuffers;
+	}
+
+	/**
+	 * Drop idle buffers until a new buffer of the given size fits in the budget,
+	 * the memory of the dropped buffers is freed by the garbage collector
+	 * 
+	 * @param size
+	 */
+	private void freeIdleBuffers(int size) {
+		freeIdleBuffers(idleHeapBuffers, size);
+		freeIdleBuffers(idleDirectBuffers, size);
+	}
+
+	/**
+	 * Drop idle buffers from the given map until a new buffer of the given
+	 * size fits in the budget
+	 * 
+	 * @param idleBuffers
+	 * @param size
+	 */
+	private void freeIdleBuffers(Map<Integer, ArrayDeque<ByteBuffer>> idleBuffers, int size) {
+		Iterator<ArrayDeque<ByteBuffer>> it = idleBuffers.values().iterator();
+		while (it.hasNext() && leasedBytes + idleBytes + size > budget) {
+			ArrayDeque<ByteBuffer> buffers = it.next();
+			while (!buffers.isEmpty() && leasedBytes + idleBytes + size > budget)
+				idleBytes -= buffers.pop().capacity();
+			if (buffers.isEmpty())
+				it.remove();
+		}
+	}
+
+	/**
+	 * toString method, used for printing
+	 */
+	@Override
+	public String toString() {
+		lock.lock();
+		try {
+			return "Buffer pool: " + leasedBytes / 1024 + "KB leased in " + numLeased + " buffers, "
+					+ idleBytes / 1024 + "KB idle, budget " + budget / 1024 + "KB, "
+					+ reservedBytes / 1024 + "KB reserved outside of the budget\n"
+					+ "Buffer leases: " + numLeases + " (reused: " + numReused + ", delayed: " + numDelayed + ")\n"
+					+ "Transfer starts: " + numQueued + " queued for memory, " + queuedStarts.size() + " waiting\n";
+		} finally {
+			lock.unlock();
+		}
+	}
+}
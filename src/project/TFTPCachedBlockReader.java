@@ -0,0 +1,88 @@
+package project;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Objects;
+
+/**
+ * Block reader that looks for each block in the block cache of the server
+ * before it reads the file, the blocks read from the file are added to the
+ * cache. The file is opened when the transfer starts, together with its
+ * file key, modification time and length that the blocks are cached under,
+ * so the blocks read from the file always belong to the version in their
+ * key. A transfer of a file that is completely cached reads no blocks from
+ * the disk, the cached blocks are copied into a buffer of the reader.
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPCachedBlockReader implements TFTPBlockReader {
+	private TFTPBlockCache cache; // cache shared by all transfers
+	private String path; // canonical path of the file
+	private Object fileKey; // key of the file on the disk when the transfer started, null if there is none
+	private long lastModified; // modification time of the file when the transfer started
+	private long length; // length of the file when the transfer started
+	private int blockSize; // number of bytes in each block
+	private TFTPBlockReader reader; // reader of the file
+	private boolean cached; // false if the file has changed while it was opened, the blocks are then not cached
+	private ByteBuffer buffer; // buffer the cached blocks are copied into
+
+	/**
+	 * Constructor
+	 * 
+	 * @param cache
+	 * @param mappedFiles
+	 * @param file
+	 * @param blockSize
+	 * @throws IOException
+	 */
+	TFTPCachedBlockReader(TFTPBlockCache cache, TFTPMappedFiles mappedFiles, File file, int blockSize)
+			throws IOException {
+		this.cache = cache;
+		this.path = file.getCanonicalPath();
+		BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		this.fileKey = attributes.fileKey();
+		this.lastModified = attributes.lastModifiedTime().toMillis();
+		this.length = attributes.size();
+		this.blockSize = blockSize;
+		this.reader = mappedFiles.openReader(file, blockSize);
+		// a file replaced while it was opened cannot be told apart from the version in the key
+		attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		this.cached = Objects.equals(attributes.fileKey(), fileKey)
+				&& attributes.lastModifiedTime().toMillis() == lastModified && attributes.size() == length;
+		this.buffer = ByteBuffer.allocate(blockSize);
+	}
+
+	/**
+	 * Read the file data of the given block from the cache, or from the file
+	 * if it is not cached
+	 * 
+	 * @param block
+	 * @return buffer, valid until the next block is read
+	 * @throws IOException
+	 */
+	@Override
+	public ByteBuffer readBlock(long block) throws IOException {
+		if (!cached)
+			return reader.readBlock(block);
+		TFTPBlockCache.Key key = new TFTPBlockCache.Key(path, fileKey, lastModified, length, blockSize, block);
+		if (cache.get(key, buffer))
+			return buffer;
+		ByteBuffer fileData = reader.readBlock(block);
+		cache.put(key, fileData);
+		return fileData;
+	}
+
+	/**
+	 * Close the file
+	 * 
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		reader.close();
+	}
+}
@@ -0,0 +1,62 @@
+package project;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+
+/**
+ * Session that an event loop of the nio engine drives, i.e. a unicast
+ * transfer or a multicast session. All methods are only called on the
+ * thread of the event loop.
+ * 
+ * @author yunkai wang
+ * 
+ */
+interface TFTPChannelSession {
+	/**
+	 * Register the channel of the session with the event loop
+	 * 
+	 * @param eventLoop
+	 * @param selector
+	 */
+	void open(TFTPEventLoop eventLoop, Selector selector);
+
+	/**
+	 * Receive all packets that are waiting in the channel
+	 * 
+	 * @param buffer - buffer shared by all sessions of the event loop
+	 */
+	void handleReadable(ByteBuffer buffer);
+
+	/**
+	 * Check if the packet the session is waiting for has timed out
+	 * 
+	 * @param now - current System.nanoTime
+	 */
+	void checkTimeout(long now);
+
+	/**
+	 * Resume the session after another thread has woken it up
+	 */
+	void resume();
+
+	/**
+	 * Getter
+	 * 
+	 * @return time(System.nanoTime) at which the session times out
+	 */
+	long getDeadline();
+
+	/**
+	 * Check if the session has finished
+	 * 
+	 * @return true if the session has finished, false otherwise
+	 */
+	boolean isClosed();
+
+	/**
+	 * Abort the session, print the reason and close it
+	 * 
+	 * @param errorMsg - null if an IOException happened
+	 */
+	void fail(String errorMsg);
+}
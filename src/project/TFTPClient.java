@@ -3,15 +3,21 @@ package project;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
-import java.util.Arrays;
+import java.util.BitSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 
 /**
  * TFTPClient
@@ -37,6 +43,14 @@ public class TFTPClient extends TFTPHost {
 	private int serverPort; // server port
 	private int serverResponsePort; // server response port
 	private TFTPPacket lastPacket; // last packet sent
+	private Map<String, String> requestedOptions; // options requested with every transfer(RFC 2347)
+	private TFTPTransferOptions transferOptions; // options negotiated for the current transfer
+	private boolean optionAckExpected; // true until the first response of a request with options
+	private Map<String, String> sentOptions; // options sent in the current request
+	private TFTPRetransmissionTimer timer; // retransmission timer of the current transfer
+	private TFTPSendBuffer sendBuffer; // buffer that every packet sent is encoded into
+	private TFTPPacketView receiveView; // view that every packet received from the server is decoded in
+	private boolean sparse; // true if blocks of zeros in downloaded files are skipped instead of written
 	
 	
 	/**
@@ -51,6 +65,10 @@ public class TFTPClient extends TFTPHost {
 		this.serverAddress = InetAddress.getLocalHost(); // default server address is localhost
 		this.serverPort = TFTPServer.TFTP_LISTEN_PORT; // default server port is 69
 		this.serverResponsePort = -1;
+		this.requestedOptions = new LinkedHashMap<>();
+		this.sendBuffer = new TFTPSendBuffer();
+		this.receiveView = new TFTPPacketView();
+		this.sparse = true; // downloaded files are written as sparse files by default
 		this.socket = new DatagramSocket();
 		this.socket.setSoTimeout(TFTPPacket.TIMEOUT);
 	}
@@ -99,6 +117,11 @@ public class TFTPClient extends TFTPHost {
 		  "  touch <fn> <size>- create a new file for testing with the given file name and the given size(i.e. touch random.txt 512)\n" +
 		  "  read <filename>  - send RRQ(i.e. read text.txt)\n" + 
 		  "  write <filename> - send WRQ(i.e. write text.txt)\n" +
+		  "  options          - show the options requested with every transfer\n" +
+		  "  option <name> <value> - request the option with the given value(i.e. option blksize 1428)\n" +
+		  "  option <name> off     - stop requesting the option\n" +
+		  "  option <name>         - request the option without a value(i.e. option multicast)\n" +
+		  "  sparse           - switch sparse mode, blocks of zeros in downloaded files are skipped\n" +
 		  "  ip               - print current server ip and port\n" +
           "  connect <ip>        - change server ip to the given address\n" +
 		  "  connect <ip>:<port> - change server ip and port to the given address and port\n");
@@ -153,6 +176,19 @@ public class TFTPClient extends TFTPHost {
 			case "connect":
 				setServerIP(commands[1]);
 				continue;
+			case "options": // print requested options
+				printOptions();
+				continue;
+			case "option": // request an option
+				if (commands.length != 2 && commands.length != 3)
+					print("Please enter a valid option name and value(e.g. option blksize 1428)\n");
+				else
+					setOption(commands[1], commands.length == 3 ? commands[2] : "");
+				continue;
+			case "sparse": // switch sparse mode
+				sparse = !sparse;
+				print("Sparse mode is " + (sparse ? "on" : "off") + "\n");
+				continue;
 			case "rm": // print list of files
 				removeFile(commands[1]);
 				continue;
@@ -203,6 +239,39 @@ public class TFTPClient extends TFTPHost {
 		}
 	}
 
+	/**
+	 * Print the options requested with every transfer
+	 */
+	private void printOptions() {
+		print("Requested options: " + requestedOptions);
+		print("Supported options: " + TFTPOptionRegistry.getOptionNames() + "\n");
+	}
+
+	/**
+	 * Request the option with the given value for all following transfers,
+	 * the option is no longer requested if the value is off
+	 * 
+	 * @param name
+	 * @param value
+	 */
+	private void setOption(String name, String value) {
+		TFTPOption option = TFTPOptionRegistry.getOption(name);
+		if (option == null) {
+			print("Unknown option " + name + ". Please try again.\n");
+			return;
+		}
+		if (value.equalsIgnoreCase("off")) {
+			requestedOptions.remove(option.getName());
+			return;
+		}
+		try {
+			option.checkRequestedValue(value);
+			requestedOptions.put(option.getName(), value);
+		} catch (IllegalArgumentException e) {
+			print(e.getMessage() + ". Please try again.\n");
+		}
+	}
+
 	/**
 	 * Print current server ip address
 	 */
@@ -250,20 +319,22 @@ public class TFTPClient extends TFTPHost {
 	private void sendPacket(TFTPPacket packet, boolean recordForResend) throws IOException {
 		if (recordForResend)
 			lastPacket = packet;
-		socket.send(packet.createDatagramPacket());
+		socket.send(sendBuffer.toDatagramPacket(packet));
 	}
 	
 	/**
-	 * Receive datagram packet
+	 * Receive a packet into the receive view, the view is only valid until
+	 * the next packet is received
 	 * 
-	 * @return datagramPacket
+	 * @return receiveView
 	 * @throws IOException
 	 * @throws SocketTimeoutException
 	 */
-	private DatagramPacket receivePacket() throws IOException, SocketTimeoutException {
-		DatagramPacket packet = TFTPPacket.createDatagramPacketForReceive();
+	private TFTPPacketView receivePacket() throws IOException, SocketTimeoutException {
+		DatagramPacket packet = receiveView.prepareReceive(transferOptions.getBlockSize());
+		socket.setSoTimeout(timer.getTimeout());
 		socket.receive(packet);
-		return packet;
+		return receiveView;
 	}
 
 	/**
@@ -296,6 +367,53 @@ public class TFTPClient extends TFTPHost {
 		throw new TFTPErrorException(errorMsg); // abort the connection
 	}
 	
+	/**
+	 * Send option negotiation failed error packet
+	 * 
+	 * @param errorMsg
+	 * @throws IOException
+	 * @throws TFTPErrorException 
+	 */
+	private void sendOptionNegotiationFailed(String errorMsg, InetAddress address, int port) throws IOException, TFTPErrorException {
+		print("Client has sent option negotiation failed packet to server.");
+		TFTPErrorPacket errorPacket = TFTPErrorPacket.createOptionNegotiationFailed(errorMsg, address, port);
+		sendPacket(errorPacket);
+		throw new TFTPErrorException(errorMsg); // abort the connection
+	}
+	
+	/**
+	 * Accept the options acknowledged by the server in the option ack packet
+	 * 
+	 * @param OackPacket
+	 * @throws IOException
+	 * @throws TFTPErrorException 
+	 */
+	private void acceptOptionAck(TFTPOackPacket OackPacket) throws IOException, TFTPErrorException {
+		printInformation("Client have received the option ack packet.", OackPacket);
+		optionAckExpected = false;
+		try {
+			TFTPOptionRegistry.accept(sentOptions, OackPacket.getOptions(), transferOptions);
+			if (transferOptions.isTimeoutNegotiated()) // a negotiated timeout is used as it is
+				timer.setFixedTimeout(transferOptions.getTimeout());
+		} catch (IllegalArgumentException e) { // server acknowledged invalid options
+			sendOptionNegotiationFailed(e.getMessage(), serverAddress, serverResponsePort);
+		}
+	}
+	
+	/**
+	 * Create the options sent in a request, the requested transfer size is
+	 * replaced by the real one(0 for a RRQ, the file size for a WRQ)
+	 * 
+	 * @param transferSize
+	 * @return options
+	 */
+	private Map<String, String> createRequestOptions(long transferSize) {
+		Map<String, String> options = new LinkedHashMap<>(requestedOptions);
+		if (options.containsKey(TFTPTransferSizeOption.NAME))
+			options.put(TFTPTransferSizeOption.NAME, String.valueOf(transferSize));
+		return options;
+	}
+	
 	/**
 	 * Send unknown tid error packet
 	 * 
@@ -320,18 +438,16 @@ public class TFTPClient extends TFTPHost {
 	}
 	
 	/**
-	 * Receive an ack packet with the specified block number
+	 * Receive an ack packet with the specified block number, when the WRQ has
+	 * requested options, the option ack packet may replace ack packet 0
 	 * 
 	 * @param blockNumber
-	 * @return AckPacket
 	 * @throws IOException 
 	 * @throws TFTPErrorException 
 	 */
-	private TFTPAckPacket receiveAck(int blockNumber) throws IOException, TFTPErrorException {
+	private void receiveAck(int blockNumber) throws IOException, TFTPErrorException {
 		// create packets for receiving and validating the packet
-		DatagramPacket receivePacket = null;
-		TFTPPacket packet;
-		TFTPAckPacket AckPacket;
+		TFTPPacketView receivePacket = null;
 		int numRetry = 0; // record the number of times we have retried
 		while (true) {
 			try {
@@ -346,28 +462,40 @@ public class TFTPClient extends TFTPHost {
 					continue;
 				}
 					
-				packet = TFTPPacket.createFromPacket(receivePacket);
+				receivePacket.decode();
+
+				if (receivePacket.type() == Type.OACK && optionAckExpected) {
+					// the option ack packet acknowledges the WRQ instead of ack packet 0
+					timer.acknowledged();
+					acceptOptionAck((TFTPOackPacket) receivePacket.toPacket());
+					return;
+				}
+				optionAckExpected = false; // server has ignored the requested options
 
-				if (packet instanceof TFTPAckPacket) {
-					AckPacket = (TFTPAckPacket) packet;
+				if (receivePacket.type() == Type.ACK) {
+					int ackBlockNumber = receivePacket.getBlockNumber();
 					// received correct ack packet
-					if (AckPacket.getBlockNumber() == blockNumber)
-						return AckPacket;
-					else if (AckPacket.getBlockNumber() < blockNumber)
+					if (ackBlockNumber == blockNumber) {
+						printInformation("Client have received the ack packet.", receivePacket);
+						timer.acknowledged();
+						return;
+					}
+					else if (ackBlockNumber < blockNumber)
 						print("Client has received one old ack packet, will ignore it...");
-					else if (AckPacket.getBlockNumber() > blockNumber) { // received future ack packet, this is invalid
-						String errorMsg = "Client has received future ack packet with block number: " + AckPacket.getBlockNumber();
+					else if (ackBlockNumber > blockNumber) { // received future ack packet, this is invalid
+						String errorMsg = "Client has received future ack packet with block number: " + ackBlockNumber;
 						sendIllegalTFTPOperation(errorMsg, serverAddress, serverResponsePort);
 					}
-				} else if (packet instanceof TFTPErrorPacket)
-					throw new TFTPErrorException(((TFTPErrorPacket) packet).getErrorMsg());
+				} else if (receivePacket.type() == Type.ERROR)
+					throw new TFTPErrorException(receivePacket.getErrorMsg());
 				else
 					throw new TFTPErrorException("Unknown packet received.");
 			} catch (IllegalArgumentException e) {
 				sendIllegalTFTPOperation(e.getMessage(), serverAddress, serverResponsePort);
 			} catch (SocketTimeoutException e) {
-				if (numRetry >= TFTPPacket.MAX_RETRY)
+				if (timer.isConnectionLost(numRetry))
 					throw new TFTPErrorException("Connection lost.");
+				timer.timedOut(); // wait longer for the packet that is re-sent
 				resendPacket(); // last packet might be lost, re-send last packet
 				++numRetry;
 			}
@@ -375,18 +503,74 @@ public class TFTPClient extends TFTPHost {
 	}
 	
 	/**
-	 * Receive a data packet with the specified block number
+	 * Receive the ack packet for the data packets in the window, the window is
+	 * sent again if no ack packet arrives in time
 	 * 
-	 * @param blockNumber
-	 * @return AckPacket
+	 * @param window
 	 * @throws IOException 
 	 * @throws TFTPErrorException 
 	 */
-	private TFTPDataPacket receiveData(int blockNumber) throws IOException, TFTPErrorException {
+	private void receiveAck(TFTPSendWindow window) throws IOException, TFTPErrorException {
 		// create packets for receiving and validating the packet
-		DatagramPacket receivePacket = null;
-		TFTPPacket packet;
-		TFTPDataPacket DATAPacket;
+		TFTPPacketView receivePacket = null;
+		int numRetry = 0; // record the number of times we have retried
+		while (true) {
+			try {
+				receivePacket = receivePacket();
+				if (serverResponsePort != receivePacket.getPort() ||
+						!serverAddress.equals(receivePacket.getAddress())) {
+					String errorMsg = "This tid is invalid, please use the correct tid!";
+					sendUnknownTid(errorMsg, receivePacket.getAddress(), receivePacket.getPort());
+					continue;
+				}
+					
+				receivePacket.decode();
+
+				if (receivePacket.type() == Type.ACK) {
+					int ackBlockNumber = receivePacket.getBlockNumber();
+					if (window.isOldAck(ackBlockNumber))
+						print("Client has received one old ack packet, will ignore it...");
+					else if (window.isFutureAck(ackBlockNumber)) { // received future ack packet, this is invalid
+						String errorMsg = "Client has received future ack packet with block number: " + ackBlockNumber;
+						sendIllegalTFTPOperation(errorMsg, serverAddress, serverResponsePort);
+					} else { // received correct ack packet, move the window
+						printInformation("Client have received the ack packet.", receivePacket);
+						timer.acknowledged();
+						window.acknowledge(ackBlockNumber);
+						return;
+					}
+				} else if (receivePacket.type() == Type.ERROR)
+					throw new TFTPErrorException(receivePacket.getErrorMsg());
+				else
+					throw new TFTPErrorException("Unknown packet received.");
+			} catch (IllegalArgumentException e) {
+				sendIllegalTFTPOperation(e.getMessage(), serverAddress, serverResponsePort);
+			} catch (SocketTimeoutException e) {
+				if (timer.isConnectionLost(numRetry))
+					throw new TFTPErrorException("Connection lost.");
+				// data packets in the window might be lost, re-send the window
+				print("Last packet might be lost, sending last packet again...");
+				timer.timedOut(); // wait longer for the window that is re-sent
+				window.resend();
+				sendWindow(window);
+				++numRetry;
+			}
+		}
+	}
+	
+	/**
+	 * Receive the next data packet of the window, data packets out of order
+	 * are answered with the ack packet for the last block received in order
+	 * 
+	 * @param window
+	 * @return DATAPacket, valid until the next packet is received, or null if
+	 *         the server has made the client a member of a multicast group
+	 * @throws IOException 
+	 * @throws TFTPErrorException 
+	 */
+	private TFTPPacketView receiveData(TFTPReceiveWindow window) throws IOException, TFTPErrorException {
+		// create packets for receiving and validating the packet
+		TFTPPacketView receivePacket = null;
 		int numRetry = 0;
 		while (true) {
 			try {
@@ -402,39 +586,247 @@ public class TFTPClient extends TFTPHost {
 					continue;
 				}
 				
-				packet = TFTPPacket.createFromPacket(receivePacket);
-				// if received packet is not TFTPDataPacket, raise an exception
-				if (packet instanceof TFTPDataPacket) {
-					DATAPacket = (TFTPDataPacket) packet;
+				receivePacket.decode();
+
+				if (receivePacket.type() == Type.OACK && optionAckExpected) {
+					acceptOptionAck((TFTPOackPacket) receivePacket.toPacket());
+					// the file is received from the multicast group instead
+					if (transferOptions.isMulticast())
+						return null;
+					// acknowledge the option ack packet with ack packet 0, it
+					// is re-sent if data packet 1 is lost
+					TFTPAckPacket AckPacket = new TFTPAckPacket(0, serverAddress, serverResponsePort);
+					sendPacket(AckPacket, true);
+					printInformation("Client have sent the ack packet.", AckPacket);
+					numRetry = 0;
+					continue;
+				}
+				optionAckExpected = false; // server has ignored the requested options
+
+				// if received packet is not a data packet, raise an exception
+				if (receivePacket.type() == Type.DATA) {
+					int blockNumber = receivePacket.getBlockNumber();
+					// data packet must not be larger than the negotiated block size
+					if (receivePacket.getLength() > transferOptions.getBlockSize())
+						sendIllegalTFTPOperation("Data packet is larger than the block size " 
+								+ transferOptions.getBlockSize(), serverAddress, serverResponsePort);
 					// received correct data packet, continue transfer
-					if (DATAPacket.getBlockNumber() == blockNumber)
-						return DATAPacket;
-					// received old data packet, send the ack packet and
-					// wait for the correct data packet
-					else if (DATAPacket.getBlockNumber() < blockNumber) {
-						print("Client have received one old data packet, sending the ack packet");
-						sendPacket(new TFTPAckPacket(DATAPacket.getBlockNumber(), 
-								serverAddress, serverResponsePort));
-					} else if (DATAPacket.getBlockNumber() > blockNumber) { // received future data packet, this is invalid
-						String errorMsg = "Client has received future data packet with block number: " + DATAPacket.getBlockNumber();
+					if (window.isNext(blockNumber))
+						return receivePacket;
+					// received future data packet after the window, this is invalid
+					if (!window.isInWindow(blockNumber)) {
+						String errorMsg = "Client has received future data packet with block number: " + blockNumber;
 						sendIllegalTFTPOperation(errorMsg, serverAddress, serverResponsePort);
 					}
-				} else if (packet instanceof TFTPErrorPacket)
-					throw new TFTPErrorException(((TFTPErrorPacket) packet).getErrorMsg());
+					// received old data packet, or missed a data packet in
+					// the window, send the ack packet for the last block
+					// received in order and wait for the correct data packet
+					if (window.receiveOutOfOrder(blockNumber)) {
+						print("Client have received data packet " + blockNumber + " out of order, sending the ack packet");
+						sendAck(window);
+					} else
+						print("Client have received data packet " + blockNumber + " out of order, will ignore it...");
+				} else if (receivePacket.type() == Type.ERROR)
+					throw new TFTPErrorException(receivePacket.getErrorMsg());
 				else
 					throw new TFTPErrorException("Unknown packet received.");
 			} catch (IllegalArgumentException e) {
 				sendIllegalTFTPOperation(e.getMessage(), serverAddress, serverResponsePort);
 			} catch (SocketTimeoutException e) {
-				if (numRetry >= TFTPPacket.MAX_RETRY)
+				if (timer.isConnectionLost(numRetry))
 					throw new TFTPErrorException("Connection lost.");
-				if (blockNumber == 1) // request packet is lost
+				timer.timedOut();
+				if (window.getNextBlock() == 1) // request packet is lost
 					resendPacket();
 				++numRetry;
 			}
 		}
 	}
 	
+	/**
+	 * Send all data packets of the window that have not been sent yet
+	 * 
+	 * @param window
+	 * @throws IOException
+	 */
+	private void sendWindow(TFTPSendWindow window) throws IOException {
+		if (window.isResending())
+			timer.resent();
+		else
+			timer.start();
+		while (window.hasPacketToSend()) {
+			// form the data packet that will be sent to the server
+			TFTPDataPacket DATAPacket = window.nextPacket(serverAddress, serverResponsePort);
+			sendPacket(DATAPacket); // send the data packet
+			printInformation("Client have sent the data packet.", DATAPacket);
+		}
+	}
+
+	/**
+	 * Send the ack packet for the last block received in order
+	 * 
+	 * @param window
+	 * @throws IOException
+	 */
+	private void sendAck(TFTPReceiveWindow window) throws IOException {
+		// form the ack packet
+		TFTPAckPacket AckPacket = new TFTPAckPacket(window.getLastBlock(), serverAddress, serverResponsePort);
+		sendPacket(AckPacket); // send the ack packet
+		
+		// print the information in the packet
+		printInformation("Client have sent the ack packet.", AckPacket);
+		window.acknowledged();
+	}
+	
+	/**
+	 * Send the ack packet for the last block received in order during a
+	 * multicast transfer
+	 * 
+	 * @param blockNumber
+	 * @throws IOException
+	 */
+	private void sendGroupAck(int blockNumber) throws IOException {
+		TFTPAckPacket AckPacket = new TFTPAckPacket(blockNumber, serverAddress, serverResponsePort);
+		sendPacket(AckPacket);
+		printInformation("Client have sent the ack packet.", AckPacket);
+	}
+
+	/**
+	 * Receive the file from the multicast group(RFC 2090) after the server has
+	 * acknowledged the multicast option. Data packets arrive from the group
+	 * and, to fill the gaps of the master client, from the server, each block
+	 * is written where it belongs in the file. Only the master client
+	 * acknowledges the blocks it has received in order, the other clients
+	 * wait until the server makes them the master client, or until they have
+	 * received the whole file from the group.
+	 * 
+	 * @param file
+	 * @param fs
+	 * @throws IOException
+	 * @throws TFTPErrorException
+	 */
+	private void receiveFileFromGroup(File file, RandomAccessFile fs) throws IOException, TFTPErrorException {
+		int blockSize = transferOptions.getBlockSize();
+		long transferSize = transferOptions.getTransferSize();
+		if (transferSize > file.getUsableSpace())
+			sendDiskFull("Client don't have enough space to write " + file.getName() + ".",
+					serverAddress, serverResponsePort);
+		
+		BlockingQueue<DatagramPacket> packets = new LinkedBlockingQueue<>();
+		MulticastSocket groupSocket = new MulticastSocket(transferOptions.getMulticastPort());
+		TFTPPacketReceiver groupReceiver = new TFTPPacketReceiver(groupSocket, blockSize, packets);
+		TFTPPacketReceiver serverReceiver = new TFTPPacketReceiver(socket, blockSize, packets);
+		BitSet receivedBlocks = new BitSet();
+		int lastReceivedBlock = 0; // all blocks up to this one have been received
+		int lastBlock = -1; // block number of the last data packet, -1 until it is received
+		long fileLength = 0;
+		int numRetry = 0;
+		try {
+			// the group is joined on the default interface of the multicast socket
+			groupSocket.joinGroup(new InetSocketAddress(transferOptions.getMulticastAddress(),
+					transferOptions.getMulticastPort()), null);
+			groupReceiver.start();
+			serverReceiver.start();
+			print("Client has joined the multicast group " 
+					+ addressToString(transferOptions.getMulticastAddress(), transferOptions.getMulticastPort()) + ".");
+			if (transferOptions.isMasterClient())
+				sendGroupAck(lastReceivedBlock);
+			
+			while (lastBlock == -1 || lastReceivedBlock < lastBlock) {
+				DatagramPacket receivePacket = packets.poll(timer.getTimeout(), TimeUnit.MILLISECONDS);
+				if (receivePacket == null) {
+					if (timer.isConnectionLost(numRetry))
+						throw new TFTPErrorException("Connection lost.");
+					// the ack packet of the master client might be lost, the
+					// other clients tell the server they are still waiting
+					timer.timedOut();
+					sendGroupAck(lastReceivedBlock);
+					++numRetry;
+					continue;
+				}
+				// packets sent to the group leave the server through its
+				// multicast interface, so only the port identifies the server
+				if (serverResponsePort != receivePacket.getPort()) {
+					String errorMsg = "This tid is invalid, please use the correct tid!";
+					sendUnknownTid(errorMsg, receivePacket.getAddress(), receivePacket.getPort());
+					continue;
+				}
+				
+				TFTPPacket packet;
+				try {
+					packet = TFTPPacket.createFromPacket(receivePacket);
+				} catch (IllegalArgumentException e) {
+					sendIllegalTFTPOperation(e.getMessage(), serverAddress, serverResponsePort);
+					return;
+				}
+				numRetry = 0;
+				if (packet instanceof TFTPOackPacket) { // the server has made the client the master client
+					printInformation("Client have received the option ack packet.", packet);
+					try {
+						TFTPOptionRegistry.accept(sentOptions, ((TFTPOackPacket) packet).getOptions(), transferOptions);
+					} catch (IllegalArgumentException e) { // server acknowledged invalid options
+						sendOptionNegotiationFailed(e.getMessage(), serverAddress, serverResponsePort);
+					}
+					if (transferOptions.isMasterClient())
+						sendGroupAck(lastReceivedBlock);
+				} else if (packet instanceof TFTPDataPacket) {
+					TFTPDataPacket DATAPacket = (TFTPDataPacket) packet;
+					int blockNumber = DATAPacket.getBlockNumber();
+					if (blockNumber == 0 || (lastBlock != -1 && blockNumber > lastBlock) 
+							|| DATAPacket.getLength() > blockSize)
+						sendIllegalTFTPOperation("Client has received invalid data packet with block number: " 
+								+ blockNumber, serverAddress, serverResponsePort);
+					if (!receivedBlocks.get(blockNumber)) {
+						printInformation("Client have received the data packet.", DATAPacket);
+						try {
+							fs.seek((long) (blockNumber - 1) * blockSize);
+							byte[] fileData = DATAPacket.getFileData();
+							if (sparse)
+								TFTPSparseFiles.write(fs, fileData, 0, fileData.length);
+							else
+								fs.write(fileData); // write to the file
+						} catch (IOException e) { // disk is full
+							String errorMsg = "Client don't have enough space to write " + file.getName() + ".";
+							sendDiskFull(errorMsg, serverAddress, serverResponsePort);
+						}
+						receivedBlocks.set(blockNumber);
+						if (DATAPacket.isLastDataPacket(blockSize)) {
+							lastBlock = blockNumber;
+							fileLength = (long) (blockNumber - 1) * blockSize + DATAPacket.getLength();
+						}
+						while (receivedBlocks.get(lastReceivedBlock + 1))
+							++lastReceivedBlock;
+					}
+					if (transferOptions.isMasterClient())
+						sendGroupAck(lastReceivedBlock);
+				} else if (packet instanceof TFTPErrorPacket)
+					throw new TFTPErrorException(((TFTPErrorPacket) packet).getErrorMsg());
+				else
+					throw new TFTPErrorException("Unknown packet received.");
+			}
+			// the whole file has been received from the group, leave the group
+			if (!transferOptions.isMasterClient())
+				sendGroupAck(lastBlock);
+			fs.setLength(fileLength);
+		} catch (InterruptedException e) {
+			throw new TFTPErrorException("Client has been interrupted.");
+		} finally {
+			groupReceiver.stopReceiver();
+			serverReceiver.stopReceiver();
+			groupSocket.close();
+			print("Client have received " + groupReceiver.getNumPackets() + " packets from the multicast group and "
+					+ serverReceiver.getNumPackets() + " packets from the server.");
+		}
+	}
+	
+	/**
+	 * Print the retransmission timer of the transfer in verbose mode
+	 */
+	private void printTimer() {
+		if (timer != null && isVerbose())
+			print("Client: " + timer + "\n");
+	}
+	
 	/**
 	 * handle RRQ
 	 * 
@@ -442,9 +834,10 @@ public class TFTPClient extends TFTPHost {
 	 */
 	public void readFileFromServer(String filename) {
 		this.serverResponsePort = -1; // clean response port from old file transfer
+		this.timer = null;
 		String filePath = getFilePath(filename);
 		File file = null;
-		FileOutputStream fs = null;
+		RandomAccessFile fs = null;
 		// in case any error happen, this will be set to true,
 		// if it's true but the end of the function, the file
 		// that is created will be deleted
@@ -460,41 +853,61 @@ public class TFTPClient extends TFTPHost {
 					throw new IOException("Failed to create " + filename);
 			}
 			
-			fs = new FileOutputStream(file);
+			fs = new RandomAccessFile(file, "rw");
+			fs.setLength(0); // override the old file
 
 			// form the RRQ packet
-			TFTPRequestPacket RRQPacket = TFTPRequestPacket.createReadRequest(filename, serverAddress, serverPort);
+			transferOptions = new TFTPTransferOptions(true);
+			// the client only re-sends the request, so the timeout is fixed
+			timer = new TFTPRetransmissionTimer(transferOptions.getTimeout());
+			timer.setFixedTimeout(transferOptions.getTimeout());
+			sentOptions = createRequestOptions(0);
+			optionAckExpected = !sentOptions.isEmpty();
+			TFTPRequestPacket RRQPacket = TFTPRequestPacket.createReadRequest(filename, sentOptions,
+					serverAddress, serverPort);
 			sendPacket(RRQPacket, true); // send the RRQ packet
 			printInformation("Client have sent the RRQ.", RRQPacket); // print the information
 
-			TFTPAckPacket AckPacket; // used for sending packet
-			TFTPDataPacket DATAPacket; // used for receiving packet
-			int blockNumber = 1;
+			TFTPPacketView DATAPacket; // used for receiving packet
+			TFTPReceiveWindow window = new TFTPReceiveWindow(transferOptions);
 			
 			// run until we received the last data packet
 			do {
-				DATAPacket = receiveData(blockNumber);
+				DATAPacket = receiveData(window);
+				if (DATAPacket == null) { // the server sends the file to a multicast group
+					receiveFileFromGroup(file, fs);
+					break;
+				}
 				
 				// if no exception is thrown, then print the information
 				printInformation("Client have received the data packet.", DATAPacket);
 				
-				// check if there is enough space to write the current data packet
-				if (file.getFreeSpace() >= DATAPacket.getLength())
-					fs.write(DATAPacket.getFileData()); // write to the file
-				else { // disk is full
+				// the server has sent the size of the file with the tsize option,
+				// check that the whole file fits before writing the first block
+				long transferSize = transferOptions.getTransferSize();
+				if (window.getNextBlock() == 1 && transferSize > 0) {
+					if (transferSize > file.getUsableSpace())
+						sendDiskFull("Client don't have enough space to write " + filename + ".",
+								serverAddress, serverResponsePort);
+					fs.setLength(transferSize); // reserve the space for the whole file
+				}
+				
+				try {
+					if (sparse)
+						DATAPacket.writeSparseFileData(fs); // blocks of zeros are skipped
+					else
+						DATAPacket.writeFileData(fs); // write to the file
+				} catch (IOException e) { // disk is full
 					String errorMsg = "Client don't have enough space to write " + filename + ".";
 					sendDiskFull(errorMsg, serverAddress, serverResponsePort);
 				}
 
-				// form the ack packet
-				AckPacket = new TFTPAckPacket(blockNumber, serverAddress, serverResponsePort);				
-				sendPacket(AckPacket); // send the ack packet
-				
-				// print the information in the packet
-				printInformation("Client have sent the ack packet.", AckPacket);
-				
-				++blockNumber; // increment the block number
-			} while (!DATAPacket.isLastDataPacket());
+				// acknowledge once per window, or at the last data packet
+				if (window.receive(DATAPacket.isLastDataPacket(transferOptions.getBlockSize())))
+					sendAck(window);
+			} while (!DATAPacket.isLastDataPacket(transferOptions.getBlockSize()));
+			if (!transferOptions.isMulticast())
+				fs.setLength(fs.getFilePointer()); // the file may be smaller than the transfer size
 		} catch (TFTPErrorException e) { // handle TFTPErrorPacket
 			print("TFTP Error: Failed to read " + filename
 					+ " from server as client received the following error message:\n"
@@ -504,6 +917,7 @@ public class TFTPClient extends TFTPHost {
 			shouldDeleteFile = true;
 			print("Client failed to send the request. Please try again.\n");
 		} finally { // close the file stream at the end
+			printTimer();
 			try {
 				if (fs != null)
 					fs.close();
@@ -523,9 +937,10 @@ public class TFTPClient extends TFTPHost {
 	 */
 	public void writeFileToServer(String filename) {
 		this.serverResponsePort = -1; // clean response port from old file transfer
+		this.timer = null;
 		String filePath = getFilePath(filename);
 		File file = null;
-		FileInputStream fs = null;
+		TFTPBlockReader reader = null;
 		try {
 			file = new File(filePath);
 			if (!file.exists()) { // file not exist, notify the user
@@ -538,54 +953,39 @@ public class TFTPClient extends TFTPHost {
 				return;
 			}
 
-			fs = new FileInputStream(filePath);
-
 			// form the WRQ packet
-			TFTPRequestPacket WRQPacket = TFTPRequestPacket.createWriteRequest(filename, serverAddress, serverPort);
+			transferOptions = new TFTPTransferOptions(false);
+			timer = new TFTPRetransmissionTimer(transferOptions.getTimeout());
+			sentOptions = createRequestOptions(file.length());
+			optionAckExpected = !sentOptions.isEmpty();
+			TFTPRequestPacket WRQPacket = TFTPRequestPacket.createWriteRequest(filename, sentOptions,
+					serverAddress, serverPort);
 			sendPacket(WRQPacket, true); // send the WRQ packet
+			timer.start();
 			printInformation("Client have sent the WRQ.", WRQPacket);
 
-			byte[] data = new byte[TFTPDataPacket.MAX_DATA_LENGTH];
-			int byteUsed = 0;
-			int blockNumber = 0;
+			// ack packet 0 or the option ack packet, after which the block size
+			// and the window size are known
+			receiveAck(0);
+			reader = new TFTPFileBlockReader(file, transferOptions.getBlockSize());
+			TFTPSendWindow window = new TFTPSendWindow(reader, transferOptions);
 			
-			TFTPDataPacket DATAPacket; // used for sending packet
-			TFTPAckPacket AckPacket = null; // for receiving ack packet
-			
-			// run until we have sent all the information
+			// run until the server has acknowledged all the information
 			do {
-				AckPacket = receiveAck(blockNumber);
-				printInformation("Client have received the ack packet.", AckPacket);
-				++blockNumber;
-				byteUsed = fs.read(data);
-
-				// special case when the file length is a multiple of 512,
-				// then just send a empty data to indicate that the file has
-				// all been transfered
-				if (byteUsed == -1) {
-					byteUsed = 0;
-					data = new byte[0];
-				}
-				// form the data packet that will be sent to the server
-				DATAPacket = new TFTPDataPacket(blockNumber, Arrays.copyOfRange(data, 0, byteUsed),
-						byteUsed, serverAddress,serverResponsePort);				
-				sendPacket(DATAPacket, true); // send the data packet
-				printInformation("Client have sent the data packet.", DATAPacket);
-			} while (byteUsed == TFTPDataPacket.MAX_DATA_LENGTH);
-			
-			receiveAck(blockNumber);
-			printInformation("Client have received the ack packet.", AckPacket);
-			fs.close();
+				sendWindow(window);
+				receiveAck(window);
+			} while (!window.isFinished());
 		} catch (TFTPErrorException e) {
 			print("TFTP Error: Failed to write " + filename
 					+ " to server as client received the following error message:\n"
 					+ e.getMessage());
 		} catch (IOException e) {
 			print("Client failed to send the request. Please try again.\n");
-		} finally { // close the file stream after everything is finished
+		} finally { // close the file after everything is finished
+			printTimer();
 			try {
-				if (fs != null)
-					fs.close();
+				if (reader != null)
+					reader.close();
 			} catch (IOException e) { }
 		} // end of try-catch
 	} // end of function
@@ -1,9 +1,8 @@
 package project;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -14,10 +13,12 @@ import java.util.Arrays;
  */
 public class TFTPDataPacket extends TFTPPacket {
 	private static final Type DEFAULT_TYPE = Type.DATA; // default packet type
-	private static final int HEADER_LENGTH = 4; // packet header length
-	public static final int MAX_DATA_LENGTH = 512; // max data length
+	public static final int HEADER_LENGTH = 4; // packet header length
+	public static final int DEFAULT_BLOCK_SIZE = 512; // max data length unless blksize is negotiated
+	public static final int MIN_BLOCK_SIZE = 8; // min block size that can be negotiated(RFC 2348)
+	public static final int MAX_BLOCK_SIZE = 65464; // max block size that can be negotiated(RFC 2348)
 	private int blockNumber; // block number of the packet
-	private byte[] fileData; // file data of the packet
+	private ByteBuffer fileData; // file data of the packet, between the position and the limit
 
 	/**
 	 * Constructor
@@ -37,7 +38,46 @@ public class TFTPDataPacket extends TFTPPacket {
 			throw new IllegalArgumentException("Invalid file data");
 
 		this.blockNumber = blockNumber;
-		this.fileData = fileData == null ? new byte[0] : fileData;
+		this.fileData = ByteBuffer.wrap(fileData == null ? new byte[0] : fileData);
+	}
+
+	/**
+	 * Constructor, the file data is not copied(i.e. a slice of a mapped file)
+	 * 
+	 * @param blockNumber
+	 * @param fileData - file data between the position and the limit
+	 * @param address
+	 * @param port
+	 */
+	TFTPDataPacket(int blockNumber, ByteBuffer fileData, InetAddress address, int port) {
+		super(DEFAULT_TYPE, address, port);
+		if (!validBlockNumber(blockNumber))
+			throw new IllegalArgumentException("Invalid block number");
+
+		if (fileData.remaining() > MAX_BLOCK_SIZE)
+			throw new IllegalArgumentException("Invalid file data");
+
+		this.blockNumber = blockNumber;
+		this.fileData = fileData;
+	}
+
+	/**
+	 * Reuse the packet for another block of the same transfer, so that a sender
+	 * sends every block with the same packet instead of creating a new one.
+	 * The file data is not copied.
+	 * 
+	 * @param blockNumber
+	 * @param fileData - file data between the position and the limit
+	 */
+	void setBlock(int blockNumber, ByteBuffer fileData) {
+		if (!validBlockNumber(blockNumber))
+			throw new IllegalArgumentException("Invalid block number");
+
+		if (fileData.remaining() > MAX_BLOCK_SIZE)
+			throw new IllegalArgumentException("Invalid file data");
+
+		this.blockNumber = blockNumber;
+		this.fileData = fileData;
 	}
 
 	/**
@@ -46,7 +86,7 @@ public class TFTPDataPacket extends TFTPPacket {
 	 * @return length
 	 */
 	public int getLength() {
-		return fileData.length;
+		return fileData.remaining();
 	}
 
 	/**
@@ -59,14 +99,29 @@ public class TFTPDataPacket extends TFTPPacket {
 	}
 	
 	/**
-	 * Getter
+	 * Getter, the file data is only copied if the packet was not created
+	 * from a byte array
 	 * 
 	 * @return fileData
 	 */
 	public byte[] getFileData() {
-		return this.fileData;
+		if (fileData.hasArray() && fileData.arrayOffset() == 0 && fileData.position() == 0
+				&& fileData.remaining() == fileData.array().length)
+			return fileData.array();
+		byte[] data = new byte[fileData.remaining()];
+		fileData.duplicate().get(data);
+		return data;
 	}
 	
+	/**
+	 * Getter, the file data is not copied
+	 * 
+	 * @return fileData between the position and the limit, must not be modified
+	 */
+	public ByteBuffer getFileDataBuffer() {
+		return fileData;
+	}
+
 	/**
 	 * Create new data packet from datagram packet
 	 * 
@@ -95,9 +150,7 @@ public class TFTPDataPacket extends TFTPPacket {
 		if (!Type.validOPCODE(DEFAULT_TYPE, OPCODE))
 			throw new IllegalArgumentException("Invalid OP code " + OPCODE);
 		int blockNumber = ((packetData[2] << 8) & 0xFF00) | (packetData[3] & 0xFF);
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-		stream.write(packetData, HEADER_LENGTH, packetDataLength - HEADER_LENGTH);
-		byte[] fileData = stream.toByteArray();
+		byte[] fileData = Arrays.copyOfRange(packetData, HEADER_LENGTH, packetDataLength);
 		return new TFTPDataPacket(blockNumber, fileData, fileData.length, address, port);
 	}
 
@@ -110,7 +163,7 @@ public class TFTPDataPacket extends TFTPPacket {
 	 */
 	private static boolean validFileData(byte[] fileData, int fileDataLength) {
 		return ((fileData == null && fileDataLength == 0)
-				|| fileData != null && fileData.length == fileDataLength && fileDataLength <= MAX_DATA_LENGTH);
+				|| fileData != null && fileData.length == fileDataLength && fileDataLength <= MAX_BLOCK_SIZE);
 	}
 
 	/**
@@ -131,44 +184,53 @@ public class TFTPDataPacket extends TFTPPacket {
 	 * @return true if the packet data is valid, false otherwise
 	 */
 	private static boolean validPacketData(byte[] packetData, int packetDataLength) {
-		return (packetData != null && packetData.length == packetDataLength && packetDataLength <= MAX_LENGTH
-				&& packetDataLength >= HEADER_LENGTH);
+		return (packetData != null && packetData.length == packetDataLength
+				&& packetDataLength <= HEADER_LENGTH + MAX_BLOCK_SIZE && packetDataLength >= HEADER_LENGTH);
 	}
 
 	/**
-	 * Check if the current packet is the last data packet
+	 * Check if the current packet is the last data packet of a transfer
+	 * with the default block size
 	 * 
 	 * @return true if the packet is the last packet, false otherwise
 	 */
 	public boolean isLastDataPacket() {
-		return this.fileData != null && this.fileData.length < MAX_DATA_LENGTH;
+		return isLastDataPacket(DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Check if the current packet is the last data packet of a transfer
+	 * with the given block size
+	 * 
+	 * @param blockSize
+	 * @return true if the packet is the last packet, false otherwise
+	 */
+	public boolean isLastDataPacket(int blockSize) {
+		return this.fileData.remaining() < blockSize;
 	}
 
 	/**
-	 * Convert the block number into byte array of length 2
+	 * Write the packet into the buffer, the file data is copied only once
 	 * 
-	 * @return byteArray
+	 * @param buffer
 	 */
-	private byte[] blockNumber() {
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-		stream.write(blockNumber >> 8);
-		stream.write(blockNumber);
-		return stream.toByteArray();
+	@Override
+	public void encodeTo(ByteBuffer buffer) {
+		DEFAULT_TYPE.encodeTo(buffer);
+		encodeShort(buffer, blockNumber);
+		int position = fileData.position();
+		buffer.put(fileData);
+		fileData.position(position); // the packet may be encoded again
 	}
 
 	/**
-	 * Generate the byte array that contains all information
+	 * Getter the number of bytes written by encodeTo
 	 * 
-	 * @return byteArray
-	 * @throws IOException
+	 * @return encodedLength
 	 */
 	@Override
-	public byte[] getData() throws IOException {
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-		stream.write(DEFAULT_TYPE.OPCODE());
-		stream.write(blockNumber());
-		stream.write(fileData, 0, fileData.length);
-		return stream.toByteArray();
+	public int getEncodedLength() {
+		return HEADER_LENGTH + fileData.remaining();
 	}
 	
 	/**
@@ -0,0 +1,109 @@
+package project;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Thread that watches the directories of the missing files for created
+ * files, and removes the created files from the missing files. When events
+ * have been lost, all missing files are dropped. When a watched directory
+ * is deleted, the missing files below it are dropped, since the watch ends
+ * with the directory.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPDirectoryWatcher extends Thread {
+	private TFTPMissingFiles missingFiles; // missing files that created files are removed from
+	private WatchService watchService; // service that reports the created files
+	private Map<WatchKey, Path> directories; // watch key of each watched directory to the directory
+
+	/**
+	 * Constructor
+	 * 
+	 * @param missingFiles
+	 * @throws IOException
+	 */
+	TFTPDirectoryWatcher(TFTPMissingFiles missingFiles) throws IOException {
+		super("TFTPDirectoryWatcher");
+		this.missingFiles = missingFiles;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.directories = new HashMap<>();
+		setDaemon(true); // the server does not wait for the watcher when it stops
+	}
+
+	/**
+	 * Watch the directory for created files, a directory is only registered
+	 * once
+	 * 
+	 * @param directory
+	 * @return true if the directory is watched, false if it cannot be watched
+	 */
+	public synchronized boolean watch(Path directory) {
+		if (directories.containsValue(directory))
+			return true;
+		try {
+			directories.put(directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE), directory);
+			return true;
+		} catch (IOException | ClosedWatchServiceException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return number of directories that are watched
+	 */
+	public synchronized int getNumDirectories() {
+		return directories.size();
+	}
+
+	/**
+	 * Stop watching, the thread ends
+	 */
+	public void close() {
+		try {
+			watchService.close();
+		} catch (IOException e) { }
+	}
+
+	/**
+	 * Override run method
+	 */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				Path directory;
+				synchronized (this) {
+					directory = directories.get(key);
+				}
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+						missingFiles.clear();
+					else if (directory != null)
+						missingFiles.invalidate(directory.resolve((Path) event.context()));
+				}
+				if (!key.reset()) { // the directory has been deleted
+					synchronized (this) {
+						directories.remove(key);
+					}
+					if (directory != null)
+						missingFiles.invalidate(directory);
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// the server is shutting down
+		}
+	}
+}
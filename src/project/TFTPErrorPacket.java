@@ -1,9 +1,8 @@
 package project;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -14,6 +13,7 @@ import java.util.Arrays;
  */
 public class TFTPErrorPacket extends TFTPPacket {
 	private static final Type DEFAULT_TYPE = Type.ERROR; // default packet type
+	private static final int HEADER_LENGTH = 4; // packet header length(opcode and error code)
 	private String errorMsg; // error message
 	private TFTPErrorType errorType; // error type
 
@@ -176,6 +176,30 @@ public class TFTPErrorPacket extends TFTPPacket {
 		return new TFTPErrorPacket(6, msg, address, port);
 	}
 	
+	/**
+	 * Create new option negotiation failed error packet with defined error message
+	 * 
+	 * @param msg
+	 * @param address
+	 * @param port
+	 * @return TFTPErrorPacket
+	 */
+	public static TFTPErrorPacket createOptionNegotiationFailed(String msg, InetAddress address, int port) {
+		return new TFTPErrorPacket(8, msg, address, port);
+	}
+	
+	/**
+	 * Create new not defined error packet with defined error message
+	 * 
+	 * @param msg
+	 * @param address
+	 * @param port
+	 * @return TFTPErrorPacket
+	 */
+	public static TFTPErrorPacket createNotDefined(String msg, InetAddress address, int port) {
+		return new TFTPErrorPacket(0, msg, address, port);
+	}
+	
 	/**
 	 * Getter
 	 * 
@@ -235,32 +259,35 @@ public class TFTPErrorPacket extends TFTPPacket {
 	}
 
 	/**
-	 * Convert the block number into byte array of length 2
+	 * Write the packet into the buffer
 	 * 
-	 * @return byteArray
+	 * @param buffer
 	 */
-	private byte[] errorCode() {
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-		int errorCode = errorType.getErrorCode();
-		stream.write(errorCode >> 8);
-		stream.write(errorCode);
-		return stream.toByteArray();
+	@Override
+	public void encodeTo(ByteBuffer buffer) {
+		DEFAULT_TYPE.encodeTo(buffer);
+		encodeShort(buffer, errorType.getErrorCode());
+		encodeString(buffer, errorMsg);
+	}
+
+	/**
+	 * Getter the interned frame of this error code and message
+	 * 
+	 * @return frame
+	 */
+	@Override
+	public byte[] getFrame() {
+		return TFTPFrameCache.getErrorFrame(this);
 	}
 
 	/**
-	 * Generate the byte array that contains all information
+	 * Getter the number of bytes written by encodeTo
 	 * 
-	 * @return byteArray
-	 * @throws IOException
+	 * @return encodedLength
 	 */
 	@Override
-	protected byte[] getData() throws IOException {
-		ByteArrayOutputStream stream = new ByteArrayOutputStream();
-		stream.write(DEFAULT_TYPE.OPCODE());
-		stream.write(errorCode());
-		stream.write(errorMsg.getBytes(), 0, errorMsg.getBytes().length);
-		stream.write(0);
-		return stream.toByteArray();
+	public int getEncodedLength() {
+		return HEADER_LENGTH + getEncodedLength(errorMsg);
 	}
 	
 	/**
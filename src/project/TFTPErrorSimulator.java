@@ -5,6 +5,7 @@ import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.SocketTimeoutException;
+import java.util.Arrays;
 import java.util.Scanner;
 
 /**
@@ -178,6 +179,9 @@ public class TFTPErrorSimulator {
 									// will be simulated twice which is unexpected
 	private CorruptionType corruptionType; // type of corruption to simulate
 	private int newBlockNumber; // block number to simulate the error
+	// packets used to forward the file transfer, they are reused for every
+	// packet so that forwarding does not allocate a new buffer each time
+	private DatagramPacket forwardReceivePacket, forwardSendPacket;
 	
 	/**
 	 * Constructor
@@ -188,6 +192,9 @@ public class TFTPErrorSimulator {
 			sendReceiveSocket = new DatagramSocket();
 			sendReceiveSocket.setSoTimeout(10000); // wait for 10 seconds
 			serverAddress = InetAddress.getLocalHost(); // default server address is localhost
+			// large enough for any negotiated block size
+			forwardReceivePacket = TFTPPacket.createDatagramPacketForReceive(TFTPDataPacket.MAX_BLOCK_SIZE);
+			forwardSendPacket = new DatagramPacket(forwardReceivePacket.getData(), 0);
 		} catch (Exception e) {
 			e.printStackTrace();
 			System.exit(1);
@@ -347,6 +354,18 @@ public class TFTPErrorSimulator {
 		return new DatagramPacket(data, length, packet.getAddress(), packet.getPort());
 	}
 	
+	/**
+	 * Copy the packet, used for packets that are sent later as the forwarding
+	 * packets are reused for the next packet
+	 * 
+	 * @param packet
+	 * @return copy of the packet
+	 */
+	private static DatagramPacket copyPacket(DatagramPacket packet) {
+		return new DatagramPacket(Arrays.copyOfRange(packet.getData(), packet.getOffset(), 
+				packet.getOffset() + packet.getLength()), packet.getLength(), packet.getAddress(), packet.getPort());
+	}
+
 	/**
 	 * Receive a packet on port 23 and forward it to the client/server depending on the port on which
 	 * the packet is received
@@ -354,8 +373,8 @@ public class TFTPErrorSimulator {
 	 * @throws IOException
 	 */
 	private void receiveAndSend() throws IOException, SocketTimeoutException {
-		DatagramPacket receivePacket, sendPacket;
-		receivePacket = TFTPPacket.createDatagramPacketForReceive(); // create new datagram packet for receiving
+		DatagramPacket receivePacket = forwardReceivePacket, sendPacket = forwardSendPacket;
+		receivePacket.setLength(receivePacket.getData().length); // room for the largest packet
 		sendReceiveSocket.receive(receivePacket); // receive new packet
 		System.out.println("Error simulator has received the packet.");
 
@@ -363,14 +382,18 @@ public class TFTPErrorSimulator {
 		if (serverPort == -1)
 			serverPort = receivePacket.getPort();
 		
+		// forward the received bytes as they are
+		sendPacket.setData(receivePacket.getData(), 0, receivePacket.getLength());
 		// if the request is from client, we send it to server
-		if (receivePacket.getPort() == clientPort)
-			sendPacket = new DatagramPacket(receivePacket.getData(), receivePacket.getLength(),
-					serverAddress, serverPort);
+		if (receivePacket.getPort() == clientPort) {
+			sendPacket.setAddress(serverAddress);
+			sendPacket.setPort(serverPort);
+		}
 		// if the request if from server, we send it to client
-		else
-			sendPacket = new DatagramPacket(receivePacket.getData(), receivePacket.getLength(),
-					clientAddress, clientPort);
+		else {
+			sendPacket.setAddress(clientAddress);
+			sendPacket.setPort(clientPort);
+		}
 		TFTPPacket packet = TFTPPacket.createFromPacket(receivePacket);
 		// check if current packet is the packet that we should simulate the error
 		if (!errorSimulated && packet instanceof TFTPDataPacket && packetType == PacketType.data &&
@@ -379,7 +402,7 @@ public class TFTPErrorSimulator {
 				System.out.println("*****Packet is lost*****");
 			} else if (errorType == ErrorType.delay) {
 				System.out.println("*****Packet is delayed*****");
-				new Thread(new DelayThread(sendReceiveSocket, sendPacket, delayTime), "Delay thread").start();
+				new Thread(new DelayThread(sendReceiveSocket, copyPacket(sendPacket), delayTime), "Delay thread").start();
 			} else if (errorType == ErrorType.duplicate) {
 				System.out.println("*****Packet is duplicated*****");
 				sendReceiveSocket.send(sendPacket);
@@ -399,7 +422,7 @@ public class TFTPErrorSimulator {
 				System.out.println("*****Packet is lost*****");
 			} else if (errorType == ErrorType.delay) {
 				System.out.println("*****Packet is delayed*****");
-				new Thread(new DelayThread(sendReceiveSocket, sendPacket, delayTime), "Delay thread").start();
+				new Thread(new DelayThread(sendReceiveSocket, copyPacket(sendPacket), delayTime), "Delay thread").start();
 			} else if (errorType == ErrorType.duplicate) {
 				System.out.println("*****Packet is duplicated*****");
 				sendReceiveSocket.send(sendPacket);
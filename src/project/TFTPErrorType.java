@@ -8,6 +8,7 @@ package project;
  * 	- access violation(2)
  *  - disk full(3)
  *  - file already exists(6)
+ * Option negotiation failed(8) is defined by RFC 2347 for rejecting options.
  * All the other error types will be used in future iterations. 
  * 
  * @author yunkai wang
@@ -22,7 +23,10 @@ public enum TFTPErrorType {
 	ILLEGAL_TFTP_OPERATION(4, "Illegal TFTP operation"),
 	UNKNOWN_TRANSFER_ID(5, "Unknown transfer ID"),
 	FILE_ALREADY_EXISTS(6, "File already exists"),
-	NO_SUCH_USER(7, "No such user");
+	NO_SUCH_USER(7, "No such user"),
+	OPTION_NEGOTIATION_FAILED(8, "Option negotiation failed");
+	
+	private static final TFTPErrorType[] TYPES = values(); // all error types, values() copies the array on each call
 	
 	private int errorCode; // error code following the defined TFTP standard
 	private String defaultErrorMsg; // default error message
@@ -63,7 +67,7 @@ public enum TFTPErrorType {
 	 * @return TFTPErrorType
 	 */
 	public static TFTPErrorType getErrorType(int errorCode) {
-		for (TFTPErrorType t: TFTPErrorType.values()) {
+		for (TFTPErrorType t: TYPES) {
 			if (t.getErrorCode() == errorCode)
 				return t;
 		}
@@ -0,0 +1,249 @@
+package project;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Event loop thread of the nio engine. One event loop drives many sessions:
+ * it waits on a selector until one of the session channels has received a
+ * packet or the earliest session timeout has passed, and calls the session
+ * to handle it. All methods of the sessions are only called on this thread.
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPEventLoop extends Thread {
+	private Selector selector; // selector of all session channels
+	private TFTPBufferPool bufferPool; // pool that the buffers of the event loop are reserved from
+	private ByteBuffer receiveBuffer; // direct buffer for receiving, shared by all sessions(fits the largest block size)
+	private ByteBuffer sendLease; // direct buffer that the send buffer encodes into
+	private TFTPSendBuffer sendBuffer; // buffer that packets are encoded into for sending, shared by all sessions
+	private Queue<TFTPChannelSession> newSessions; // sessions waiting to be opened on this thread
+	private Queue<TFTPChannelSession> wokenSessions; // sessions woken up by other threads, resumed on this thread
+	private Queue<Runnable> tasks; // tasks handed over by other threads(i.e. multicast joins), run on this thread
+	private Set<TFTPChannelSession> sessions; // sessions that are currently running
+	private long nextTimeout; // earliest time(System.nanoTime) that a session may time out
+	private volatile boolean running; // false once the engine has been shut down
+	private volatile int numSessions; // number of sessions, read by other threads
+
+	/**
+	 * Constructor
+	 * 
+	 * @param id
+	 * @param bufferPool
+	 * @throws IOException
+	 */
+	TFTPEventLoop(int id, TFTPBufferPool bufferPool) throws IOException {
+		super("Event loop #" + id);
+		this.selector = Selector.open();
+		this.bufferPool = bufferPool;
+		// the sessions send and receive through the channels, so direct
+		// buffers avoid the copy into a temporary direct buffer
+		this.receiveBuffer = bufferPool.reserve(TFTPPacket.getReceiveLength(TFTPDataPacket.MAX_BLOCK_SIZE), true);
+		this.sendLease = bufferPool.reserve(TFTPDataPacket.HEADER_LENGTH + TFTPDataPacket.MAX_BLOCK_SIZE, true);
+		this.sendBuffer = new TFTPSendBuffer(sendLease);
+		this.newSessions = new ConcurrentLinkedQueue<>();
+		this.wokenSessions = new ConcurrentLinkedQueue<>();
+		this.tasks = new ConcurrentLinkedQueue<>();
+		this.sessions = new HashSet<>();
+		this.nextTimeout = Long.MAX_VALUE;
+		this.running = true;
+	}
+
+	/**
+	 * Add a new session to this event loop, can be called from any thread
+	 * 
+	 * @param session
+	 */
+	void addSession(TFTPChannelSession session) {
+		newSessions.add(session);
+		selector.wakeup();
+	}
+
+	/**
+	 * Wake up a session that is waiting for another thread(i.e. a session
+	 * reading a file that is still being uploaded), can be called from any
+	 * thread
+	 * 
+	 * @param session
+	 */
+	void wakeUp(TFTPChannelSession session) {
+		wokenSessions.add(session);
+		selector.wakeup();
+	}
+
+	/**
+	 * Run a task on this event loop, can be called from any thread
+	 * 
+	 * @param task
+	 */
+	void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Make sure that the event loop wakes up no later than the given time,
+	 * called by the sessions on this thread
+	 * 
+	 * @param deadline
+	 */
+	void scheduleTimeout(long deadline) {
+		if (deadline < nextTimeout)
+			nextTimeout = deadline;
+	}
+
+	/**
+	 * Getter, only used by the sessions on this thread
+	 * 
+	 * @return sendBuffer
+	 */
+	TFTPSendBuffer getSendBuffer() {
+		return sendBuffer;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return numSessions
+	 */
+	int getNumSessions() {
+		return numSessions;
+	}
+
+	/**
+	 * Request the event loop to stop
+	 */
+	void stopEventLoop() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * Open all sessions that were added since the last time
+	 */
+	private void openNewSessions() {
+		TFTPChannelSession session;
+		while ((session = newSessions.poll()) != null) {
+			session.open(this, selector);
+			if (!session.isClosed())
+				sessions.add(session);
+		}
+	}
+
+	/**
+	 * Resume all sessions that were woken up since the last time
+	 */
+	private void resumeWokenSessions() {
+		TFTPChannelSession session;
+		while ((session = wokenSessions.poll()) != null) {
+			session.resume();
+			if (session.isClosed())
+				sessions.remove(session);
+		}
+	}
+
+	/**
+	 * Run all tasks that were handed over since the last time
+	 */
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null)
+			task.run();
+	}
+
+	/**
+	 * Let each session whose channel has received packets handle them
+	 */
+	private void handleSelectedKeys() {
+		Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+		while (it.hasNext()) {
+			SelectionKey key = it.next();
+			it.remove();
+			TFTPChannelSession session = (TFTPChannelSession) key.attachment();
+			if (key.isValid() && key.isReadable())
+				session.handleReadable(receiveBuffer);
+			if (session.isClosed())
+				sessions.remove(session);
+		}
+	}
+
+	/**
+	 * Let all the sessions that have timed out handle the timeout, and find the
+	 * next time that a session may time out
+	 */
+	private void checkTimeouts() {
+		long now = System.nanoTime();
+		if (now < nextTimeout)
+			return;
+		nextTimeout = Long.MAX_VALUE;
+		Iterator<TFTPChannelSession> it = sessions.iterator();
+		while (it.hasNext()) {
+			TFTPChannelSession session = it.next();
+			session.checkTimeout(now);
+			if (session.isClosed())
+				it.remove();
+			else
+				scheduleTimeout(session.getDeadline());
+		}
+	}
+
+	/**
+	 * Wait until a channel has received a packet, a new session is added or
+	 * the next session times out
+	 * 
+	 * @throws IOException
+	 */
+	private void select() throws IOException {
+		if (nextTimeout == Long.MAX_VALUE) {
+			selector.select(); // no session is waiting for a packet
+			return;
+		}
+		long timeout = TimeUnit.NANOSECONDS.toMillis(nextTimeout - System.nanoTime()) + 1;
+		if (timeout > 0)
+			selector.select(timeout);
+		else
+			selector.selectNow();
+	}
+
+	/**
+	 * Override run method
+	 */
+	@Override
+	public void run() {
+		ThreadLog.print(getName() + " is waiting for new sessions");
+		while (running) {
+			try {
+				select();
+			} catch (IOException e) {
+				ThreadLog.print(getName() + " failed to wait for packets, stopping the event loop");
+				break;
+			}
+			openNewSessions();
+			runTasks();
+			resumeWokenSessions();
+			handleSelectedKeys();
+			checkTimeouts();
+			numSessions = sessions.size();
+		}
+
+		// abort the sessions that are still running
+		for (TFTPChannelSession session : sessions)
+			session.fail("Server is shutting down.");
+		sessions.clear();
+		numSessions = 0;
+		try {
+			selector.close();
+		} catch (IOException e) { }
+		bufferPool.unreserve(receiveBuffer);
+		bufferPool.unreserve(sendLease);
+	}
+}
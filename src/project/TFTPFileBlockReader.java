@@ -0,0 +1,87 @@
+package project;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Block reader that reads each block from the file with a positional read
+ * into a buffer that is reused for every block. Used for the files that are
+ * too small for mapping to pay off when read-ahead is disabled, and by the
+ * client. On the server the channel is shared with the other transfers of
+ * the file(see TFTPFileHandles).
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPFileBlockReader implements TFTPBlockReader {
+	private FileChannel channel; // channel of the file that is being read
+	private TFTPFileHandles handles; // handles that the handle is released to, null if the channel is not shared
+	private TFTPFileHandles.Handle handle; // shared handle of the file, null if the channel is not shared
+	private ByteBuffer buffer; // buffer that each block is read into
+	private int blockSize; // number of bytes in each block
+
+	/**
+	 * Constructor
+	 * 
+	 * @param file
+	 * @param blockSize
+	 * @throws IOException
+	 */
+	TFTPFileBlockReader(File file, int blockSize) throws IOException {
+		this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		this.buffer = ByteBuffer.allocate(blockSize);
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Constructor, the file is read through the shared handle
+	 * 
+	 * @param handles
+	 * @param handle
+	 * @param blockSize
+	 */
+	TFTPFileBlockReader(TFTPFileHandles handles, TFTPFileHandles.Handle handle, int blockSize) {
+		this.channel = handle.getChannel();
+		this.handles = handles;
+		this.handle = handle;
+		this.buffer = ByteBuffer.allocate(blockSize);
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Read the file data of the given block
+	 * 
+	 * @param block
+	 * @return buffer, valid until the next block is read
+	 * @throws IOException
+	 */
+	@Override
+	public ByteBuffer readBlock(long block) throws IOException {
+		long position = (block - 1) * blockSize;
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position + buffer.position());
+			if (n == -1) // end of the file
+				break;
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Close the file, or release the shared handle
+	 * 
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		if (handle == null)
+			channel.close();
+		else if (channel != null)
+			handles.release(handle);
+		channel = null;
+	}
+}
@@ -0,0 +1,251 @@
+package project;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Cache of the open files(file channels) of the files being sent. All
+ * transfers of a file read it through one channel with positional reads, so
+ * many clients reading the same file use one file descriptor, and a file
+ * that is read again soon is not opened again. A handle counts the
+ * transfers that are using it, handles that no transfer uses are closed
+ * after they have been idle for the idle time, or when there are more idle
+ * handles than the limit.
+ * 
+ * A handle belongs to one file on the disk(the file key, i.e. the inode, or
+ * the modification time and length where the file system has no file key).
+ * When the file at the path has been replaced, the next transfer opens a new
+ * handle, the transfers still reading the old file keep the old handle until
+ * they finish.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPFileHandles {
+	private static final int NUM_READ_THREADS = 16; // threads that read blocks ahead of the transfers
+	private int maxIdle; // largest number of idle handles
+	private long idleTime; // time in milliseconds an idle handle is kept
+	private Map<String, Handle> handles; // path of the file to its current handle
+	private LinkedHashMap<Handle, Boolean> idleHandles; // idle handles, least recently used first
+	private ExecutorService readExecutor; // runs the reads ahead of the transfers
+	private long numOpened; // number of times a file has been opened
+	private long numReused; // number of times a handle has been reused
+	private long numEvicted; // number of idle handles that have been closed
+
+	/**
+	 * Open file shared by the transfers that read the file
+	 */
+	static class Handle {
+		private String path; // canonical path of the file
+		private Object fileKey; // key of the file on the disk, null if the file system has none
+		private long lastModified; // modification time of the file when it was opened
+		private long length; // length of the file when it was opened
+		private FileChannel channel; // channel of the file
+		private int numReferences; // number of transfers using the handle
+		private long idleSince; // System.currentTimeMillis when the last transfer released the handle
+
+		/**
+		 * Constructor
+		 * 
+		 * @param path
+		 * @param attributes
+		 * @param channel
+		 */
+		Handle(String path, BasicFileAttributes attributes, FileChannel channel) {
+			this.path = path;
+			this.fileKey = attributes.fileKey();
+			this.lastModified = attributes.lastModifiedTime().toMillis();
+			this.length = attributes.size();
+			this.channel = channel;
+		}
+
+		/**
+		 * Check if the handle belongs to the file that is now at the path
+		 * 
+		 * @param attributes - attributes of the file at the path
+		 * @return true if the file is the same, false if it has been replaced
+		 */
+		boolean isSameFile(BasicFileAttributes attributes) {
+			if (fileKey != null)
+				return fileKey.equals(attributes.fileKey());
+			return lastModified == attributes.lastModifiedTime().toMillis() && length == attributes.size();
+		}
+
+		/**
+		 * Getter
+		 * 
+		 * @return channel, shared by all transfers(use positional reads only)
+		 */
+		FileChannel getChannel() {
+			return channel;
+		}
+	}
+
+	/**
+	 * Thread that closes the handles that have been idle for too long
+	 */
+	private class Sweeper extends Thread {
+		/**
+		 * Constructor
+		 */
+		Sweeper() {
+			super("TFTPFileHandles sweeper");
+			setDaemon(true); // the server does not wait for the sweeper when it stops
+		}
+
+		/**
+		 * Override run method
+		 */
+		@Override
+		public void run() {
+			try {
+				while (true) {
+					Thread.sleep(Math.max(idleTime / 2, 1));
+					evictIdle();
+				}
+			} catch (InterruptedException e) { }
+		}
+	}
+
+	/**
+	 * Creates the threads that read ahead, they do not keep the server running
+	 */
+	private static class ReadThreadFactory implements ThreadFactory {
+		private int numThreads; // number of threads created
+
+		/**
+		 * Create a new daemon thread
+		 */
+		@Override
+		public synchronized Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "TFTPFileHandles reader " + ++numThreads);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+
+	/**
+	 * Constructor, starts the thread that closes idle handles
+	 * 
+	 * @param maxIdle - largest number of idle handles
+	 * @param idleTime - time in milliseconds an idle handle is kept
+	 */
+	TFTPFileHandles(int maxIdle, long idleTime) {
+		this.maxIdle = maxIdle;
+		this.idleTime = idleTime;
+		this.handles = new HashMap<>();
+		this.idleHandles = new LinkedHashMap<>();
+		this.readExecutor = Executors.newFixedThreadPool(NUM_READ_THREADS, new ReadThreadFactory());
+		new Sweeper().start();
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return readExecutor, runs the reads ahead of the transfers
+	 */
+	public ExecutorService getReadExecutor() {
+		return readExecutor;
+	}
+
+	/**
+	 * Get the handle of the file, the file is opened if no handle of the file
+	 * is open or if the file has been replaced since it was opened
+	 * 
+	 * @param file
+	 * @return handle, must be released when the transfer has finished
+	 * @throws IOException
+	 */
+	public Handle acquire(File file) throws IOException {
+		Path path = file.toPath();
+		String canonicalPath = file.getCanonicalPath();
+		BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+		synchronized (this) {
+			Handle handle = handles.get(canonicalPath);
+			if (handle != null && handle.isSameFile(attributes)) {
+				idleHandles.remove(handle);
+				++handle.numReferences;
+				++numReused;
+				return handle;
+			}
+			if (handle != null) { // the file has been replaced, the old handle is closed once it is idle
+				handles.remove(canonicalPath);
+				if (idleHandles.remove(handle) != null)
+					close(handle);
+			}
+			handle = new Handle(canonicalPath, attributes, FileChannel.open(path, StandardOpenOption.READ));
+			handles.put(canonicalPath, handle);
+			++handle.numReferences;
+			++numOpened;
+			return handle;
+		}
+	}
+
+	/**
+	 * A transfer has finished reading the file, the handle is kept open for
+	 * the next transfer of the file unless the file has been replaced
+	 * 
+	 * @param handle
+	 */
+	public synchronized void release(Handle handle) {
+		if (--handle.numReferences > 0)
+			return;
+		if (handles.get(handle.path) != handle) { // the file has been replaced
+			close(handle);
+			return;
+		}
+		handle.idleSince = System.currentTimeMillis();
+		idleHandles.put(handle, Boolean.TRUE);
+		evictIdle();
+	}
+
+	/**
+	 * Close the idle handles that have been idle for longer than the idle
+	 * time, and the least recently used ones while there are too many
+	 */
+	private synchronized void evictIdle() {
+		long now = System.currentTimeMillis();
+		Iterator<Handle> it = idleHandles.keySet().iterator();
+		while (it.hasNext()) {
+			Handle handle = it.next();
+			if (idleHandles.size() <= maxIdle && now - handle.idleSince < idleTime)
+				break; // the handles after it have been idle for a shorter time
+			it.remove();
+			handles.remove(handle.path);
+			close(handle);
+			++numEvicted;
+		}
+	}
+
+	/**
+	 * Close the file of the handle
+	 * 
+	 * @param handle
+	 */
+	private static void close(Handle handle) {
+		try {
+			handle.channel.close();
+		} catch (IOException e) { }
+	}
+
+	/**
+	 * toString method, used for printing
+	 */
+	@Override
+	public synchronized String toString() {
+		return "File handles: " + handles.size() + " open, " + idleHandles.size() + " idle\n"
+				+ "File opens: " + numOpened + " (reused: " + numReused + ", idle closed: " + numEvicted + ")\n";
+	}
+}
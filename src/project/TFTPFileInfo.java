@@ -0,0 +1,125 @@
+package project;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * Snapshot of the attributes of a file that the server checks before a
+ * transfer: whether it exists, its size and modification time, and whether
+ * the server may read or write it. The snapshots of the files in the served
+ * directory are kept by the file inventory(see TFTPFileInventory), so that
+ * most requests are checked without touching the disk.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPFileInfo {
+	public static final TFTPFileInfo MISSING = new TFTPFileInfo(false, false, 0, 0, false, false);
+	private boolean exists; // true if the file exists
+	private boolean directory; // true if the file is a directory
+	private long length; // length of the file in bytes, -1 for an upload that has not sent its length
+	private long lastModified; // modification time of the file in milliseconds
+	private boolean readable; // true if the server may read the file
+	private boolean writable; // true if the server may write the file
+
+	/**
+	 * Constructor
+	 * 
+	 * @param exists
+	 * @param directory
+	 * @param length
+	 * @param lastModified
+	 * @param readable
+	 * @param writable
+	 */
+	TFTPFileInfo(boolean exists, boolean directory, long length, long lastModified, boolean readable,
+			boolean writable) {
+		this.exists = exists;
+		this.directory = directory;
+		this.length = length;
+		this.lastModified = lastModified;
+		this.readable = readable;
+		this.writable = writable;
+	}
+
+	/**
+	 * Read the attributes of the file from the disk
+	 * 
+	 * @param path
+	 * @return TFTPFileInfo, MISSING if the file does not exist
+	 */
+	public static TFTPFileInfo read(Path path) {
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			return new TFTPFileInfo(true, attributes.isDirectory(), attributes.size(),
+					attributes.lastModifiedTime().toMillis(), Files.isReadable(path), Files.isWritable(path));
+		} catch (IOException e) { // the file does not exist, or cannot be accessed
+			return MISSING;
+		}
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return exists
+	 */
+	public boolean exists() {
+		return exists;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return directory
+	 */
+	public boolean isDirectory() {
+		return directory;
+	}
+
+	/**
+	 * Check if the file is a normal file that exists
+	 * 
+	 * @return true if the file is a normal file, false otherwise
+	 */
+	public boolean isFile() {
+		return exists && !directory;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return length
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return lastModified
+	 */
+	public long lastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return readable
+	 */
+	public boolean canRead() {
+		return readable;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return writable
+	 */
+	public boolean canWrite() {
+		return writable;
+	}
+}
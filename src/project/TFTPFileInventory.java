@@ -0,0 +1,281 @@
+package project;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Inventory of the files in the served directory and its subdirectories,
+ * with the attributes of each file(see TFTPFileInfo). The inventory is built
+ * when the server starts, the directories are listed in parallel, and is kept
+ * current by a thread that watches every directory for created, deleted and
+ * modified files. Requests for files in the tree are checked from memory
+ * instead of with several system calls each.
+ * 
+ * A file is only answered from memory when its directory has been listed.
+ * Files outside the tree, below a directory that could not be listed or
+ * linked into the tree, and all files while the inventory is rebuilt after
+ * lost events, are not covered, and are checked on the disk instead.
+ * The upload staging directory is neither listed nor watched, its files
+ * are hidden until they are published.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPFileInventory extends Thread {
+	private Path root; // served directory
+	private Map<Path, TFTPFileInfo> files; // every file and directory in the tree to its attributes
+	private Set<Path> directories; // directories that have been listed
+	private Map<WatchKey, Path> watchKeys; // watch key of each watched directory to the directory
+	private WatchService watchService; // service that reports the changed files
+	private volatile boolean valid; // false while the inventory is rebuilt
+	private AtomicLong numHits; // number of files checked from memory
+	private AtomicLong numFallbacks; // number of files that are not covered by the inventory
+	private long buildTime; // time in milliseconds the last build took
+
+	/**
+	 * Task that lists a directory, and lists its subdirectories with subtasks
+	 */
+	private class ListTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private Path directory; // directory that is listed
+
+		/**
+		 * Constructor
+		 * 
+		 * @param directory
+		 */
+		ListTask(Path directory) {
+			this.directory = directory;
+		}
+
+		/**
+		 * List the directory, the directory is watched before it is listed so
+		 * that no change is missed
+		 */
+		@Override
+		protected void compute() {
+			try {
+				watchKeys.put(directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY), directory);
+			} catch (IOException | ClosedWatchServiceException e) { // the files are checked on the disk
+				return;
+			}
+			List<ListTask> subtasks = new ArrayList<>();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+				for (Path path : stream) {
+					if (isStaging(path)) // uploads are not served until they are published
+						continue;
+					TFTPFileInfo info = TFTPFileInfo.read(path);
+					if (!info.exists())
+						continue;
+					files.put(path, info);
+					if (info.isDirectory() && !Files.isSymbolicLink(path)) // links may form cycles
+						subtasks.add(new ListTask(path));
+				}
+			} catch (IOException e) { // the files are checked on the disk
+				return;
+			}
+			directories.add(directory);
+			invokeAll(subtasks);
+		}
+	}
+
+	/**
+	 * Constructor, builds the inventory
+	 * 
+	 * @param folder - served directory
+	 * @throws IOException
+	 */
+	TFTPFileInventory(String folder) throws IOException {
+		super("TFTPFileInventory");
+		this.root = Paths.get(folder).toAbsolutePath().normalize();
+		this.files = new ConcurrentHashMap<>();
+		this.directories = ConcurrentHashMap.newKeySet();
+		this.watchKeys = new ConcurrentHashMap<>();
+		this.watchService = FileSystems.getDefault().newWatchService();
+		this.numHits = new AtomicLong();
+		this.numFallbacks = new AtomicLong();
+		setDaemon(true); // the server does not wait for the watcher when it stops
+		build();
+	}
+
+	/**
+	 * List the whole tree
+	 */
+	private void build() {
+		long start = System.currentTimeMillis();
+		files.put(root, TFTPFileInfo.read(root));
+		ForkJoinPool.commonPool().invoke(new ListTask(root));
+		buildTime = System.currentTimeMillis() - start;
+		valid = true;
+	}
+
+	/**
+	 * Get the path that identifies the file in the inventory
+	 * 
+	 * @param filePath
+	 * @return path
+	 */
+	public static Path toPath(String filePath) {
+		return Paths.get(filePath).toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Check if the path is the upload staging directory, which is neither
+	 * listed nor watched
+	 * 
+	 * @param path
+	 * @return true if the path is the staging directory
+	 */
+	private static boolean isStaging(Path path) {
+		return path.getFileName().toString().equals(TFTPUploadStaging.DIRECTORY_NAME);
+	}
+
+	/**
+	 * Get the attributes of the file from memory
+	 * 
+	 * @param path - path returned by toPath
+	 * @return TFTPFileInfo, MISSING if the file does not exist, or null if the
+	 *         file is not covered by the inventory
+	 */
+	public TFTPFileInfo lookup(Path path) {
+		TFTPFileInfo info = null;
+		if (valid) {
+			if (path.equals(root))
+				info = directories.contains(root) ? files.get(root) : null;
+			else if (path.getParent() != null && directories.contains(path.getParent())) {
+				info = files.get(path);
+				if (info == null)
+					info = TFTPFileInfo.MISSING;
+			}
+		}
+		if (info != null)
+			numHits.incrementAndGet();
+		else
+			numFallbacks.incrementAndGet();
+		return info;
+	}
+
+	/**
+	 * Get the names of the files in the directory from memory
+	 * 
+	 * @param path - path returned by toPath
+	 * @return names, or null if the directory has not been listed
+	 */
+	public List<String> list(Path path) {
+		if (!valid || !directories.contains(path))
+			return null;
+		List<String> names = new ArrayList<>();
+		for (Path file : files.keySet())
+			if (path.equals(file.getParent()))
+				names.add(file.getFileName().toString());
+		Collections.sort(names);
+		return names;
+	}
+
+	/**
+	 * Read the attributes of the file from the disk again, called when the
+	 * file has changed. A new directory is listed.
+	 * 
+	 * @param path - path returned by toPath
+	 */
+	public void refresh(Path path) {
+		if (!path.startsWith(root) || isStaging(path))
+			return;
+		TFTPFileInfo info = TFTPFileInfo.read(path);
+		if (!info.exists()) {
+			remove(path);
+			return;
+		}
+		files.put(path, info);
+		if (info.isDirectory() && !directories.contains(path) && !Files.isSymbolicLink(path))
+			ForkJoinPool.commonPool().invoke(new ListTask(path));
+	}
+
+	/**
+	 * Remove the file, and all files below it if it is a directory
+	 * 
+	 * @param path
+	 */
+	private void remove(Path path) {
+		TFTPFileInfo info = files.remove(path);
+		if (info == null || !info.isDirectory())
+			return;
+		directories.remove(path);
+		Iterator<Path> it = files.keySet().iterator();
+		while (it.hasNext())
+			if (it.next().startsWith(path))
+				it.remove();
+		it = directories.iterator();
+		while (it.hasNext())
+			if (it.next().startsWith(path))
+				it.remove();
+	}
+
+	/**
+	 * Stop watching, the thread ends
+	 */
+	public void close() {
+		try {
+			watchService.close();
+		} catch (IOException e) { }
+	}
+
+	/**
+	 * Override run method, keep the inventory current
+	 */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				Path directory = watchKeys.get(key);
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) { // events have been lost
+						valid = false;
+						files.clear();
+						directories.clear();
+						build();
+					} else if (directory != null)
+						refresh(directory.resolve((Path) event.context()));
+				}
+				if (!key.reset()) { // the directory has been deleted
+					watchKeys.remove(key);
+					if (directory != null)
+						remove(directory);
+				}
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			// the server is shutting down
+		}
+	}
+
+	/**
+	 * toString method, used for printing
+	 */
+	@Override
+	public String toString() {
+		return "File inventory: " + files.size() + " files in " + directories.size() + " directories, built in "
+				+ buildTime + "ms\n"
+				+ "File inventory lookups: " + numHits + " from memory, " + numFallbacks + " on the disk\n";
+	}
+}
@@ -0,0 +1,99 @@
+package project;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+
+/**
+ * Storage of the files of the served directory on the disk, the default
+ * storage. The attributes of the files come from the file inventory when it
+ * covers them, the blocks are read through the block cache and the shared
+ * open and mapped files, and an upload is published by renaming its staged
+ * file, which is atomic since the staging directory is in the served
+ * directory.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPFileSystemStorage implements TFTPStorage {
+	private TFTPFileInventory inventory; // files of the served directory, null if disabled
+	private TFTPBlockCache blockCache; // blocks of the files sent, null if the cache is disabled
+	private TFTPMappedFiles mappedFiles; // open and mapped files, shared by the transfers
+
+	/**
+	 * Constructor
+	 * 
+	 * @param inventory - null if disabled
+	 * @param blockCache - null if disabled
+	 * @param mappedFiles
+	 */
+	TFTPFileSystemStorage(TFTPFileInventory inventory, TFTPBlockCache blockCache, TFTPMappedFiles mappedFiles) {
+		this.inventory = inventory;
+		this.blockCache = blockCache;
+		this.mappedFiles = mappedFiles;
+	}
+
+	/**
+	 * Get the attributes of the file, from the inventory if it covers the file
+	 */
+	@Override
+	public TFTPFileInfo getFileInfo(Path path) {
+		TFTPFileInfo info = lookup(path);
+		return info != null ? info : TFTPFileInfo.read(path);
+	}
+
+	/**
+	 * Get the attributes of the file from the inventory
+	 */
+	@Override
+	public TFTPFileInfo lookup(Path path) {
+		return inventory == null ? null : inventory.lookup(path);
+	}
+
+	/**
+	 * Open a block reader for the file, the blocks are looked for in the block
+	 * cache before the file is read
+	 */
+	@Override
+	public TFTPBlockReader openReader(Path path, TFTPTransferOptions options) throws IOException {
+		int blockSize = options.getBlockSize();
+		if (blockCache == null)
+			return mappedFiles.openReader(path.toFile(), blockSize);
+		return new TFTPCachedBlockReader(blockCache, mappedFiles, path.toFile(), blockSize);
+	}
+
+	/**
+	 * Get the names of the files in the directory from the inventory
+	 */
+	@Override
+	public List<String> list(Path directory) {
+		return inventory == null ? null : inventory.list(directory);
+	}
+
+	/**
+	 * Rename the staged file to its name, with a plain move if the staging
+	 * directory is on another file system
+	 */
+	@Override
+	public void publish(Path stagedFile, Path path) throws IOException {
+		if (Files.exists(path)) // created outside of the server
+			throw new FileAlreadyExistsException(path.toString());
+		try {
+			Files.move(stagedFile, path, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) { // the file is on another file system
+			Files.move(stagedFile, path);
+		}
+	}
+
+	/**
+	 * toString method, used for printing
+	 */
+	@Override
+	public String toString() {
+		return "Storage: file system\n";
+	}
+}
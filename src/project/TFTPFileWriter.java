@@ -0,0 +1,367 @@
+package project;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * Writer of a file uploaded by a client, the data packets are copied into
+ * batches that are written by the write-behind stage(see TFTPWriteBehind).
+ * A write that fails is reported by the next write, or when the file is
+ * finished. The batches of a file are written in order, and their buffers
+ * are reused for the next batches. The file must be empty when the writer
+ * is opened, so that the blocks of zeros skipped in sparse mode are holes.
+ * The upload of the file is told how far the file has been written, for the
+ * readers that read the file while it is uploaded.
+ * 
+ * A writer opened with a wake up never waits for the stage: a full batch
+ * that does not fit in the budget is held by the writer, the transfer stops
+ * writing until it is woken up and the held batches have been queued with
+ * resume, and the file is finished on the thread of the stage.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPFileWriter {
+	private TFTPWriteBehind stage; // stage that writes the batches
+	private RandomAccessFile fs; // file that is being written
+	private TFTPUploadStaging.Upload upload; // upload of the file, null if there is none
+	private FileChannel channel; // channel of the file
+	private ByteBuffer batch; // batch that is being filled, null if there is none
+	private long position; // position in the file of the next byte
+	private ArrayDeque<ByteBuffer> freeBuffers; // buffers of the written batches
+	private int numPending; // number of batches queued but not written yet
+	private IOException error; // exception of a failed write, null otherwise
+	private long bytesSinceSync; // number of bytes written since the file was last flushed to the disk
+	private Runnable wakeUp; // wakes up the transfer once a held batch may fit, null for a writer that waits
+	private ArrayDeque<TFTPWriteBehind.Batch> heldBatches; // batches that did not fit in the budget yet, in order
+
+	/**
+	 * Constructor
+	 * 
+	 * @param stage
+	 * @param fs - file that is written from the start
+	 * @param upload - null if there is none
+	 * @param wakeUp - null for a writer that waits for the stage
+	 */
+	TFTPFileWriter(TFTPWriteBehind stage, RandomAccessFile fs, TFTPUploadStaging.Upload upload, Runnable wakeUp) {
+		this.stage = stage;
+		this.fs = fs;
+		this.upload = upload;
+		this.channel = fs.getChannel();
+		this.freeBuffers = new ArrayDeque<>();
+		this.wakeUp = wakeUp;
+		this.heldBatches = new ArrayDeque<>();
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return position, the number of bytes written to the file so far
+	 */
+	public long getPosition() {
+		return position + (batch == null ? 0 : batch.position());
+	}
+
+	/**
+	 * Copy the file data into the batch, the batch is queued once it is full,
+	 * or at once if a reader is waiting for the file
+	 * 
+	 * @param fileData - file data between the position and the limit, not modified
+	 * @throws IOException - if an earlier write has failed
+	 */
+	public void write(ByteBuffer fileData) throws IOException {
+		checkError();
+		ByteBuffer data = fileData.duplicate();
+		while (data.hasRemaining()) {
+			if (batch == null)
+				batch = takeBuffer();
+			int n = Math.min(data.remaining(), batch.remaining());
+			int limit = data.limit();
+			data.limit(data.position() + n);
+			batch.put(data);
+			data.limit(limit);
+			if (!batch.hasRemaining())
+				flush();
+		}
+		if (upload != null && batch != null && upload.hasWaitingReaders())
+			flush();
+	}
+
+	/**
+	 * Queue the batch that is being filled
+	 * 
+	 * @throws IOException
+	 */
+	private void flush() throws IOException {
+		if (batch == null || batch.position() == 0)
+			return;
+		batch.flip();
+		int length = batch.remaining();
+		queue(new TFTPWriteBehind.Batch(this, batch, position));
+		position += length;
+		batch = null;
+	}
+
+	/**
+	 * Queue the batch in the stage, a writer that does not wait holds the
+	 * batch if it does not fit
+	 * 
+	 * @param batch
+	 * @throws IOException
+	 */
+	private void queue(TFTPWriteBehind.Batch batch) throws IOException {
+		if (wakeUp != null) {
+			heldBatches.add(batch); // queued after the batches that are already held
+			resume();
+			return;
+		}
+		synchronized (this) {
+			++numPending;
+		}
+		stage.submit(batch);
+	}
+
+	/**
+	 * Check if the writer holds batches that did not fit in the budget, the
+	 * transfer must not write until they have been queued
+	 * 
+	 * @return true if batches are held, false otherwise
+	 */
+	public boolean isHeld() {
+		return !heldBatches.isEmpty();
+	}
+
+	/**
+	 * Queue the held batches that fit in the budget now, called once the
+	 * transfer has been woken up
+	 * 
+	 * @return true if all held batches have been queued, false otherwise
+	 */
+	public boolean resume() {
+		while (!heldBatches.isEmpty()) {
+			synchronized (this) {
+				++numPending; // before the stage may write it
+			}
+			if (!stage.offer(heldBatches.peek(), wakeUp)) {
+				synchronized (this) {
+					--numPending;
+				}
+				return false;
+			}
+			heldBatches.remove();
+		}
+		return true;
+	}
+
+	/**
+	 * Write all file data, set the length of the file and flush the file to
+	 * the disk if the sync policy asks for it. Waits until the file has been
+	 * written.
+	 * 
+	 * @throws IOException - if a write has failed
+	 */
+	public void finish() throws IOException {
+		flush();
+		awaitPending();
+		checkError();
+		completeFile();
+	}
+
+	/**
+	 * Write all file data and finish the file on the thread of the stage,
+	 * used by a writer that does not wait. The completion is run on the
+	 * thread of the stage once the file has been finished, or once a write
+	 * has failed(see checkError).
+	 * 
+	 * @param completion
+	 * @throws IOException - if a write has failed
+	 */
+	public void finish(Runnable completion) throws IOException {
+		checkError();
+		flush();
+		queue(new TFTPWriteBehind.Batch(this, completion));
+	}
+
+	/**
+	 * Finish the file once all its batches have been written, called by the
+	 * stage for a writer that does not wait
+	 * 
+	 * @param completion
+	 */
+	void complete(Runnable completion) {
+		try {
+			checkError();
+			completeFile();
+		} catch (IOException e) {
+			synchronized (this) {
+				error = e;
+			}
+		}
+		synchronized (this) {
+			--numPending;
+			notifyAll();
+		}
+		completion.run();
+	}
+
+	/**
+	 * Set the length of the file that has been written and flush the file to
+	 * the disk if the sync policy asks for it
+	 * 
+	 * @throws IOException
+	 */
+	private void completeFile() throws IOException {
+		fs.setLength(position); // the client may have sent less than the transfer size
+		if (upload != null)
+			upload.completed(position);
+		if (stage.getSyncInterval() != TFTPWriteBehind.SYNC_NONE) {
+			channel.force(false);
+			stage.synced();
+		}
+	}
+
+	/**
+	 * Drop the batch that is being filled and wait until the queued batches
+	 * have been written, so that the file can be closed. A writer that does
+	 * not wait drops its held batches and does not wait, the batches still
+	 * queued fail once the file has been closed.
+	 */
+	public void abort() {
+		batch = null;
+		heldBatches.clear();
+		if (wakeUp != null)
+			return;
+		try {
+			awaitPending();
+		} catch (IOException e) { }
+	}
+
+	/**
+	 * Wait until all queued batches have been written
+	 * 
+	 * @throws IOException
+	 */
+	private synchronized void awaitPending() throws IOException {
+		try {
+			while (numPending > 0)
+				wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the disk");
+		}
+	}
+
+	/**
+	 * Throw the exception of a failed write
+	 * 
+	 * @throws IOException
+	 */
+	synchronized void checkError() throws IOException {
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Take a free buffer for a new batch
+	 * 
+	 * @return buffer, cleared
+	 */
+	private synchronized ByteBuffer takeBuffer() {
+		ByteBuffer buffer = freeBuffers.poll();
+		return buffer != null ? buffer : ByteBuffer.allocate(stage.getBatchSize());
+	}
+
+	/**
+	 * Write a batch, called by the write-behind stage
+	 * 
+	 * @param buffer
+	 * @param start - position of the first byte in the file
+	 * @return true if the file has been flushed to the disk
+	 */
+	boolean write(ByteBuffer buffer, long start) {
+		boolean synced = false;
+		long end = start + buffer.remaining();
+		try {
+			if (error == null) { // the batches after a failed write are dropped
+				if (stage.isSparse())
+					writeSparse(buffer, start);
+				else
+					writeRange(buffer, start, buffer.position(), buffer.limit());
+				bytesSinceSync += buffer.position();
+				if (stage.getSyncInterval() > 0 && bytesSinceSync >= stage.getSyncInterval()) {
+					channel.force(false);
+					bytesSinceSync = 0;
+					synced = true;
+				}
+				if (upload != null)
+					upload.committed(end);
+			}
+		} catch (IOException e) {
+			synchronized (this) {
+				error = e;
+			}
+		} finally {
+			synchronized (this) {
+				buffer.clear();
+				freeBuffers.push(buffer);
+				--numPending;
+				notifyAll();
+			}
+		}
+		return synced;
+	}
+
+	/**
+	 * Write a batch, the blocks of the file system that only hold zeros are
+	 * skipped. The length of the file is set when the file is finished, so a
+	 * file that ends in zeros keeps its length.
+	 * 
+	 * @param buffer
+	 * @param start - position of the first byte in the file
+	 * @throws IOException
+	 */
+	private void writeSparse(ByteBuffer buffer, long start) throws IOException {
+		ByteBuffer block = buffer.duplicate();
+		int unwritten = buffer.position(); // first byte that is neither written nor skipped
+		int blockStart = buffer.position();
+		while (blockStart < buffer.limit()) {
+			// the blocks are aligned to the blocks of the file system, not to the batch
+			int blockEnd = (int) Math.min(buffer.limit(),
+					blockStart + TFTPSparseFiles.HOLE_SIZE - (start + blockStart) % TFTPSparseFiles.HOLE_SIZE);
+			block.limit(blockEnd);
+			block.position(blockStart);
+			if (blockEnd - blockStart == TFTPSparseFiles.HOLE_SIZE && TFTPSparseFiles.isZero(block)) {
+				writeRange(buffer, start, unwritten, blockStart);
+				stage.skipped(TFTPSparseFiles.HOLE_SIZE);
+				unwritten = blockEnd;
+			}
+			blockStart = blockEnd;
+		}
+		writeRange(buffer, start, unwritten, buffer.limit());
+		buffer.position(buffer.limit());
+	}
+
+	/**
+	 * Write a range of a batch
+	 * 
+	 * @param buffer
+	 * @param start - position of the first byte of the batch in the file
+	 * @param from - index of the first byte of the range in the batch
+	 * @param to - index after the last byte of the range in the batch
+	 * @throws IOException
+	 */
+	private void writeRange(ByteBuffer buffer, long start, int from, int to) throws IOException {
+		if (from == to)
+			return;
+		ByteBuffer range = buffer.duplicate();
+		range.limit(to);
+		range.position(from);
+		while (range.hasRemaining())
+			channel.write(range, start + range.position());
+		buffer.position(to);
+	}
+}
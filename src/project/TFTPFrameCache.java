@@ -0,0 +1,95 @@
+package project;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared table of pre-encoded packets(frames). An ack packet is completely
+ * determined by its block number, so the frames of all 65536 ack packets are
+ * encoded once when the class is loaded. Error packets are encoded the first
+ * time an error code and message is sent and the encoding is interned, so
+ * that answering a flood of stray packets or requests for a missing file
+ * does not encode the same message again. The frames are never modified and
+ * are shared by all threads.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPFrameCache {
+	private static final int ACK_LENGTH = 4; // length of an ack frame
+	private static final int MAX_ERROR_FRAMES = 256; // most error messages interned for each error code
+	private static final byte[] ACK_FRAMES = createAckFrames(); // ack frame of block n at offset n * ACK_LENGTH
+	// interned error frames by error code, then by error message
+	private static final ConcurrentHashMap<String, byte[]>[] ERROR_FRAMES = createErrorFrames();
+
+	/**
+	 * Constructor, the cache only has static methods
+	 */
+	private TFTPFrameCache() { }
+
+	/**
+	 * Encode the ack frames of all block numbers into one array
+	 * 
+	 * @return ackFrames
+	 */
+	private static byte[] createAckFrames() {
+		ByteBuffer frames = ByteBuffer.allocate((TFTPPacket.MAX_BLOCK_NUMBER + 1) * ACK_LENGTH);
+		for (int blockNumber = 0; blockNumber <= TFTPPacket.MAX_BLOCK_NUMBER; ++blockNumber)
+			new TFTPAckPacket(blockNumber, null, 0).encodeTo(frames);
+		return frames.array();
+	}
+
+	/**
+	 * Create the empty maps of interned error frames
+	 * 
+	 * @return errorFrames
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static ConcurrentHashMap<String, byte[]>[] createErrorFrames() {
+		TFTPErrorType[] errorTypes = TFTPErrorType.values();
+		ConcurrentHashMap<String, byte[]>[] errorFrames = new ConcurrentHashMap[errorTypes.length];
+		for (TFTPErrorType errorType : errorTypes)
+			errorFrames[errorType.getErrorCode()] = new ConcurrentHashMap<>();
+		return errorFrames;
+	}
+
+	/**
+	 * Getter the array that holds the ack frames
+	 * 
+	 * @return ackFrames, must not be modified
+	 */
+	public static byte[] getAckFrames() {
+		return ACK_FRAMES;
+	}
+
+	/**
+	 * Get the offset of the ack frame of the given block number in the array
+	 * returned by getAckFrames
+	 * 
+	 * @param blockNumber
+	 * @return offset
+	 */
+	public static int getAckFrameOffset(int blockNumber) {
+		return blockNumber * ACK_LENGTH;
+	}
+
+	/**
+	 * Get the interned frame of the error packet, the packet is encoded and
+	 * interned the first time its error code and message is sent. Once many
+	 * messages of the error code have been interned(i.e. file not found
+	 * errors for many filenames), new messages are no longer interned.
+	 * 
+	 * @param packet
+	 * @return frame, must not be modified, or null if the message is not interned
+	 */
+	public static byte[] getErrorFrame(TFTPErrorPacket packet) {
+		ConcurrentHashMap<String, byte[]> frames = ERROR_FRAMES[packet.getErrorCode()];
+		byte[] frame = frames.get(packet.getErrorMsg());
+		if (frame != null || frames.size() >= MAX_ERROR_FRAMES)
+			return frame;
+		ByteBuffer buffer = ByteBuffer.allocate(packet.getEncodedLength());
+		packet.encodeTo(buffer);
+		frame = frames.putIfAbsent(packet.getErrorMsg(), buffer.array());
+		return frame != null ? frame : buffer.array();
+	}
+}
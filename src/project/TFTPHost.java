@@ -89,6 +89,15 @@ public abstract class TFTPHost {
 		System.out.println("The mode has been switched to " + this.currentMode + "\n");
 	}
 
+	/**
+	 * Check if detailed information should be printed
+	 * 
+	 * @return true in verbose mode, false otherwise
+	 */
+	protected boolean isVerbose() {
+		return currentMode == Mode.VERBOSE;
+	}
+
 	/**
 	 * print information stored in TFTPPacket
 	 * 
@@ -97,6 +106,27 @@ public abstract class TFTPHost {
 	 * @throws IOException
 	 */
 	protected void printInformation(String info, TFTPPacket packet) throws IOException {
+		printPacket(info, packet);
+	}
+
+	/**
+	 * print information stored in a packet received into a TFTPPacketView
+	 * 
+	 * @param info
+	 * @param packet
+	 * @throws IOException
+	 */
+	protected void printInformation(String info, TFTPPacketView packet) throws IOException {
+		printPacket(info, packet);
+	}
+
+	/**
+	 * print the information, and the packet in verbose mode
+	 * 
+	 * @param info
+	 * @param packet - TFTPPacket or TFTPPacketView
+	 */
+	private void printPacket(String info, Object packet) {
 		System.out.println(info);
 		switch (this.currentMode) {
 		case QUITE: // don't print detailed information in QUITE mode
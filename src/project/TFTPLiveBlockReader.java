@@ -0,0 +1,86 @@
+package project;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Block reader of a file that is still being uploaded(pass-through mode).
+ * The blocks are read from the staged file of the upload as soon as the
+ * write-behind stage has written them, a block that has not been written yet
+ * waits for the upload. The last block is the block that ends the file once
+ * the upload is complete, and reading fails with a FileNotFoundException if
+ * the upload is aborted.
+ * 
+ * The staged file is opened by the reader, the open channel keeps reading
+ * the file after the upload has been published(renamed).
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPLiveBlockReader implements TFTPBlockReader {
+	private TFTPUploadStaging.Upload upload; // upload that the file is read from
+	private FileChannel channel; // channel of the staged file
+	private ByteBuffer buffer; // buffer that each block is read into
+	private int blockSize; // number of bytes in each block
+
+	/**
+	 * Constructor
+	 * 
+	 * @param upload
+	 * @param blockSize
+	 * @throws IOException - if the staged file no longer exists
+	 */
+	TFTPLiveBlockReader(TFTPUploadStaging.Upload upload, int blockSize) throws IOException {
+		this.upload = upload;
+		this.channel = FileChannel.open(upload.getStagedFile().toPath(), StandardOpenOption.READ);
+		this.buffer = ByteBuffer.allocate(blockSize);
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Check if the given block can be read without waiting for the upload,
+	 * used by the sessions that must not block
+	 * 
+	 * @param block
+	 * @param wakeUp - called once the upload has progressed if the block cannot be read yet
+	 * @return true if the block can be read, false otherwise
+	 */
+	public boolean isAvailable(long block, Runnable wakeUp) {
+		return upload.isAvailable(block * blockSize, wakeUp);
+	}
+
+	/**
+	 * Read the file data of the given block, waits until the upload has
+	 * written the block
+	 * 
+	 * @param block
+	 * @return buffer with the file data, valid until the next block is read
+	 * @throws FileNotFoundException - if the upload has been aborted
+	 * @throws IOException
+	 */
+	@Override
+	public ByteBuffer readBlock(long block) throws IOException {
+		long start = (block - 1) * blockSize;
+		long available = upload.await(start + blockSize);
+		buffer.clear();
+		buffer.limit((int) Math.max(0, Math.min(blockSize, available - start)));
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, start + buffer.position()) < 0) { // a hole at the end of a sparse file
+				while (buffer.hasRemaining())
+					buffer.put((byte) 0);
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Close the staged file
+	 */
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,60 @@
+package project;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Block reader that reads the blocks as slices of a memory mapping of the
+ * file, the file data is never copied into the heap. The mapping is shared
+ * with the other transfers of the file(see TFTPMappedFiles).
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPMappedBlockReader implements TFTPBlockReader {
+	private TFTPMappedFiles mappedFiles; // mappings that the mapping is released to
+	private TFTPMappedFiles.Mapping mapping; // shared mapping of the file, null once the reader is closed
+	private ByteBuffer view; // view of the mapping with its own position and limit
+	private int blockSize; // number of bytes in each block
+
+	/**
+	 * Constructor
+	 * 
+	 * @param mappedFiles
+	 * @param mapping
+	 * @param blockSize
+	 */
+	TFTPMappedBlockReader(TFTPMappedFiles mappedFiles, TFTPMappedFiles.Mapping mapping, int blockSize) {
+		this.mappedFiles = mappedFiles;
+		this.mapping = mapping;
+		this.view = mapping.getBuffer().duplicate();
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Read the file data of the given block
+	 * 
+	 * @param block
+	 * @return view of the mapping, positioned on the block and valid until the
+	 *         next block is read
+	 */
+	@Override
+	public ByteBuffer readBlock(long block) {
+		long start = Math.min((block - 1) * blockSize, view.capacity());
+		view.clear();
+		view.limit((int) Math.min(start + blockSize, view.capacity()));
+		view.position((int) start);
+		return view;
+	}
+
+	/**
+	 * Release the mapping, the reader must not be used any more
+	 */
+	@Override
+	public void close() {
+		if (mapping == null)
+			return;
+		mappedFiles.release(mapping);
+		mapping = null;
+		view = null;
+	}
+}
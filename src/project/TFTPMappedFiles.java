@@ -0,0 +1,174 @@
+package project;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Memory mappings of the files that are being sent. A file that is read by
+ * several transfers at the same time is mapped only once, the mapping counts
+ * the transfers that are using it and is unmapped when the last one has
+ * finished. Files smaller than the threshold are read with plain reads,
+ * since mapping them does not pay off, the blocks after the block being
+ * sent are read ahead in the background.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPMappedFiles {
+	private long threshold; // smallest file that is mapped
+	private int readAhead; // largest number of blocks read ahead of a file that is not mapped, 0 for none
+	private TFTPFileHandles handles; // open files shared by the transfers
+	private Map<String, Mapping> mappings; // path of the file to its current mapping
+	private long numMapped; // number of times a file has been mapped, from the start of the server
+	private long numShared; // number of times a mapping has been shared with another transfer
+
+	/**
+	 * Mapping of one file, shared by the transfers that read the file
+	 */
+	static class Mapping {
+		private String path; // path of the file
+		private long length; // length of the file when it was mapped
+		private long lastModified; // modification time of the file when it was mapped
+		private MappedByteBuffer buffer; // mapping of the whole file
+		private int numReferences; // number of transfers using the mapping
+
+		/**
+		 * Constructor
+		 * 
+		 * @param path
+		 * @param length
+		 * @param lastModified
+		 * @param buffer
+		 */
+		Mapping(String path, long length, long lastModified, MappedByteBuffer buffer) {
+			this.path = path;
+			this.length = length;
+			this.lastModified = lastModified;
+			this.buffer = buffer;
+		}
+
+		/**
+		 * Getter
+		 * 
+		 * @return buffer, shared by all transfers(use a duplicate to read it)
+		 */
+		MappedByteBuffer getBuffer() {
+			return buffer;
+		}
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param threshold - smallest file that is mapped
+	 * @param readAhead - largest number of blocks read ahead of a file that is not mapped
+	 * @param handles - open files shared by the transfers
+	 */
+	TFTPMappedFiles(long threshold, int readAhead, TFTPFileHandles handles) {
+		this.threshold = threshold;
+		this.readAhead = readAhead;
+		this.handles = handles;
+		this.mappings = new HashMap<>();
+	}
+
+	/**
+	 * Open a block reader for the file, the file is mapped if it is large
+	 * enough and the mapping is shared with the other transfers of the file
+	 * 
+	 * @param file
+	 * @param blockSize
+	 * @return TFTPBlockReader, must be closed when the transfer has finished
+	 * @throws IOException
+	 */
+	public TFTPBlockReader openReader(File file, int blockSize) throws IOException {
+		long length = file.length();
+		// a mapping cannot be larger than Integer.MAX_VALUE bytes
+		if (length < threshold || length > Integer.MAX_VALUE) {
+			TFTPFileHandles.Handle handle = handles.acquire(file);
+			return readAhead > 0 ? new TFTPReadAheadBlockReader(handles, handle, blockSize, readAhead)
+					: new TFTPFileBlockReader(handles, handle, blockSize);
+		}
+		return new TFTPMappedBlockReader(this, acquire(file), blockSize);
+	}
+
+	/**
+	 * Get the mapping of the file, the file is mapped again if it has changed
+	 * since it was mapped
+	 * 
+	 * @param file
+	 * @return mapping
+	 * @throws IOException
+	 */
+	private synchronized Mapping acquire(File file) throws IOException {
+		String path = file.getCanonicalPath();
+		Mapping mapping = mappings.get(path);
+		if (mapping != null && mapping.length == file.length() && mapping.lastModified == file.lastModified()) {
+			++numShared;
+		} else { // the transfers still reading the old mapping keep it until they finish
+			TFTPFileHandles.Handle handle = handles.acquire(file); // the file is mapped through the shared handle
+			try {
+				FileChannel channel = handle.getChannel();
+				long length = channel.size();
+				mapping = new Mapping(path, length, file.lastModified(),
+						channel.map(FileChannel.MapMode.READ_ONLY, 0, length));
+			} finally {
+				handles.release(handle);
+			}
+			mappings.put(path, mapping);
+			++numMapped;
+		}
+		++mapping.numReferences;
+		return mapping;
+	}
+
+	/**
+	 * A transfer has finished reading the mapping, the file is unmapped once
+	 * no transfer is using it
+	 * 
+	 * @param mapping
+	 */
+	synchronized void release(Mapping mapping) {
+		if (--mapping.numReferences > 0)
+			return;
+		if (mappings.get(mapping.path) == mapping)
+			mappings.remove(mapping.path);
+		unmap(mapping.buffer);
+		mapping.buffer = null;
+	}
+
+	/**
+	 * Unmap the buffer at once instead of waiting for the garbage collector,
+	 * which may keep many large files mapped. Java has no public method for
+	 * this, so the cleaner of the buffer is called through sun.misc.Unsafe.
+	 * 
+	 * @param buffer - must not be used after it has been unmapped
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(field.get(null), buffer);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			// the buffer is unmapped by the garbage collector instead
+		}
+	}
+
+	/**
+	 * toString method, used for printing
+	 */
+	@Override
+	public synchronized String toString() {
+		int numReferences = 0;
+		for (Mapping mapping : mappings.values())
+			numReferences += mapping.numReferences;
+		return "Mapped files: " + mappings.size() + " open, read by " + numReferences + " transfers\n"
+				+ "File mappings: " + numMapped + " (shared: " + numShared + ")\n";
+	}
+}
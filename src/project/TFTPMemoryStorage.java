@@ -0,0 +1,216 @@
+package project;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Storage that keeps the served files in memory(i.e. boot images served from
+ * RAM, or tests that should not touch the disk). The files of the served
+ * directory are loaded when the server starts, and uploads are published
+ * into memory, the staged file of an upload is read and deleted. The files
+ * are kept in heap buffers, or in direct buffers off the heap so that large
+ * images do not fill the heap. Files deleted or changed on the disk after
+ * the server has started are not seen.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPMemoryStorage implements TFTPStorage {
+	private Path root; // served directory
+	private boolean direct; // true if the files are kept in direct buffers
+	private ConcurrentHashMap<Path, MemoryFile> files; // path of each file to its content
+	private Set<Path> directories; // directories that hold a file, and the served directory
+	private long startTime; // modification time of the directories
+
+	/**
+	 * File kept in memory
+	 */
+	static class MemoryFile {
+		private ByteBuffer data; // content of the file, never modified
+		private long lastModified; // time the file was loaded or uploaded
+
+		/**
+		 * Constructor
+		 * 
+		 * @param data
+		 * @param lastModified
+		 */
+		MemoryFile(ByteBuffer data, long lastModified) {
+			this.data = data;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * Loads the files of the served directory, the staging directory is skipped
+	 */
+	private class Loader extends SimpleFileVisitor<Path> {
+		/**
+		 * Override preVisitDirectory method
+		 */
+		@Override
+		public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+			if (dir.getFileName().toString().equals(TFTPUploadStaging.DIRECTORY_NAME))
+				return FileVisitResult.SKIP_SUBTREE;
+			return FileVisitResult.CONTINUE;
+		}
+
+		/**
+		 * Override visitFile method
+		 */
+		@Override
+		public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+			if (!attrs.isRegularFile())
+				return FileVisitResult.CONTINUE;
+			try {
+				MemoryFile memoryFile = new MemoryFile(load(file), attrs.lastModifiedTime().toMillis());
+				addDirectories(file);
+				files.put(file, memoryFile);
+			} catch (IOException e) {
+				ThreadLog.print("Memory storage failed to load " + file + ", it is not served");
+			}
+			return FileVisitResult.CONTINUE;
+		}
+
+		/**
+		 * Override visitFileFailed method
+		 */
+		@Override
+		public FileVisitResult visitFileFailed(Path file, IOException e) {
+			return FileVisitResult.CONTINUE;
+		}
+	}
+
+	/**
+	 * Constructor, loads the files of the served directory
+	 * 
+	 * @param root - served directory
+	 * @param direct - true to keep the files in direct buffers
+	 * @throws IOException
+	 */
+	TFTPMemoryStorage(String root, boolean direct) throws IOException {
+		this.root = TFTPFileInventory.toPath(root);
+		this.direct = direct;
+		this.files = new ConcurrentHashMap<>();
+		this.directories = ConcurrentHashMap.newKeySet();
+		this.directories.add(this.root);
+		this.startTime = System.currentTimeMillis();
+		Files.walkFileTree(this.root, new Loader());
+	}
+
+	/**
+	 * Read a whole file into a new buffer
+	 * 
+	 * @param file
+	 * @return buffer, between 0 and the capacity
+	 * @throws IOException - if the file cannot be read or is larger than 2GB
+	 */
+	private ByteBuffer load(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(file + " is too large to be kept in memory");
+			ByteBuffer data = direct ? ByteBuffer.allocateDirect((int) size) : ByteBuffer.allocate((int) size);
+			while (data.hasRemaining())
+				if (channel.read(data) < 0) // the file has been truncated while it was read
+					break;
+			data.flip();
+			return data;
+		}
+	}
+
+	/**
+	 * Add the directories that hold the file, up to the served directory
+	 * 
+	 * @param file
+	 */
+	private void addDirectories(Path file) {
+		Path dir = file.getParent();
+		while (dir != null && dir.startsWith(root) && directories.add(dir)) // stop at a directory that is known
+			dir = dir.getParent();
+	}
+
+	/**
+	 * Get the attributes of the file from memory, the files can always be read
+	 * and written
+	 */
+	@Override
+	public TFTPFileInfo getFileInfo(Path path) {
+		MemoryFile file = files.get(path);
+		if (file != null)
+			return new TFTPFileInfo(true, false, file.data.capacity(), file.lastModified, true, true);
+		if (directories.contains(path))
+			return new TFTPFileInfo(true, true, 0, startTime, true, true);
+		return TFTPFileInfo.MISSING;
+	}
+
+	/**
+	 * Get the attributes of the file from memory
+	 */
+	@Override
+	public TFTPFileInfo lookup(Path path) {
+		return getFileInfo(path);
+	}
+
+	/**
+	 * Open a block reader that reads the file from memory
+	 */
+	@Override
+	public TFTPBlockReader openReader(Path path, TFTPTransferOptions options) throws IOException {
+		MemoryFile file = files.get(path);
+		if (file == null)
+			throw new FileNotFoundException(path + " is not in memory");
+		return new TFTPBufferBlockReader(file.data, options.getBlockSize());
+	}
+
+	/**
+	 * Get the names of the files and directories in the directory
+	 */
+	@Override
+	public List<String> list(Path directory) {
+		TreeSet<String> names = new TreeSet<>();
+		for (Path file : files.keySet())
+			if (file.startsWith(directory) && !file.equals(directory))
+				names.add(directory.relativize(file).getName(0).toString());
+		return new ArrayList<>(names);
+	}
+
+	/**
+	 * Read the staged file into memory and delete it
+	 */
+	@Override
+	public void publish(Path stagedFile, Path path) throws IOException {
+		if (files.containsKey(path))
+			throw new FileAlreadyExistsException(path.toString());
+		MemoryFile memoryFile = new MemoryFile(load(stagedFile), System.currentTimeMillis());
+		addDirectories(path);
+		files.put(path, memoryFile);
+		Files.deleteIfExists(stagedFile);
+	}
+
+	/**
+	 * toString method, used for printing
+	 */
+	@Override
+	public String toString() {
+		long size = 0;
+		for (MemoryFile file : files.values())
+			size += file.data.capacity();
+		return "Storage: " + files.size() + " files in " + (direct ? "direct" : "heap") + " memory, "
+				+ size / 1024 + "KB\n";
+	}
+}
@@ -0,0 +1,151 @@
+package project;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Cache of the files that clients have asked for but that do not exist.
+ * Network boot clients(i.e. PXELINUX) probe a long list of configuration
+ * files before one exists, with the cache the request listener answers the
+ * probes of files that are known to be missing at once, instead of starting
+ * a request handler or session that only finds out that the file does not
+ * exist.
+ * 
+ * The directory of each missing file is watched(see TFTPDirectoryWatcher),
+ * a missing file is removed from the cache as soon as it is created. When
+ * the directory itself does not exist, the closest directory above it that
+ * exists is watched instead. The least recently asked for files are dropped
+ * once the cache holds more files than its capacity.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPMissingFiles {
+	private int capacity; // largest number of missing files in the cache
+	private LinkedHashMap<Path, Boolean> missing; // missing files in least recently asked for order
+	private TFTPDirectoryWatcher watcher; // watches the directories of the missing files
+	private long numHits; // number of requests answered from the cache
+	private long numMisses; // number of requests for files that are not in the cache
+	private long numInvalidated; // number of missing files that have been created
+
+	/**
+	 * Constructor, starts watching
+	 * 
+	 * @param capacity - largest number of missing files in the cache
+	 * @throws IOException
+	 */
+	TFTPMissingFiles(int capacity) throws IOException {
+		this.capacity = capacity;
+		this.missing = new LinkedHashMap<>(16, 0.75f, true);
+		this.watcher = new TFTPDirectoryWatcher(this);
+		this.watcher.start();
+	}
+
+	/**
+	 * Get the path that identifies the file in the cache, the path is not
+	 * resolved on the disk so that the check does not touch the disk
+	 * 
+	 * @param filePath
+	 * @return path
+	 */
+	private static Path toPath(String filePath) {
+		return Paths.get(filePath).toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Check if the file is known to be missing
+	 * 
+	 * @param filePath
+	 * @return true if the file is missing, false if it is not in the cache
+	 */
+	public synchronized boolean isMissing(String filePath) {
+		if (missing.get(toPath(filePath)) != null) {
+			++numHits;
+			return true;
+		}
+		++numMisses;
+		return false;
+	}
+
+	/**
+	 * Add a file that a client has asked for but that does not exist, the
+	 * file is not added if its directory cannot be watched
+	 * 
+	 * @param filePath
+	 */
+	public void add(String filePath) {
+		Path path = toPath(filePath);
+		Path directory = path.getParent();
+		while (directory != null && !Files.isDirectory(directory))
+			directory = directory.getParent();
+		// watch before the file is added, so that a file created from now on is seen
+		if (directory == null || !watcher.watch(directory))
+			return;
+		synchronized (this) {
+			missing.put(path, Boolean.TRUE);
+			Iterator<Path> it = missing.keySet().iterator();
+			while (missing.size() > capacity && it.hasNext()) {
+				it.next();
+				it.remove();
+			}
+		}
+		// the file may have been created before the directory was watched
+		if (Files.exists(path))
+			invalidate(path);
+	}
+
+	/**
+	 * Remove the file, and all missing files below it if it is a directory,
+	 * from the cache. Called when the file has been created, or when the
+	 * directory can no longer be watched.
+	 * 
+	 * @param path
+	 */
+	public synchronized void invalidate(Path path) {
+		Iterator<Path> it = missing.keySet().iterator();
+		while (it.hasNext())
+			if (it.next().startsWith(path)) {
+				it.remove();
+				++numInvalidated;
+			}
+	}
+
+	/**
+	 * A file has been created by the server, i.e. a file written by a client
+	 * 
+	 * @param filePath
+	 */
+	public void created(String filePath) {
+		invalidate(toPath(filePath));
+	}
+
+	/**
+	 * Remove all files from the cache, used when the watcher may have missed
+	 * some created files
+	 */
+	public synchronized void clear() {
+		numInvalidated += missing.size();
+		missing.clear();
+	}
+
+	/**
+	 * Stop watching the directories
+	 */
+	public void close() {
+		watcher.close();
+	}
+
+	/**
+	 * toString method, used for printing
+	 */
+	@Override
+	public synchronized String toString() {
+		return "Missing files: " + missing.size() + " cached, " + watcher.getNumDirectories() + " directories watched\n"
+				+ "Missing file lookups: " + numHits + " answered by the request listener, " + numMisses
+				+ " misses, " + numInvalidated + " invalidated\n";
+	}
+}
@@ -0,0 +1,79 @@
+package project;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Multicast option(RFC 2090), only valid in a RRQ. The client requests it
+ * with an empty value, the server answers with "address,port,mc", the group
+ * that the data packets are sent to and 1 if the client is the master client
+ * that acknowledges them, 0 otherwise. The server sends the option again to
+ * make a client the master client.
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPMulticastOption extends TFTPOption {
+	public static final String NAME = "multicast"; // option name
+
+	/**
+	 * Constructor
+	 */
+	TFTPMulticastOption() {
+		super(NAME);
+	}
+
+	/**
+	 * Create the value acknowledged by the server for the given transfer
+	 * 
+	 * @param options
+	 * @return address,port,mc
+	 */
+	public static String createValue(TFTPTransferOptions options) {
+		return options.getMulticastAddress().getHostAddress() + "," + options.getMulticastPort() + ","
+				+ (options.isMasterClient() ? 1 : 0);
+	}
+
+	/**
+	 * The client must request the option with an empty value
+	 */
+	@Override
+	public void checkRequestedValue(String value) {
+		if (!value.isEmpty())
+			throw new IllegalArgumentException("Multicast must be requested without a value");
+	}
+
+	/**
+	 * Answer with the group of the transfer, the option is ignored unless the
+	 * server has put the read request in a multicast group
+	 */
+	@Override
+	public String negotiate(String value, TFTPTransferOptions options) {
+		if (!options.isReadRequest() || !options.isMulticast())
+			return null;
+		return createValue(options);
+	}
+
+	/**
+	 * Store the group and whether the client is the master client
+	 */
+	@Override
+	public void accept(String requestedValue, String value, TFTPTransferOptions options) {
+		String[] fields = value.split(",", -1);
+		if (!options.isReadRequest() || fields.length != 3)
+			throw new IllegalArgumentException("Server has acknowledged invalid multicast " + value);
+		int port = parseInt(fields[1]);
+		int mc = parseInt(fields[2]);
+		if (port <= 0 || port > 0xffff || (mc != 0 && mc != 1))
+			throw new IllegalArgumentException("Server has acknowledged invalid multicast " + value);
+		try {
+			InetAddress address = InetAddress.getByName(fields[0]);
+			if (!address.isMulticastAddress())
+				throw new IllegalArgumentException("Server has acknowledged invalid multicast " + value);
+			options.setMulticastGroup(address, port);
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException("Server has acknowledged invalid multicast " + value);
+		}
+		options.setMasterClient(mc == 1);
+	}
+}
@@ -0,0 +1,593 @@
+package project;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Multicast session that sends one file to a group of clients(RFC 2090), the
+ * session is run the way the engine runs the transfers: on a thread of its
+ * own with the blocking engine, on a virtual thread with the virtual engine,
+ * and driven by an event loop through a non-blocking channel with the nio
+ * engine. Every
+ * client that reads the same file with the multicast option joins the group.
+ * Only the master client acknowledges the data packets, each ack packet tells
+ * which block the master client needs next. A block that has not been sent
+ * yet is sent to the multicast group, so that all clients receive it, a block
+ * that has already been sent to the group is a gap of the master client and
+ * is only sent to the master client. When the master client has received the
+ * whole file, the next client in the group is made the master client and
+ * fills its gaps the same way. The transfer is lock step, the windowsize
+ * option is not used in a multicast transfer.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPMulticastSession implements Runnable, TFTPChannelSession {
+	private TFTPServer server; // server that this session is working for
+	private File file; // file sent to the group
+	private String filename; // filename of the requests
+	private InetAddress groupAddress; // multicast group address
+	private int groupPort; // multicast group port
+	private DatagramSocket socket; // socket for sending and receiving, null when an event loop drives the session
+	private DatagramChannel channel; // non-blocking channel when an event loop drives the session, null otherwise
+	private SelectionKey key; // key of the channel in the selector of the event loop
+	private TFTPEventLoop eventLoop; // event loop that drives the session, null if it runs on a thread
+	private long deadline; // time(System.nanoTime) at which the master client times out, used by the event loop
+	private TFTPBlockReader reader; // reader of the file, opened when the block size is known
+	private int blockSize; // block size of the group, negotiated by the first client
+	private int lastBlock; // block number of the last data packet
+	private int lastGroupBlock; // block number of the last data packet sent to the group
+	private LinkedList<Member> members; // clients in the group, in the order they have joined
+	private Member master; // master client, null before the first client joins
+	private int expectedBlock; // ack packet expected from the master client, the block sent last
+	private TFTPPacket lastPacket; // last packet sent to the master client
+	private int numRetry; // number of times the last packet has been re-sent
+	private boolean closed; // true when the session does not accept new clients
+	private TFTPSendBuffer sendBuffer; // buffer that every packet sent is encoded into
+	private TFTPDataPacket groupPacket; // data packet that every block is sent to the group with
+	private TFTPDataPacket masterPacket; // data packet that the gaps of the master client are sent with
+	private TFTPPacketView receiveView; // view that every packet received is decoded in
+
+	/**
+	 * Client in the multicast group
+	 */
+	private static class Member {
+		private InetAddress address; // client address
+		private int port; // client port
+		private TFTPTransferOptions transferOptions; // options negotiated by the client
+		private TFTPRetransmissionTimer timer; // retransmission timer, used while the client is the master
+
+		/**
+		 * Constructor
+		 * 
+		 * @param address
+		 * @param port
+		 * @param transferOptions
+		 */
+		Member(InetAddress address, int port, TFTPTransferOptions transferOptions) {
+			this.address = address;
+			this.port = port;
+			this.transferOptions = transferOptions;
+			this.timer = new TFTPRetransmissionTimer(transferOptions.getTimeout());
+			if (transferOptions.isTimeoutNegotiated())
+				timer.setFixedTimeout(transferOptions.getTimeout());
+		}
+
+		/**
+		 * Check if the packet is sent by this client
+		 * 
+		 * @param packet
+		 * @return true if the packet is sent by this client, false otherwise
+		 */
+		boolean isSenderOf(TFTPPacketView packet) {
+			return port == packet.getPort() && address.equals(packet.getAddress());
+		}
+
+		/**
+		 * toString method, used for printing
+		 */
+		@Override
+		public String toString() {
+			return TFTPHost.addressToString(address, port);
+		}
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param server
+	 * @param file
+	 * @param groupAddress
+	 * @param groupPort
+	 * @param eventDriven - true if an event loop drives the session(nio engine)
+	 * @throws IOException
+	 */
+	TFTPMulticastSession(TFTPServer server, File file, InetAddress groupAddress, int groupPort, boolean eventDriven)
+			throws IOException {
+		this.server = server;
+		this.file = file;
+		this.filename = file.getName();
+		this.groupAddress = groupAddress;
+		this.groupPort = groupPort;
+		this.members = new LinkedList<>();
+		this.blockSize = -1;
+		if (eventDriven) {
+			this.channel = DatagramChannel.open();
+			this.channel.configureBlocking(false);
+			this.channel.bind(null);
+		} else
+			this.socket = new DatagramSocket();
+		this.sendBuffer = new TFTPSendBuffer();
+		this.receiveView = new TFTPPacketView();
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return groupPort
+	 */
+	public int getGroupPort() {
+		return groupPort;
+	}
+
+	/**
+	 * Add the client that sent the read request to the group, called by the
+	 * thread that joins the client(see TFTPServer). The first client becomes
+	 * the master client.
+	 * 
+	 * @param requestPacket
+	 * @return true if the client has joined the group, false if the request
+	 *         should be handled as a unicast transfer
+	 * @throws IOException
+	 */
+	public synchronized boolean join(TFTPRequestPacket requestPacket) throws IOException {
+		if (closed)
+			return false;
+		long length = server.getFileInfo(file).length();
+		TFTPTransferOptions transferOptions = new TFTPTransferOptions(server.getConfig(), true);
+		transferOptions.setTransferSize(length);
+		transferOptions.setMulticastGroup(groupAddress, groupPort);
+		transferOptions.setMasterClient(master == null);
+		// the transfer is lock step, the window size is not acknowledged
+		Map<String, String> requestedOptions = new LinkedHashMap<>(requestPacket.getOptions());
+		requestedOptions.remove(TFTPWindowSizeOption.NAME);
+		Map<String, String> acceptedOptions;
+		try {
+			acceptedOptions = TFTPOptionRegistry.negotiate(requestedOptions, transferOptions);
+		} catch (IllegalArgumentException e) { // the request handler refuses the options with the error
+			return false;
+		}
+		if (blockSize == -1) { // first client, its block size is used by the group
+			// block numbers of a multicast transfer do not roll over, the
+			// clients in the group may have missed any number of blocks
+			if (length / transferOptions.getBlockSize() >= TFTPPacket.MAX_BLOCK_NUMBER)
+				return false;
+			reader = server.openBlockReader(file, transferOptions);
+			blockSize = transferOptions.getBlockSize();
+			lastBlock = (int) (length / blockSize) + 1;
+		} else if (transferOptions.getBlockSize() != blockSize)
+			return false;
+
+		Member member = new Member(requestPacket.getAddress(), requestPacket.getPort(), transferOptions);
+		members.add(member);
+		ThreadLog.print("Multicast session " + this + " has added client " + member + " to the group.");
+		TFTPOackPacket OackPacket = new TFTPOackPacket(acceptedOptions, member.address, member.port);
+		if (master == null) {
+			master = member;
+			sendToMaster(OackPacket);
+		} else
+			sendPacket(OackPacket);
+		server.printInformation(
+				ThreadLog.formatThreadPrint("Multicast session has sent the option ack packet."), OackPacket);
+		return true;
+	}
+
+	/**
+	 * Send the packet
+	 * 
+	 * @param packet
+	 * @throws IOException
+	 */
+	private void sendPacket(TFTPPacket packet) throws IOException {
+		if (channel != null) // dropped if the send buffer of the channel is full, re-sent when it times out
+			channel.send(sendBuffer.toByteBuffer(packet), new InetSocketAddress(packet.getAddress(), packet.getPort()));
+		else
+			socket.send(sendBuffer.toDatagramPacket(packet));
+	}
+
+	/**
+	 * Send the packet to the master client, it is re-sent if the master client
+	 * does not answer in time
+	 * 
+	 * @param packet
+	 * @throws IOException
+	 */
+	private void sendToMaster(TFTPPacket packet) throws IOException {
+		master.timer.start();
+		lastPacket = packet;
+		sendPacket(packet);
+	}
+
+	/**
+	 * Send the last packet to the master client again
+	 * 
+	 * @throws IOException
+	 */
+	private void resendToMaster() throws IOException {
+		master.timer.resent();
+		sendPacket(lastPacket);
+	}
+
+	/**
+	 * Send the data packet with the given block number, to the group if it has
+	 * not been sent to the group yet, to the master client otherwise
+	 * 
+	 * @param blockNumber
+	 * @throws IOException
+	 */
+	private void sendData(int blockNumber) throws IOException {
+		boolean toGroup = blockNumber > lastGroupBlock;
+		// the data packets are reused, one for the group and one for the master client
+		TFTPDataPacket DATAPacket = toGroup ? groupPacket : masterPacket;
+		if (DATAPacket == null)
+			DATAPacket = new TFTPDataPacket(blockNumber, reader.readBlock(blockNumber),
+					toGroup ? groupAddress : master.address, toGroup ? groupPort : master.port);
+		else
+			DATAPacket.setBlock(blockNumber, reader.readBlock(blockNumber));
+		if (toGroup) {
+			groupPacket = DATAPacket;
+			lastGroupBlock = blockNumber;
+		} else
+			masterPacket = DATAPacket;
+		expectedBlock = blockNumber;
+		sendToMaster(DATAPacket);
+		server.getStats().recordMulticastDataPacket(toGroup);
+		server.printInformation(ThreadLog.formatThreadPrint(toGroup ? "Multicast session has sent the Data packet to the group."
+				: "Multicast session has sent the Data packet to the master client."), DATAPacket);
+	}
+
+	/**
+	 * Make the next client in the group the master client, the session is
+	 * closed if there is no client left
+	 * 
+	 * @throws IOException
+	 */
+	private void selectMaster() throws IOException {
+		master = members.peekFirst();
+		lastPacket = null;
+		masterPacket = null; // addressed to the old master client
+		numRetry = 0;
+		if (master == null) {
+			closed = true;
+			return;
+		}
+		master.transferOptions.setMasterClient(true);
+		Map<String, String> options = new LinkedHashMap<>();
+		options.put(TFTPMulticastOption.NAME, TFTPMulticastOption.createValue(master.transferOptions));
+		TFTPOackPacket OackPacket = new TFTPOackPacket(options, master.address, master.port);
+		expectedBlock = 0;
+		sendToMaster(OackPacket);
+		ThreadLog.print("Multicast session " + this + " has made client " + master + " the master client.");
+	}
+
+	/**
+	 * Remove the client from the group
+	 * 
+	 * @param member
+	 * @throws IOException
+	 */
+	private void leave(Member member) throws IOException {
+		members.remove(member);
+		server.getStats().recordTransfer(member.timer);
+		if (server.isVerbose())
+			ThreadLog.print("Multicast session: " + member + " " + member.timer);
+		if (member == master)
+			selectMaster();
+	}
+
+	/**
+	 * Find the client in the group that sent the packet
+	 * 
+	 * @param packet
+	 * @return member, or null if the sender is not in the group
+	 */
+	private Member findSender(TFTPPacketView packet) {
+		for (Member member : members) {
+			if (member.isSenderOf(packet))
+				return member;
+		}
+		return null;
+	}
+
+	/**
+	 * Handle the packet received from a client of the group
+	 * 
+	 * @param receivePacket - view of the packet, valid until the next packet is received
+	 * @throws IOException
+	 */
+	private synchronized void handlePacket(TFTPPacketView receivePacket) throws IOException {
+		Member member = findSender(receivePacket);
+		if (member == null) {
+			String errorMsg = "This tid is invalid, please use the correct tid!";
+			ThreadLog.print("Multicast session has sent unknown tid error packet to "
+					+ TFTPHost.addressToString(receivePacket.getAddress(), receivePacket.getPort()) + ".");
+			sendPacket(TFTPErrorPacket.createUnknownTID(errorMsg, receivePacket.getAddress(), receivePacket.getPort()));
+			return;
+		}
+		try {
+			receivePacket.decode();
+		} catch (IllegalArgumentException e) { // received packet is invalid
+			sendPacket(TFTPErrorPacket.createIllegalTFTPOperation(e.getMessage(), member.address, member.port));
+			leave(member);
+			return;
+		}
+		if (receivePacket.type() == Type.ERROR) {
+			ThreadLog.print("Multicast session: client " + member + " has left the group with the following error message:\n"
+					+ receivePacket.getErrorMsg());
+			leave(member);
+			return;
+		}
+		if (receivePacket.type() != Type.ACK) {
+			sendPacket(TFTPErrorPacket.createIllegalTFTPOperation("Unknown packet received.", member.address, member.port));
+			leave(member);
+			return;
+		}
+		TFTPPacketView AckPacket = receivePacket;
+		server.printInformation(ThreadLog.formatThreadPrint("Multicast session has received the ack packet."),
+				AckPacket);
+		int blockNumber = AckPacket.getBlockNumber();
+		if (blockNumber > lastBlock) { // received future ack packet, this is invalid
+			String errorMsg = "Multicast session has received future ack packet with block number: " + blockNumber;
+			sendPacket(TFTPErrorPacket.createIllegalTFTPOperation(errorMsg, member.address, member.port));
+			leave(member);
+		} else if (blockNumber == lastBlock) // the client has received the whole file
+			leave(member);
+		else if (member != master) {
+			// a client that is not the master client is still waiting for
+			// blocks, remind it that it is in the group
+			Map<String, String> options = new LinkedHashMap<>();
+			options.put(TFTPMulticastOption.NAME, TFTPMulticastOption.createValue(member.transferOptions));
+			sendPacket(new TFTPOackPacket(options, member.address, member.port));
+		} else if (blockNumber < expectedBlock)
+			ThreadLog.print("Multicast session has received one old ack packet, will ignore it...");
+		else { // the master client has received all blocks up to the block number
+			master.timer.acknowledged();
+			numRetry = 0;
+			sendData(blockNumber + 1);
+		}
+	}
+
+	/**
+	 * The master client has not answered in time, re-send the last packet, or
+	 * remove the master client from the group after too many retries
+	 * 
+	 * @throws IOException
+	 */
+	private synchronized void handleTimeout() throws IOException {
+		if (master == null)
+			return;
+		if (master.timer.isConnectionLost(numRetry)) {
+			ThreadLog.print("Multicast session: connection to master client " + master + " is lost.");
+			leave(master);
+			return;
+		}
+		ThreadLog.print("Last packet might be lost, sending last packet again...");
+		master.timer.timedOut(); // wait longer for the packet that is re-sent
+		resendToMaster();
+		++numRetry;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return timeout of the master client
+	 */
+	private synchronized int getTimeout() {
+		return master == null ? TFTPPacket.TIMEOUT : master.timer.getTimeout();
+	}
+
+	/**
+	 * Close a session that no client has joined, the session is never run
+	 */
+	public synchronized void discard() {
+		closed = true;
+		closeSocket();
+		try {
+			if (reader != null)
+				reader.close();
+		} catch (IOException e) { }
+		reader = null;
+	}
+
+	/**
+	 * Close the socket, or the channel and remove it from the event loop selector
+	 */
+	private void closeSocket() {
+		if (socket != null)
+			socket.close();
+		if (key != null)
+			key.cancel();
+		try {
+			if (channel != null)
+				channel.close();
+		} catch (IOException e) { }
+	}
+
+	/**
+	 * Check if the session has finished
+	 * 
+	 * @return true if there is no client left in the group
+	 */
+	@Override
+	public synchronized boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Override run method
+	 */
+	@Override
+	public void run() {
+		server.incrementNumThread(); // increase the thread count in server
+		try {
+			while (!isClosed()) {
+				// the clients only send ack and error packets, which always fit
+				DatagramPacket receivePacket = receiveView.prepareReceive(TFTPDataPacket.DEFAULT_BLOCK_SIZE);
+				try {
+					socket.setSoTimeout(getTimeout());
+					socket.receive(receivePacket);
+					handlePacket(receiveView);
+				} catch (SocketTimeoutException e) {
+					handleTimeout();
+				}
+			}
+			ThreadLog.print("Multicast session " + this + " has sent " + filename + " to all clients.");
+		} catch (IOException e) {
+			ThreadLog.print("Multicast session failed to send " + filename + ". Please try again.\n");
+		} finally {
+			end();
+		}
+	}
+
+	/**
+	 * Register the channel with the event loop and start waiting for the
+	 * master client, the client that created the session has already joined
+	 */
+	@Override
+	public void open(TFTPEventLoop eventLoop, Selector selector) {
+		this.eventLoop = eventLoop;
+		server.incrementNumThread(); // increase the thread count in server
+		try {
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+		} catch (IOException e) {
+			fail(null);
+			return;
+		}
+		setDeadline();
+	}
+
+	/**
+	 * Handle all packets that are waiting in the channel, they are received
+	 * into the view of the session instead of the buffer of the event loop
+	 */
+	@Override
+	public void handleReadable(ByteBuffer buffer) {
+		try {
+			while (!isClosed()) {
+				// the clients only send ack and error packets, which always fit
+				receiveView.prepareReceive(TFTPDataPacket.DEFAULT_BLOCK_SIZE);
+				if (!receiveView.receive(channel))
+					return;
+				handlePacket(receiveView);
+				setDeadline();
+			}
+		} catch (IOException e) {
+			fail(null);
+			return;
+		}
+		checkFinished();
+	}
+
+	/**
+	 * Re-send the last packet to the master client if it has not answered in time
+	 */
+	@Override
+	public void checkTimeout(long now) {
+		if (isClosed() || now < deadline)
+			return;
+		try {
+			handleTimeout();
+		} catch (IOException e) {
+			fail(null);
+			return;
+		}
+		setDeadline();
+		checkFinished();
+	}
+
+	/**
+	 * A multicast session is never woken up by another thread
+	 */
+	@Override
+	public void resume() { }
+
+	/**
+	 * Getter
+	 * 
+	 * @return deadline
+	 */
+	@Override
+	public long getDeadline() {
+		return isClosed() ? Long.MAX_VALUE : deadline;
+	}
+
+	/**
+	 * The session has failed, print the reason and close the session
+	 * 
+	 * @param errorMsg - null if an IOException happened
+	 */
+	@Override
+	public void fail(String errorMsg) {
+		if (errorMsg == null)
+			ThreadLog.print("Multicast session failed to send " + filename + ". Please try again.\n");
+		else
+			ThreadLog.print("Multicast session: Failed to send " + filename
+					+ " since the following error message:\n" + errorMsg);
+		end();
+	}
+
+	/**
+	 * Set the time at which the master client times out
+	 */
+	private void setDeadline() {
+		deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(getTimeout());
+		eventLoop.scheduleTimeout(deadline);
+	}
+
+	/**
+	 * End the session driven by the event loop once the last client has left
+	 */
+	private void checkFinished() {
+		if (!isClosed())
+			return;
+		ThreadLog.print("Multicast session " + this + " has sent " + filename + " to all clients.");
+		end();
+	}
+
+	/**
+	 * Close the session, release the file and the socket
+	 */
+	private void end() {
+		synchronized (this) {
+			closed = true;
+		}
+		server.multicastSessionFinished(this);
+		closeSocket();
+		try {
+			if (reader != null)
+				reader.close();
+		} catch (IOException e) { }
+		server.decrementNumThread(); // decrease the thread count in server
+	}
+
+	/**
+	 * toString method, used for printing
+	 */
+	@Override
+	public String toString() {
+		return filename + "@" + groupAddress.getHostAddress() + ":" + groupPort;
+	}
+}
@@ -0,0 +1,101 @@
+package project;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+
+/**
+ * Non-blocking server engine, the requests received by the request listener
+ * are handed to a few event loop threads, each event loop drives many
+ * sessions at the same time instead of using one thread per request.
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPNioEngine {
+	private TFTPServer server; // server that this engine is working for
+	private TFTPEventLoop[] eventLoops; // event loops that drive the sessions
+	private int nextEventLoop; // index of the event loop that gets the next session
+
+	/**
+	 * Constructor, start all event loop threads
+	 * 
+	 * @param server
+	 * @param numEventLoops
+	 * @throws IOException
+	 */
+	TFTPNioEngine(TFTPServer server, int numEventLoops) throws IOException {
+		this.server = server;
+		this.eventLoops = new TFTPEventLoop[numEventLoops];
+		for (int i = 0; i < numEventLoops; ++i) {
+			eventLoops[i] = new TFTPEventLoop(i, server.getBufferPool());
+			eventLoops[i].start();
+		}
+	}
+
+	/**
+	 * Create a new session for the request packet, called by the request
+	 * listener, and by the multicast joins for the requests that are sent
+	 * with unicast
+	 * 
+	 * @param packet
+	 */
+	public void submit(DatagramPacket packet) {
+		TFTPSession session;
+		if (server.isWriteRequest(packet.getData()))
+			session = new TFTPWriteRequestSession(server, packet);
+		else
+			session = new TFTPReadRequestSession(server, packet);
+		nextEventLoop().addSession(session);
+	}
+
+	/**
+	 * Hand a multicast session to an event loop, which drives it like the
+	 * other sessions
+	 * 
+	 * @param session - created for an event loop, the first client has joined
+	 */
+	public void submit(TFTPMulticastSession session) {
+		nextEventLoop().addSession(session);
+	}
+
+	/**
+	 * Run a task on one of the event loops(i.e. joining a client to its
+	 * multicast group), so that no thread is started for it
+	 * 
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		nextEventLoop().execute(task);
+	}
+
+	/**
+	 * Pick the event loops in turn
+	 * 
+	 * @return eventLoop
+	 */
+	private synchronized TFTPEventLoop nextEventLoop() {
+		TFTPEventLoop eventLoop = eventLoops[nextEventLoop];
+		nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+		return eventLoop;
+	}
+
+	/**
+	 * Get the number of sessions that are currently running
+	 * 
+	 * @return numSessions
+	 */
+	public int getNumSessions() {
+		int numSessions = 0;
+		for (TFTPEventLoop eventLoop : eventLoops)
+			numSessions += eventLoop.getNumSessions();
+		return numSessions;
+	}
+
+	/**
+	 * Stop all the event loop threads
+	 */
+	public void shutdown() {
+		for (TFTPEventLoop eventLoop : eventLoops)
+			eventLoop.stopEventLoop();
+	}
+}
@@ -0,0 +1,106 @@
+package project;
+
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * TFTPOackPacket class, sent by the server instead of the first ack/data
+ * packet to acknowledge the options that it has accepted(RFC 2347)
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPOackPacket extends TFTPPacket {
+	private static final Type DEFAULT_TYPE = Type.OACK; // default packet type
+	private static final int HEADER_LENGTH = 2; // packet header length
+	private Map<String, String> options; // options accepted, name to value
+
+	/**
+	 * Constructor
+	 * 
+	 * @param options
+	 * @param address
+	 * @param port
+	 */
+	TFTPOackPacket(Map<String, String> options, InetAddress address, int port) {
+		super(DEFAULT_TYPE, address, port);
+		if (options == null || options.isEmpty())
+			throw new IllegalArgumentException("Option ack packet must contain at least one option");
+		this.options = Collections.unmodifiableMap(new LinkedHashMap<>(options));
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return options
+	 */
+	public Map<String, String> getOptions() {
+		return options;
+	}
+
+	/**
+	 * Create new option ack packet from datagram packet
+	 * 
+	 * @param packet
+	 * @return TFTPOackPacket
+	 */
+	public static TFTPOackPacket createFromPacket(DatagramPacket packet) {
+		return createFromPacketData(Arrays.copyOfRange(packet.getData(), 0, packet.getLength()), packet.getLength(),
+				packet.getAddress(), packet.getPort());
+	}
+
+	/**
+	 * Create new option ack packet from datagram packet data
+	 * 
+	 * @param packetData
+	 * @param packetDataLength
+	 * @param address
+	 * @param port
+	 * @return TFTPOackPacket
+	 */
+	public static TFTPOackPacket createFromPacketData(byte[] packetData, int packetDataLength, InetAddress address,
+			int port) {
+		if (packetData == null || packetDataLength <= HEADER_LENGTH)
+			throw new IllegalArgumentException("Invalid packet data");
+		int OPCODE = ((packetData[0] << 8) & 0xFF00) | (packetData[1] & 0xFF);
+		if (!Type.validOPCODE(DEFAULT_TYPE, OPCODE))
+			throw new IllegalArgumentException("Invalid OP code");
+		return new TFTPOackPacket(readOptions(packetData, HEADER_LENGTH, packetDataLength), address, port);
+	}
+
+	/**
+	 * Write the packet into the buffer
+	 * 
+	 * @param buffer
+	 */
+	@Override
+	public void encodeTo(ByteBuffer buffer) {
+		DEFAULT_TYPE.encodeTo(buffer);
+		encodeOptions(buffer, options);
+	}
+
+	/**
+	 * Getter the number of bytes written by encodeTo
+	 * 
+	 * @return encodedLength
+	 */
+	@Override
+	public int getEncodedLength() {
+		return HEADER_LENGTH + getEncodedLength(options);
+	}
+
+	/**
+	 * toString method
+	 */
+	@Override
+	public String toString() {
+		return ("Packet type: " + this.type() + "\nDestination: \n" +
+	            "IP address: " + this.getAddress() + "\nPort: " + this.getPort() +
+	            "\nInformation in this packet: \n" + "Options: " + this.getOptions() + "\n");
+	}
+}
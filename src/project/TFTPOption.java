@@ -0,0 +1,96 @@
+package project;
+
+/**
+ * Abstract parent class for all TFTP options(RFC 2347). An option is
+ * requested by the client in the RRQ/WRQ, the server negotiates the value
+ * and acknowledges it in the option ack packet, then the client accepts the
+ * acknowledged value. Both sides store the result in the TFTPTransferOptions
+ * of the transfer. New options are made available by registering them in
+ * the TFTPOptionRegistry.
+ * 
+ * @author yunkai wang
+ *
+ */
+public abstract class TFTPOption {
+	private String name; // option name, in lower case
+
+	/**
+	 * Constructor, can only be accessed using child classes
+	 * 
+	 * @param name
+	 */
+	protected TFTPOption(String name) {
+		this.name = name.toLowerCase();
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Check if the value can be requested by the client, used before the value
+	 * is put in a request packet
+	 * 
+	 * @param value
+	 * @throws IllegalArgumentException if the value is invalid
+	 */
+	public void checkRequestedValue(String value) {
+	}
+
+	/**
+	 * Negotiate the value requested by the client on the server side, the
+	 * negotiated value is stored in the transfer options
+	 * 
+	 * @param value - value requested by the client
+	 * @param options - options of the transfer
+	 * @return the value to acknowledge, or null if the server ignores the option
+	 * @throws IllegalArgumentException if the request should be refused
+	 */
+	public abstract String negotiate(String value, TFTPTransferOptions options);
+
+	/**
+	 * Accept the value acknowledged by the server on the client side, the
+	 * value is stored in the transfer options
+	 * 
+	 * @param requestedValue - value requested by the client
+	 * @param value - value acknowledged by the server
+	 * @param options - options of the transfer
+	 * @throws IllegalArgumentException if the acknowledged value is invalid
+	 */
+	public abstract void accept(String requestedValue, String value, TFTPTransferOptions options);
+
+	/**
+	 * Parse the option value as an integer
+	 * 
+	 * @param value
+	 * @return int
+	 * @throws IllegalArgumentException if the value is not an integer
+	 */
+	protected int parseInt(String value) {
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for option " + name + ": " + value);
+		}
+	}
+
+	/**
+	 * Parse the option value as a long
+	 * 
+	 * @param value
+	 * @return long
+	 * @throws IllegalArgumentException if the value is not an integer
+	 */
+	protected long parseLong(String value) {
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value for option " + name + ": " + value);
+		}
+	}
+}
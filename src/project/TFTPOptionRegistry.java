@@ -0,0 +1,97 @@
+package project;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Registry of all options that the server and the client support. Options
+ * that are not registered are ignored by the server, as required by RFC 2347,
+ * and cannot be requested by the client.
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPOptionRegistry {
+	private static final Map<String, TFTPOption> registeredOptions = new TreeMap<>(); // name to option
+
+	// options that are supported by default
+	static {
+		register(new TFTPBlockSizeOption());
+		register(new TFTPWindowSizeOption());
+		register(new TFTPTransferSizeOption());
+		register(TFTPTimeoutOption.createTimeoutOption());
+		register(TFTPTimeoutOption.createMicroTimeoutOption());
+		register(new TFTPRolloverOption());
+		register(new TFTPMulticastOption());
+	}
+
+	/**
+	 * Register the option
+	 * 
+	 * @param option
+	 */
+	public static synchronized void register(TFTPOption option) {
+		registeredOptions.put(option.getName(), option);
+	}
+
+	/**
+	 * Get the option with the given name
+	 * 
+	 * @param name
+	 * @return option, or null if the option is not registered
+	 */
+	public static synchronized TFTPOption getOption(String name) {
+		return registeredOptions.get(name.toLowerCase());
+	}
+
+	/**
+	 * Get the names of all registered options
+	 * 
+	 * @return names
+	 */
+	public static synchronized Collection<String> getOptionNames() {
+		return new TreeMap<>(registeredOptions).keySet();
+	}
+
+	/**
+	 * Negotiate the options requested by the client on the server side
+	 * 
+	 * @param requestedOptions - options in the request packet
+	 * @param options - options of the transfer
+	 * @return accepted options that should be sent in the option ack packet
+	 * @throws IllegalArgumentException if the request should be refused
+	 */
+	public static Map<String, String> negotiate(Map<String, String> requestedOptions, TFTPTransferOptions options) {
+		Map<String, String> acceptedOptions = new LinkedHashMap<>();
+		for (Map.Entry<String, String> requestedOption : requestedOptions.entrySet()) {
+			TFTPOption option = getOption(requestedOption.getKey());
+			if (option == null) // unknown option, ignore it
+				continue;
+			String value = option.negotiate(requestedOption.getValue(), options);
+			if (value != null)
+				acceptedOptions.put(option.getName(), value);
+		}
+		return acceptedOptions;
+	}
+
+	/**
+	 * Accept the options acknowledged by the server on the client side
+	 * 
+	 * @param requestedOptions - options in the request packet
+	 * @param acknowledgedOptions - options in the option ack packet
+	 * @param options - options of the transfer
+	 * @throws IllegalArgumentException if the option ack packet is invalid
+	 */
+	public static void accept(Map<String, String> requestedOptions, Map<String, String> acknowledgedOptions,
+			TFTPTransferOptions options) {
+		for (Map.Entry<String, String> acknowledgedOption : acknowledgedOptions.entrySet()) {
+			String name = acknowledgedOption.getKey();
+			TFTPOption option = getOption(name);
+			if (option == null || !requestedOptions.containsKey(name))
+				throw new IllegalArgumentException("Server has acknowledged option " + name + " which was not requested");
+			option.accept(requestedOptions.get(name), acknowledgedOption.getValue(), options);
+		}
+	}
+}
@@ -1,9 +1,11 @@
 package project;
 
-import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Abstract parent class for all TFTPPackets
@@ -14,7 +16,7 @@ import java.util.Arrays;
 public abstract class TFTPPacket {
 	public static final int TIMEOUT = 2000; // time out
 	public static final int MAX_RETRY = 5; // maximum retry time
-	public static final int MAX_LENGTH = 516; // max packet data length (complete data packet)
+	public static final int MAX_LENGTH = 516; // max packet data length (complete data packet of the default block size)
 	public static final int MIN_LENGTH = 4; // min packet data length (ack packet)
 	protected static final int MIN_BLOCK_NUMBER = 0; // minimum block number(0)
 	protected static final int MAX_BLOCK_NUMBER = 0xffff; // maximum block number(65535)
@@ -63,21 +65,50 @@ public abstract class TFTPPacket {
 	}
 
 	/**
-	 * Generate the byte array that contains all information
+	 * Write the packet into the buffer at its current position, header and
+	 * payload are written directly, so that every packet can be encoded into
+	 * the same buffer without allocating anything
 	 * 
-	 * @return byteArray
-	 * @throws IOException
+	 * @param buffer - must have room for getEncodedLength() bytes
+	 * @throws java.nio.BufferOverflowException if the packet does not fit
 	 */
-	protected abstract byte[] getData() throws IOException;
+	public abstract void encodeTo(ByteBuffer buffer);
+
+	/**
+	 * Getter the number of bytes written by encodeTo
+	 * 
+	 * @return encodedLength
+	 */
+	public abstract int getEncodedLength();
+
+	/**
+	 * Getter the shared pre-encoded bytes of the packet, packets that are sent
+	 * often with the same content are encoded once(see TFTPFrameCache) and
+	 * are sent from the frame instead of being encoded again
+	 * 
+	 * @return frame, must not be modified, or null if the packet has no frame
+	 */
+	public byte[] getFrame() {
+		return null;
+	}
+
+	/**
+	 * Getter the offset of the packet in the array returned by getFrame, the
+	 * packet is getEncodedLength() bytes long
+	 * 
+	 * @return frameOffset
+	 */
+	public int getFrameOffset() {
+		return 0;
+	}
 
 	/**
 	 * Getter the length of bytes contained in the packet
 	 * 
 	 * @return dataLength
-	 * @throws IOException
 	 */
-	public int getLength() throws IOException {
-		return getData().length;
+	public int getLength() {
+		return getEncodedLength();
 	}
 
 	
@@ -98,7 +129,31 @@ public abstract class TFTPPacket {
 	 * @return DatagramPacket
 	 */
 	public static DatagramPacket createDatagramPacketForReceive() {
-		return new DatagramPacket(new byte[MAX_LENGTH * 2], MAX_LENGTH * 2);
+		return createDatagramPacketForReceive(TFTPDataPacket.DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * Create new datagram packet for receive, large enough for a complete data
+	 * packet of the given block size
+	 * 
+	 * @param blockSize
+	 * @return DatagramPacket
+	 */
+	public static DatagramPacket createDatagramPacketForReceive(int blockSize) {
+		int length = getReceiveLength(blockSize);
+		return new DatagramPacket(new byte[length], length);
+	}
+
+	/**
+	 * Get the length of the buffer used to receive packets of a transfer with
+	 * the given block size, the buffer has room for more than a complete data
+	 * packet so that packets which are too long can be detected
+	 * 
+	 * @param blockSize
+	 * @return length
+	 */
+	public static int getReceiveLength(int blockSize) {
+		return Math.max(blockSize + TFTPDataPacket.HEADER_LENGTH, MAX_LENGTH) + MAX_LENGTH;
 	}
 	
 	/**
@@ -123,20 +178,105 @@ public abstract class TFTPPacket {
 			return TFTPAckPacket.createFromPacketData(packetData, packetDataLength, address, port);
 		case (5):
 			return TFTPErrorPacket.createFromPacketData(packetData, packetDataLength, address, port);
+		case (6):
+			return TFTPOackPacket.createFromPacketData(packetData, packetDataLength, address, port);
 		default:
 			throw new IllegalArgumentException("Invalid OP code");
 		}
 	}
 
 	/**
-	 * Create new DatagramPacket from this packet
+	 * Read the options(pairs of 0 terminated name and value strings) from the
+	 * packet data, starting at the given index until the end of the packet.
+	 * Option names are not case sensitive, so they are stored in lower case.
 	 * 
-	 * @return DatagramPacket
-	 * @throws IOException
+	 * @param packetData
+	 * @param start
+	 * @param packetDataLength
+	 * @return options
+	 */
+	protected static Map<String, String> readOptions(byte[] packetData, int start, int packetDataLength) {
+		Map<String, String> options = new LinkedHashMap<>();
+		int i = start;
+		while (i < packetDataLength) {
+			StringBuilder nameBuilder = new StringBuilder();
+			while (i < packetDataLength && packetData[i] != 0)
+				nameBuilder.append((char) packetData[i++]);
+			if (nameBuilder.length() == 0 || ++i >= packetDataLength) // no name, or no value after the name
+				throw new IllegalArgumentException("Invalid packet data, include invalid option");
+
+			StringBuilder valueBuilder = new StringBuilder();
+			while (i < packetDataLength && packetData[i] != 0)
+				valueBuilder.append((char) packetData[i++]);
+			if (i++ >= packetDataLength) // value is not followed by a 0 byte
+				throw new IllegalArgumentException("Invalid packet data, option is not followed by a 0 byte");
+
+			String name = nameBuilder.toString().toLowerCase();
+			if (options.containsKey(name))
+				throw new IllegalArgumentException("Invalid packet data, option " + name + " is repeated");
+			options.put(name, valueBuilder.toString());
+		}
+		return options;
+	}
+
+	/**
+	 * Write the number into the buffer as 2 bytes, most significant byte first
+	 * 
+	 * @param buffer
+	 * @param number - block number or error code
+	 */
+	protected static void encodeShort(ByteBuffer buffer, int number) {
+		buffer.put((byte) (number >> 8));
+		buffer.put((byte) number);
+	}
+
+	/**
+	 * Write the string into the buffer followed by a 0 byte, one byte for
+	 * each character as the strings are read from the packet data
+	 * 
+	 * @param buffer
+	 * @param string
+	 */
+	protected static void encodeString(ByteBuffer buffer, String string) {
+		for (int i = 0; i < string.length(); ++i)
+			buffer.put((byte) string.charAt(i));
+		buffer.put((byte) 0);
+	}
+
+	/**
+	 * Getter the number of bytes written by encodeString
+	 * 
+	 * @param string
+	 * @return encodedLength
+	 */
+	protected static int getEncodedLength(String string) {
+		return string.length() + 1;
+	}
+
+	/**
+	 * Write the options into the buffer as pairs of 0 terminated name and value strings
+	 * 
+	 * @param buffer
+	 * @param options
+	 */
+	protected static void encodeOptions(ByteBuffer buffer, Map<String, String> options) {
+		for (Map.Entry<String, String> option : options.entrySet()) {
+			encodeString(buffer, option.getKey());
+			encodeString(buffer, option.getValue());
+		}
+	}
+
+	/**
+	 * Getter the number of bytes written by encodeOptions
+	 * 
+	 * @param options
+	 * @return encodedLength
 	 */
-	public DatagramPacket createDatagramPacket() throws IOException {
-		byte[] data = getData();
-		return new DatagramPacket(data, data.length, address, port);
+	protected static int getEncodedLength(Map<String, String> options) {
+		int length = 0;
+		for (Map.Entry<String, String> option : options.entrySet())
+			length += getEncodedLength(option.getKey()) + getEncodedLength(option.getValue());
+		return length;
 	}
 	
 	/**
@@ -0,0 +1,86 @@
+package project;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Receiver thread that receives the packets from a socket and puts them in a
+ * queue, so that the packets of several sockets can be waited for at once.
+ * The client uses it for multicast transfers(RFC 2090), where data packets
+ * arrive from the multicast group and from the server.
+ *
+ * @author yunkai wang
+ *
+ */
+public class TFTPPacketReceiver extends Thread {
+	private static final int POLL_TIMEOUT = 100; // time in milliseconds between checks if the receiver should stop
+	private DatagramSocket socket; // socket that the packets are received from
+	private int blockSize; // block size of the transfer
+	private BlockingQueue<DatagramPacket> packets; // queue that the received packets are put in
+	private volatile boolean running; // set to false to stop the receiver
+	private int numPackets; // number of packets received
+
+	/**
+	 * Constructor
+	 *
+	 * @param socket
+	 * @param blockSize
+	 * @param packets
+	 */
+	TFTPPacketReceiver(DatagramSocket socket, int blockSize, BlockingQueue<DatagramPacket> packets) {
+		this.socket = socket;
+		this.blockSize = blockSize;
+		this.packets = packets;
+		this.running = true;
+		setDaemon(true);
+	}
+
+	/**
+	 * Getter, only valid after the receiver has stopped
+	 *
+	 * @return numPackets
+	 */
+	public int getNumPackets() {
+		return numPackets;
+	}
+
+	/**
+	 * Stop the receiver and wait until it has stopped, packets that have not
+	 * been received yet are left in the socket
+	 */
+	public void stopReceiver() {
+		running = false;
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Override run method
+	 */
+	@Override
+	public void run() {
+		try {
+			socket.setSoTimeout(POLL_TIMEOUT);
+		} catch (IOException e) {
+			return;
+		}
+		while (running) {
+			DatagramPacket packet = TFTPPacket.createDatagramPacketForReceive(blockSize);
+			try {
+				socket.receive(packet);
+				++numPackets;
+				packets.add(packet);
+			} catch (SocketTimeoutException e) {
+				continue;
+			} catch (IOException e) { // socket is closed
+				return;
+			}
+		}
+	}
+}
@@ -0,0 +1,255 @@
+package project;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Reusable view of a received packet. The view owns the datagram packet
+ * that the packets are received into, and reads the opcode, block number
+ * and file data directly from its buffer, so receiving an ack or data
+ * packet neither copies the packet nor creates a new packet object. The
+ * view is only valid until the next packet is received into it, and must
+ * only be used by one thread.
+ * 
+ * Ack, data and error packets can be read from the view directly, request
+ * and option ack packets are rare and are decoded into a TFTPPacket with
+ * toPacket.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPPacketView {
+	private static final int HEADER_LENGTH = 4; // opcode and block number(or error code)
+	private DatagramPacket datagramPacket; // datagram packet that the packets are received into
+	private ByteBuffer buffer; // wraps the datagram packet data, used to slice the file data
+	private Type type; // type of the packet received, null before the first packet is decoded
+	private int length; // length of the packet received
+
+	/**
+	 * Constructor, the buffer starts large enough for the default block size
+	 */
+	TFTPPacketView() {
+		this(ByteBuffer.allocate(TFTPPacket.getReceiveLength(TFTPDataPacket.DEFAULT_BLOCK_SIZE)));
+	}
+
+	/**
+	 * Constructor, the packets are received into the given heap buffer(i.e. a
+	 * buffer leased from the buffer pool)
+	 * 
+	 * @param buffer
+	 */
+	TFTPPacketView(ByteBuffer buffer) {
+		this.datagramPacket = new DatagramPacket(buffer.array(), buffer.capacity());
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Get the datagram packet that the next packet is received into, the
+	 * buffer grows if it cannot fit a data packet of the given block size
+	 * 
+	 * @param blockSize - block size of the transfer
+	 * @return DatagramPacket
+	 */
+	public DatagramPacket prepareReceive(int blockSize) {
+		int receiveLength = TFTPPacket.getReceiveLength(blockSize);
+		if (receiveLength > datagramPacket.getData().length) {
+			datagramPacket.setData(new byte[receiveLength]);
+			buffer = ByteBuffer.wrap(datagramPacket.getData());
+		}
+		datagramPacket.setLength(datagramPacket.getData().length); // the last receive has shortened the length
+		type = null;
+		return datagramPacket;
+	}
+
+	/**
+	 * Receive the next packet from a non-blocking channel into the datagram
+	 * packet, prepareReceive must be called first
+	 * 
+	 * @param channel
+	 * @return true if a packet has been received, false if none is waiting
+	 * @throws IOException
+	 */
+	public boolean receive(DatagramChannel channel) throws IOException {
+		ByteBuffer target = ByteBuffer.wrap(datagramPacket.getData());
+		SocketAddress source = channel.receive(target);
+		if (source == null)
+			return false;
+		datagramPacket.setLength(target.position());
+		datagramPacket.setSocketAddress(source);
+		return true;
+	}
+
+	/**
+	 * Check the header of the packet that has been received, the rest of the
+	 * packet is read when it is asked for
+	 * 
+	 * @throws IllegalArgumentException if the packet is invalid
+	 */
+	public void decode() {
+		type = null;
+		length = datagramPacket.getLength();
+		if (length < 2)
+			throw new IllegalArgumentException("Invalid packet data");
+		byte[] packetData = datagramPacket.getData();
+		int OPCODE = ((packetData[0] << 8) & 0xFF00) | (packetData[1] & 0xFF);
+		type = Type.getFromOPCODE(OPCODE);
+		if (type == null)
+			throw new IllegalArgumentException("Invalid OP code");
+
+		switch (type) {
+		case ACK:
+			if (length != HEADER_LENGTH)
+				throw new IllegalArgumentException("Invalid packet data");
+			return;
+		case DATA:
+			if (length < HEADER_LENGTH || length > HEADER_LENGTH + TFTPDataPacket.MAX_BLOCK_SIZE)
+				throw new IllegalArgumentException("Invalid packet data");
+			return;
+		case ERROR:
+			// error code followed by a 0 terminated message
+			if (length <= HEADER_LENGTH || packetData[length - 1] != 0)
+				throw new IllegalArgumentException("Invalid packet data");
+			return;
+		default: // checked by the packet class in toPacket
+			return;
+		}
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return type
+	 */
+	public Type type() {
+		return type;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return address
+	 */
+	public InetAddress getAddress() {
+		return datagramPacket.getAddress();
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return port
+	 */
+	public int getPort() {
+		return datagramPacket.getPort();
+	}
+
+	/**
+	 * Getter the block number of an ack or data packet
+	 * 
+	 * @return blockNumber
+	 */
+	public int getBlockNumber() {
+		byte[] packetData = datagramPacket.getData();
+		return ((packetData[2] << 8) & 0xFF00) | (packetData[3] & 0xFF);
+	}
+
+	/**
+	 * Getter the length of the file data of a data packet
+	 * 
+	 * @return fileDataLength
+	 */
+	public int getLength() {
+		return length - HEADER_LENGTH;
+	}
+
+	/**
+	 * Getter the file data of a data packet, the returned buffer is a slice
+	 * of the receive buffer and is reused for the next packet
+	 * 
+	 * @return fileData
+	 */
+	public ByteBuffer getFileData() {
+		buffer.limit(length);
+		buffer.position(HEADER_LENGTH);
+		return buffer;
+	}
+
+	/**
+	 * Write the file data of a data packet to the output without copying it
+	 * 
+	 * @param out
+	 * @throws IOException
+	 */
+	public void writeFileData(DataOutput out) throws IOException {
+		out.write(datagramPacket.getData(), HEADER_LENGTH, getLength());
+	}
+
+	/**
+	 * Write the file data of a data packet to the file, the file data is
+	 * skipped instead of written if it is all zero(see TFTPSparseFiles)
+	 * 
+	 * @param fs
+	 * @throws IOException
+	 */
+	public void writeSparseFileData(RandomAccessFile fs) throws IOException {
+		TFTPSparseFiles.write(fs, datagramPacket.getData(), HEADER_LENGTH, getLength());
+	}
+
+	/**
+	 * Check if the data packet is the last data packet of a transfer with the
+	 * given block size
+	 * 
+	 * @param blockSize
+	 * @return true if the packet is the last packet, false otherwise
+	 */
+	public boolean isLastDataPacket(int blockSize) {
+		return getLength() < blockSize;
+	}
+
+	/**
+	 * Getter the error message of an error packet
+	 * 
+	 * @return errorMsg
+	 */
+	public String getErrorMsg() {
+		byte[] packetData = datagramPacket.getData();
+		StringBuilder errorMsg = new StringBuilder();
+		for (int i = HEADER_LENGTH; i < length - 1 && packetData[i] != 0; ++i)
+			errorMsg.append((char) packetData[i]);
+		return errorMsg.toString();
+	}
+
+	/**
+	 * Decode the packet into a new TFTPPacket, used for the packets that
+	 * cannot be read from the view(request and option ack packets)
+	 * 
+	 * @return TFTPPacket
+	 */
+	public TFTPPacket toPacket() {
+		return TFTPPacket.createFromPacket(datagramPacket);
+	}
+
+	/**
+	 * toString method, used for printing
+	 */
+	@Override
+	public String toString() {
+		String info = "Packet type: " + type + "\nDestination: \n" + "IP address: " + getAddress() + "\nPort: "
+				+ getPort() + "\nInformation in this packet: \n";
+		switch (type) {
+		case ACK:
+			return info + "Block number: " + getBlockNumber() + "\n";
+		case DATA:
+			return info + "Block number: " + getBlockNumber() + "\nData length: " + getLength() + "\n";
+		case ERROR:
+			return info + "Error message: " + getErrorMsg() + "\n";
+		default:
+			return toPacket().toString();
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package project;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+/**
+ * Block reader that reads the blocks after the block that is being sent in
+ * the background, so that the disk reads overlap the round trips to the
+ * client instead of being added to them. The blocks are read with positional
+ * reads of the shared handle of the file(see TFTPFileHandles) on the read
+ * threads of the handles, at most maxDepth blocks ahead of the last block
+ * read. The number of blocks read ahead(depth) follows the disk: it is the
+ * number of blocks the transfer sends while one block is read from the disk,
+ * plus one, so a slow disk(i.e. a network file system) is read further ahead
+ * than a fast one.
+ * 
+ * A block that has not been read ahead(i.e. a block that is sent again after
+ * a timeout) is read at once and waited for.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPReadAheadBlockReader implements TFTPBlockReader {
+	private static final double GAIN = 0.125; // weight of a new measurement in the averages
+	private TFTPFileHandles handles; // handles that the handle is released to
+	private TFTPFileHandles.Handle handle; // shared handle of the file, null once the reader is closed
+	private FileChannel channel; // channel of the shared handle
+	private Executor executor; // runs the reads
+	private int blockSize; // number of bytes in each block
+	private long lastBlock; // block number of the last block of the file
+	private int maxDepth; // largest number of blocks read ahead
+	private int depth; // number of blocks currently read ahead
+	private ArrayDeque<Read> reads; // reads of the blocks after the current block, by block number
+	private ArrayDeque<ByteBuffer> freeBuffers; // buffers that no read is using
+	private ByteBuffer current; // buffer returned by the last readBlock, null if there is none
+	private long currentBlock; // block number of the last block returned
+	private long lastReadTime; // System.nanoTime of the last readBlock, -1 before the first block
+	private double diskLatency; // average time in nanoseconds to read a block from the disk
+	private double blockInterval; // average time in nanoseconds between two blocks of the transfer
+
+	/**
+	 * Read of one block, run by a read thread
+	 */
+	private class Read implements Runnable {
+		private long block; // block number
+		private ByteBuffer buffer; // buffer that the block is read into
+		private long startTime; // System.nanoTime at which the read was started
+		private long latency; // time in nanoseconds the read took, valid once it is done
+		private boolean done; // true once the read has completed or failed
+		private Throwable error; // exception of a failed read, null otherwise
+
+		/**
+		 * Constructor, starts the read
+		 * 
+		 * @param block
+		 * @param buffer
+		 */
+		Read(long block, ByteBuffer buffer) {
+			this.block = block;
+			this.buffer = buffer;
+			this.startTime = System.nanoTime();
+			buffer.clear();
+			executor.execute(this);
+		}
+
+		/**
+		 * Read the block until the buffer is full or the file has ended
+		 */
+		@Override
+		public void run() {
+			long position = (block - 1) * blockSize;
+			try {
+				while (buffer.hasRemaining())
+					if (channel.read(buffer, position + buffer.position()) == -1) // end of the file
+						break;
+				finish(null);
+			} catch (IOException | RuntimeException e) {
+				finish(e);
+			}
+		}
+
+		/**
+		 * Record that the read is done and wake up the transfer if it is waiting
+		 * 
+		 * @param e - exception of a failed read, null otherwise
+		 */
+		private synchronized void finish(Throwable e) {
+			latency = System.nanoTime() - startTime;
+			error = e;
+			done = true;
+			notifyAll();
+		}
+
+		/**
+		 * Wait until the read is done
+		 * 
+		 * @throws IOException
+		 */
+		synchronized void await() throws IOException {
+			try {
+				while (!done)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading block " + block);
+			}
+			if (error instanceof IOException)
+				throw (IOException) error;
+			if (error != null)
+				throw new IOException(error);
+		}
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param handles
+	 * @param handle
+	 * @param blockSize
+	 * @param maxDepth - largest number of blocks read ahead
+	 * @throws IOException
+	 */
+	TFTPReadAheadBlockReader(TFTPFileHandles handles, TFTPFileHandles.Handle handle, int blockSize, int maxDepth)
+			throws IOException {
+		this.handles = handles;
+		this.handle = handle;
+		this.channel = handle.getChannel();
+		this.executor = handles.getReadExecutor();
+		this.blockSize = blockSize;
+		this.lastBlock = channel.size() / blockSize + 1;
+		this.maxDepth = maxDepth;
+		this.depth = 1;
+		this.reads = new ArrayDeque<>();
+		this.freeBuffers = new ArrayDeque<>();
+		this.lastReadTime = -1;
+	}
+
+	/**
+	 * Read the file data of the given block, and start reading the blocks after
+	 * it
+	 * 
+	 * @param block
+	 * @return buffer, valid until the next block is read
+	 * @throws IOException
+	 */
+	@Override
+	public ByteBuffer readBlock(long block) throws IOException {
+		if (current != null) {
+			freeBuffers.push(current);
+			current = null;
+		}
+		long now = System.nanoTime();
+		if (block == currentBlock + 1 && lastReadTime != -1)
+			blockInterval = average(blockInterval, now - lastReadTime);
+		lastReadTime = now;
+		currentBlock = block;
+
+		// the blocks before the block are no longer needed, their buffers are
+		// reused once their reads are done
+		Read read = null;
+		Iterator<Read> it = reads.iterator();
+		while (it.hasNext()) {
+			Read r = it.next();
+			if (r.block > block)
+				break;
+			it.remove();
+			if (r.block == block) {
+				read = r;
+				break;
+			}
+			try {
+				r.await();
+			} catch (IOException e) { } // the block is not sent
+			freeBuffers.push(r.buffer);
+		}
+		if (read == null) // the block has not been read ahead
+			read = new Read(block, takeBuffer());
+		read.await();
+		diskLatency = average(diskLatency, read.latency);
+		adaptDepth();
+		current = read.buffer;
+		current.flip();
+		readAhead(block);
+		return current;
+	}
+
+	/**
+	 * Compute the new average of a measurement
+	 * 
+	 * @param average - current average, 0 before the first measurement
+	 * @param sample
+	 * @return average
+	 */
+	private static double average(double average, long sample) {
+		return average == 0 ? sample : average + GAIN * (sample - average);
+	}
+
+	/**
+	 * Read ahead as many blocks as are sent while one block is read from the
+	 * disk
+	 */
+	private void adaptDepth() {
+		if (blockInterval == 0)
+			return;
+		depth = (int) Math.min(maxDepth, Math.ceil(diskLatency / blockInterval) + 1);
+	}
+
+	/**
+	 * Start reading the blocks after the given block, up to the current depth
+	 * 
+	 * @param block
+	 */
+	private void readAhead(long block) {
+		long next = reads.isEmpty() ? block + 1 : reads.peekLast().block + 1;
+		while (next <= block + depth && next <= lastBlock) {
+			reads.addLast(new Read(next, takeBuffer()));
+			++next;
+		}
+	}
+
+	/**
+	 * Take a free buffer, a new buffer is allocated if every buffer is in use
+	 * 
+	 * @return buffer
+	 */
+	private ByteBuffer takeBuffer() {
+		ByteBuffer buffer = freeBuffers.poll();
+		return buffer != null ? buffer : ByteBuffer.allocate(blockSize);
+	}
+
+	/**
+	 * Release the shared handle once the reads that are still running are
+	 * done, the reader must not be used any more
+	 */
+	@Override
+	public void close() {
+		if (handle == null)
+			return;
+		for (Read read : reads) {
+			try {
+				read.await();
+			} catch (IOException e) { } // the block is not sent
+		}
+		reads.clear();
+		handles.release(handle);
+		handle = null;
+	}
+}
@@ -0,0 +1,221 @@
+package project;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.NoSuchFileException;
+import java.util.Map;
+
+/**
+ * Session that handles a RRQ for the nio engine, it sends the file to the
+ * client one window of data packets at a time(same as TFTPRequestHandler.writeFileToClient)
+ * 
+ * A file that is still being uploaded is sent as the upload writes it, the
+ * session must not block the event loop, so it stops sending when it has
+ * caught up with the upload and is woken up once the upload has progressed.
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPReadRequestSession extends TFTPSession {
+	private TFTPBlockReader reader; // reader of the file that is being sent
+	private TFTPSendWindow window; // data packets sent but not acknowledged yet
+	private boolean optionAckPending; // true while waiting for the client to acknowledge the option ack packet
+	private TFTPLiveBlockReader liveReader; // reader of a file that is still being uploaded, null otherwise
+	private boolean stalled; // true while waiting for the upload to write the next block
+	private WakeUp wakeUp; // wakes up the session once the upload has progressed
+
+	/**
+	 * Wakes up the session on its event loop, called by the thread that
+	 * writes the upload
+	 */
+	private class WakeUp implements Runnable {
+		/**
+		 * Override run method
+		 */
+		@Override
+		public void run() {
+			wakeUp();
+		}
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param server
+	 * @param packet
+	 */
+	TFTPReadRequestSession(TFTPServer server, DatagramPacket packet) {
+		super(server, packet);
+	}
+
+	/**
+	 * Check the requested file and send the first window of data packets
+	 */
+	@Override
+	protected void start(TFTPRequestPacket requestPacket) throws IOException, TFTPErrorException {
+		printInformation("Request session has received the RRQ.", requestPacket);
+		File file = new File(server.getFilePath(filename));
+		TFTPFileInfo info = server.getFileInfo(file);
+		if (!info.exists()) { // check if file exist
+			server.fileMissing(file);
+			sendFileNotFound(filename + " not found in server's folder.");
+			finish();
+			return;
+		}
+
+		if (!info.canRead()) { // check if the file can be read
+			sendAccessViolation("Server has no permission to read " + filename);
+			finish();
+			return;
+		}
+
+		Map<String, String> acceptedOptions = negotiateOptions(requestPacket, info);
+		try {
+			reader = server.openBlockReader(file, transferOptions);
+		} catch (NoSuchFileException | FileNotFoundException e) { // removed since its attributes were read
+			server.fileChanged(file);
+			server.fileMissing(file);
+			sendFileNotFound(filename + " not found in server's folder.");
+			finish();
+			return;
+		} catch (AccessDeniedException e) { // no longer readable since its attributes were read
+			server.fileChanged(file);
+			sendAccessViolation("Server has no permission to read " + filename);
+			finish();
+			return;
+		}
+		window = new TFTPSendWindow(reader, transferOptions);
+		if (reader instanceof TFTPLiveBlockReader) {
+			liveReader = (TFTPLiveBlockReader) reader;
+			wakeUp = new WakeUp();
+		}
+		if (!acceptedOptions.isEmpty()) {
+			// the client acknowledges the option ack packet with ack packet 0
+			optionAckPending = true;
+			sendOptionAck(acceptedOptions, true);
+			timer.start();
+			waitForPacket();
+			return;
+		}
+		sendWindowAndWait();
+	}
+
+	/**
+	 * Send the window, and wait for the ack packet or for the upload if the
+	 * session has caught up with it
+	 * 
+	 * @throws IOException
+	 * @throws TFTPErrorException
+	 */
+	private void sendWindowAndWait() throws IOException, TFTPErrorException {
+		if (sendWindow())
+			waitForPacket();
+		else
+			waitForWakeUp(); // the client re-sends its ack if the data packets sent so far are lost
+	}
+
+	/**
+	 * Send all data packets of the window that have not been sent yet, stops
+	 * at the first block that the upload of the file has not written yet
+	 * 
+	 * @return true if the window has been sent, false if the session waits for the upload
+	 * @throws IOException
+	 * @throws TFTPErrorException - if the upload of the file has been aborted
+	 */
+	private boolean sendWindow() throws IOException, TFTPErrorException {
+		if (window.isResending())
+			timer.resent();
+		else
+			timer.start();
+		while (window.hasPacketToSend()) {
+			if (liveReader != null && !liveReader.isAvailable(window.getNextBlock(), wakeUp)) {
+				stalled = true;
+				return false;
+			}
+			TFTPDataPacket DATAPacket;
+			try {
+				DATAPacket = window.nextPacket(address, port);
+			} catch (FileNotFoundException e) { // the upload that the file is read from has been aborted
+				sendFileNotFound(e.getMessage());
+				throw new TFTPErrorException(e.getMessage());
+			}
+			sendPacket(DATAPacket);
+			printInformation("Request session has sent the Data packet.", DATAPacket);
+		}
+		return true;
+	}
+
+	/**
+	 * The upload of the file has progressed, send the rest of the window
+	 */
+	@Override
+	protected void handleWakeUp() throws IOException, TFTPErrorException {
+		if (!stalled)
+			return;
+		stalled = false;
+		sendWindowAndWait();
+	}
+
+	/**
+	 * Handle the ack packet for the data packets sent
+	 */
+	@Override
+	protected void handlePacket(TFTPPacket packet) throws IOException, TFTPErrorException {
+		if (!(packet instanceof TFTPAckPacket))
+			throw new TFTPErrorException("Unknown packet received.");
+
+		TFTPAckPacket AckPacket = (TFTPAckPacket) packet;
+		if (optionAckPending) {
+			if (AckPacket.getBlockNumber() != 0) { // only ack packet 0 is valid before the first data packet
+				String errorMsg = "Request session has received future ack packet with block number: "
+						+ AckPacket.getBlockNumber();
+				sendIllegalTFTPOperation(errorMsg);
+			}
+			printInformation("Request session has received the ack packet.", AckPacket);
+			timer.acknowledged();
+			optionAckPending = false;
+		} else if (window.isOldAck(AckPacket.getBlockNumber())) {
+			print("Request session has received one old ack packet, will ignore it...");
+			return;
+		} else if (window.isFutureAck(AckPacket.getBlockNumber())) { // received future ack packet, this is invalid
+			String errorMsg = "Request session has received future ack packet with block number: "
+					+ AckPacket.getBlockNumber();
+			sendIllegalTFTPOperation(errorMsg);
+		} else { // received correct ack packet, move the window
+			printInformation("Request session has received the ack packet.", AckPacket);
+			timer.acknowledged();
+			window.acknowledge(AckPacket.getBlockNumber());
+			if (window.isFinished()) { // the last data packet has been acknowledged
+				finish();
+				return;
+			}
+		}
+		sendWindowAndWait();
+	}
+
+	/**
+	 * The data packets in the window might be lost, so the window should be re-sent
+	 */
+	@Override
+	protected void handleTimeout() throws IOException, TFTPErrorException {
+		if (optionAckPending) {
+			resendPacket();
+			return;
+		}
+		print("Last packet might be lost, sending last packet again...");
+		window.resend();
+		sendWindow();
+	}
+
+	/**
+	 * Close the block reader, which releases the mapping of the file
+	 */
+	@Override
+	protected void closeFile(boolean success) throws IOException {
+		if (reader != null)
+			reader.close();
+	}
+}
@@ -0,0 +1,122 @@
+package project;
+
+/**
+ * Keeps track of the data packets received in a window(RFC 7440 windowsize).
+ * The receiver acknowledges once per window, or as soon as the last data
+ * packet arrives. When a packet arrives out of order, the receiver
+ * acknowledges the last block it has received in order, so that the sender
+ * goes back and sends the window again from there. Only one ack packet is
+ * sent for a burst of out of order packets, so that a window which is sent
+ * again does not cause a storm of ack packets.
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPReceiveWindow {
+	private TFTPTransferOptions options; // window size and rollover are known once the options are accepted
+	// logical block numbers, they do not roll over
+	private long nextBlock; // block number of the next data packet expected
+	private long lastOutOfOrderBlock; // block number of the last out of order packet, -1 after a packet in order
+	private int blocksSinceAck; // number of blocks received in order since the last ack packet
+
+	/**
+	 * Constructor
+	 * 
+	 * @param options - options of the transfer
+	 */
+	TFTPReceiveWindow(TFTPTransferOptions options) {
+		this.options = options;
+		this.nextBlock = 1;
+		this.lastOutOfOrderBlock = -1;
+		this.blocksSinceAck = 0;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return logical block number of the next data packet expected
+	 */
+	public long getNextBlock() {
+		return nextBlock;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return block number of the last data packet received in order, as sent in the ack packet
+	 */
+	public int getLastBlock() {
+		return TFTPBlockNumber.toPacketBlockNumber(nextBlock - 1, options.getRollover());
+	}
+
+	/**
+	 * Convert the block number of a data packet into the logical block number
+	 * 
+	 * @param blockNumber
+	 * @return logical block number
+	 */
+	private long toLogicalBlockNumber(int blockNumber) {
+		return TFTPBlockNumber.toLogicalBlockNumber(blockNumber, nextBlock, options.getRollover());
+	}
+
+	/**
+	 * Check if the data packet with the given block number is the next one
+	 * 
+	 * @param blockNumber
+	 * @return true if the data packet is expected, false otherwise
+	 */
+	public boolean isNext(int blockNumber) {
+		return toLogicalBlockNumber(blockNumber) == nextBlock;
+	}
+
+	/**
+	 * Check if the data packet with the given block number can be sent by the
+	 * sender in the current window, any packet after the window is invalid
+	 * 
+	 * @param blockNumber
+	 * @return true if the block number is in the window, false otherwise
+	 */
+	public boolean isInWindow(int blockNumber) {
+		return toLogicalBlockNumber(blockNumber) < nextBlock + options.getWindowSize();
+	}
+
+	/**
+	 * The next data packet has been received
+	 * 
+	 * @param lastDataPacket
+	 * @return true if the data packet should be acknowledged now
+	 */
+	public boolean receive(boolean lastDataPacket) {
+		++nextBlock;
+		++blocksSinceAck;
+		lastOutOfOrderBlock = -1;
+		return lastDataPacket || blocksSinceAck >= options.getWindowSize();
+	}
+
+	/**
+	 * A data packet other than the next one has been received
+	 * 
+	 * @param blockNumber
+	 * @return true if the last block received in order should be acknowledged now
+	 */
+	public boolean receiveOutOfOrder(int blockNumber) {
+		long block = toLogicalBlockNumber(blockNumber);
+		// block numbers only increase within a burst of packets
+		boolean newBurst = lastOutOfOrderBlock == -1 || block <= lastOutOfOrderBlock;
+		lastOutOfOrderBlock = block;
+		if (!newBurst)
+			return false;
+		// the sender is sending the window again before we have acknowledged
+		// it, the rest of the window will arrive in order after the old packets
+		if (block < nextBlock && blocksSinceAck > 0)
+			return false;
+		return true;
+	}
+
+	/**
+	 * The last block received in order has been acknowledged
+	 */
+	public void acknowledged() {
+		blocksSinceAck = 0;
+	}
+}
@@ -2,23 +2,28 @@ package project;
 
 import java.net.DatagramSocket;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.NoSuchFileException;
+import java.util.Map;
 
 /**
  * TFTPRequesthandler class that will handle RRQ or WRQ received
- * by the Request listener thread
+ * by the Request listener thread, the handler is run on its own thread
+ * (platform or virtual thread depending on the server engine)
  * 
  * @author yunkai wang
  *
  */
-public class TFTPRequestHandler extends Thread {
+public class TFTPRequestHandler implements Runnable {
 	private TFTPServer server; // server that this listener is working for
 	private InetAddress address; // client address
 	private int port; // client port
@@ -27,6 +32,13 @@ public class TFTPRequestHandler extends Thread {
 	private byte[] data; // packet data
 	private String filename; // filename of the request
 	private TFTPPacket lastPacket; // last packet sent
+	private TFTPTransferOptions transferOptions; // options negotiated for the transfer
+	private TFTPRetransmissionTimer timer; // retransmission timer of the transfer
+	private TFTPSendBuffer sendBuffer; // buffer that every packet sent is encoded into
+	private TFTPPacketView receiveView; // view that every packet received is decoded in
+	private ByteBuffer leasedBuffer; // buffer leased from the buffer pool for the data packets, null before the transfer starts
+	private TFTPAckPacket ackPacket; // ack packet that every block received is acknowledged with, created with the first ack
+	private boolean admitted; // true while the handler holds its place in the buffer pool, until it has leased its buffer
 	
 	/**
 	 * Constructor
@@ -42,6 +54,9 @@ public class TFTPRequestHandler extends Thread {
 		this.port = port;
 		this.packet = packet;
 		this.data = packet.getData();
+		this.sendBuffer = new TFTPSendBuffer();
+		this.receiveView = new TFTPPacketView();
+		this.admitted = true; // the server starts a handler once the buffer pool has admitted it
 		this.extractFileName(data);
 	}
 
@@ -53,7 +68,7 @@ public class TFTPRequestHandler extends Thread {
 	private void extractFileName(byte[] data) {
 		int i = 1;
 		StringBuilder filenameBuilder = new StringBuilder();
-		while (data[++i] != 0) {
+		while (++i < data.length && data[i] != 0) { // the request data is copied without the rest of the receive buffer
 			filenameBuilder.append((char) data[i]);
 		}
 		filename = filenameBuilder.toString();
@@ -64,7 +79,6 @@ public class TFTPRequestHandler extends Thread {
 	 */
 	private void handleRequest() {
 		TFTPPacket requestPacket = null;
-		boolean shouldDeleteFile = false;
 		try {
 			try {
 				requestPacket = TFTPPacket.createFromPacket(packet);
@@ -76,23 +90,18 @@ public class TFTPRequestHandler extends Thread {
 			if (((TFTPRequestPacket) requestPacket).isReadRequest()) { // RRQ
 				server.printInformation(ThreadLog.formatThreadPrint("Request handler has received the RRQ."), 
 						requestPacket);
-				writeFileToClient();
+				writeFileToClient((TFTPRequestPacket) requestPacket);
 			} else { // WRQ
 				server.printInformation(ThreadLog.formatThreadPrint("Request handler has received the WRQ."),
 						requestPacket);
-				readFileFromClient();
+				readFileFromClient((TFTPRequestPacket) requestPacket);
 			}
 		} catch (TFTPErrorException e) {
 			ThreadLog.print("Request handler: Failed to transfer " + filename + 
 					" with client since the following error message:\n" +
 					e.getMessage());
-			shouldDeleteFile = true;
 		} catch (IOException e) {
 			ThreadLog.print("Request handler failed to send the request. Please try again.\n");
-			shouldDeleteFile = true;
-		} finally {
-			if (shouldDeleteFile && server.isWriteRequest(data))
-				new File(server.getFilePath(filename)).delete();
 		}
 	}
 
@@ -116,19 +125,26 @@ public class TFTPRequestHandler extends Thread {
 	private void sendPacket(TFTPPacket packet, boolean recordForResend) throws IOException {
 		if (recordForResend)
 			lastPacket = packet;
-		socket.send(packet.createDatagramPacket());
+		socket.send(sendBuffer.toDatagramPacket(packet));
 	}
 
 	/**
-	 * Receive datagram packet
+	 * Receive a packet into the receive view, the view is only valid until
+	 * the next packet is received
 	 * 
-	 * @return datagramPacket
+	 * @return receiveView
 	 * @throws IOException
 	 */
-	private DatagramPacket receivePacket() throws IOException {
-		DatagramPacket packet = TFTPPacket.createDatagramPacketForReceive();
-		socket.receive(packet);
-		return packet;
+	private TFTPPacketView receivePacket() throws IOException {
+		DatagramPacket packet = receiveView.prepareReceive(transferOptions.getBlockSize());
+		socket.setSoTimeout(timer.getTimeout());
+		server.handlerParked(); // waiting for the client, a virtual thread parks here
+		try {
+			socket.receive(packet);
+		} finally {
+			server.handlerUnparked();
+		}
+		return receiveView;
 	}
 
 	/**
@@ -173,6 +189,20 @@ public class TFTPRequestHandler extends Thread {
 		sendPacket(errorPacket);
 	}
 
+	/**
+	 * Send TFTPErrorPacket with not defined error to client
+	 * 
+	 * @param errorMsg
+	 * @throws IOException
+	 */
+	private void sendNotDefined(String errorMsg) throws IOException {
+		TFTPErrorPacket errorPacket = TFTPErrorPacket.createNotDefined(errorMsg, address, port);
+		server.printInformation(
+				ThreadLog.formatThreadPrint("Request handler has sent not defined error packet back to client."),
+				errorPacket);
+		sendPacket(errorPacket);
+	}
+
 	/**
 	 * Send TFTPErrorPacket with illegal TFTP operation error to client
 	 * 
@@ -203,6 +233,65 @@ public class TFTPRequestHandler extends Thread {
 		sendPacket(errorPacket);
 	}
 
+	/**
+	 * Send TFTPErrorPacket with option negotiation failed error to client
+	 * 
+	 * @param errorMsg
+	 * @throws IOException
+	 * @throws TFTPErrorException
+	 */
+	private void sendOptionNegotiationFailed(String errorMsg) throws IOException, TFTPErrorException {
+		TFTPErrorPacket errorPacket = TFTPErrorPacket.createOptionNegotiationFailed(errorMsg, address, port);
+		server.printInformation(
+				ThreadLog.formatThreadPrint("Request handler has sent option negotiation failed packet back to client."),
+				errorPacket);
+		sendPacket(errorPacket);
+		throw new TFTPErrorException(errorMsg);
+	}
+
+	/**
+	 * Negotiate the options requested by the client
+	 * 
+	 * @param requestPacket
+	 * @param info - attributes of the requested file, its size is reported for a RRQ
+	 * @return accepted options, empty if no option is accepted
+	 * @throws IOException
+	 * @throws TFTPErrorException
+	 */
+	private Map<String, String> negotiateOptions(TFTPRequestPacket requestPacket, TFTPFileInfo info)
+			throws IOException, TFTPErrorException {
+		transferOptions = new TFTPTransferOptions(server.getConfig(), requestPacket.isReadRequest());
+		if (requestPacket.isReadRequest())
+			transferOptions.setTransferSize(info.length());
+		Map<String, String> acceptedOptions = null;
+		try {
+			acceptedOptions = TFTPOptionRegistry.negotiate(requestPacket.getOptions(), transferOptions);
+		} catch (IllegalArgumentException e) { // the requested options are refused
+			sendOptionNegotiationFailed(e.getMessage());
+		}
+		// only the sender of the data packets measures the round trip time,
+		// the receiver and a negotiated timeout use a fixed timeout
+		timer = new TFTPRetransmissionTimer(transferOptions.getTimeout());
+		if (!requestPacket.isReadRequest() || transferOptions.isTimeoutNegotiated())
+			timer.setFixedTimeout(transferOptions.getTimeout());
+		return acceptedOptions;
+	}
+
+	/**
+	 * Send the option ack packet for the accepted options
+	 * 
+	 * @param acceptedOptions
+	 * @param recordForResend
+	 * @throws IOException
+	 */
+	private void sendOptionAck(Map<String, String> acceptedOptions, boolean recordForResend) throws IOException {
+		TFTPOackPacket OackPacket = new TFTPOackPacket(acceptedOptions, address, port);
+		sendPacket(OackPacket, recordForResend);
+		server.printInformation(
+				ThreadLog.formatThreadPrint("Request handler has sent the option ack packet."),
+				OackPacket);
+	}
+
 	/**
 	 * Send unknown tid error packet
 	 * 
@@ -230,15 +319,13 @@ public class TFTPRequestHandler extends Thread {
 	 * Receive an ack packet with the specified block number
 	 * 
 	 * @param blockNumber
-	 * @return AckPacket
+	 * @return AckPacket, valid until the next packet is received
 	 * @throws IOException 
 	 * @throws TFTPErrorException 
 	 */
-	private TFTPAckPacket receiveAck(int blockNumber) throws IOException, TFTPErrorException {
+	private TFTPPacketView receiveAck(int blockNumber) throws IOException, TFTPErrorException {
 		// create packets for receiving and validating the packet
-		DatagramPacket receivePacket = null;
-		TFTPPacket packet;
-		TFTPAckPacket AckPacket;
+		TFTPPacketView receivePacket = null;
 		int numRetry = 0; // record the number of times we have retried
 		while (true) {
 			try {
@@ -250,28 +337,31 @@ public class TFTPRequestHandler extends Thread {
 					continue;
 				}
 					
-				packet = TFTPPacket.createFromPacket(receivePacket);
+				receivePacket.decode();
 
-				if (packet instanceof TFTPAckPacket) {
-					AckPacket = (TFTPAckPacket) packet;
+				if (receivePacket.type() == Type.ACK) {
+					int ackBlockNumber = receivePacket.getBlockNumber();
 					// received correct ack packet
-					if (AckPacket.getBlockNumber() == blockNumber)
-						return AckPacket;
-					else if (AckPacket.getBlockNumber() < blockNumber)
+					if (ackBlockNumber == blockNumber) {
+						timer.acknowledged();
+						return receivePacket;
+					}
+					else if (ackBlockNumber < blockNumber)
 						ThreadLog.print("Request handler has received one old ack packet, will ignore it...");
-					else if (AckPacket.getBlockNumber() > blockNumber) { // received future ack packet, this is invalid
-						String errorMsg = "Request handler has received future ack packet with block number: " + AckPacket.getBlockNumber();
+					else if (ackBlockNumber > blockNumber) { // received future ack packet, this is invalid
+						String errorMsg = "Request handler has received future ack packet with block number: " + ackBlockNumber;
 						sendIllegalTFTPOperation(errorMsg);
 					}
-				} else if (packet instanceof TFTPErrorPacket)
-					throw new TFTPErrorException(((TFTPErrorPacket) packet).getErrorMsg());
+				} else if (receivePacket.type() == Type.ERROR)
+					throw new TFTPErrorException(receivePacket.getErrorMsg());
 				else
 					throw new TFTPErrorException("Unknown packet received.");
 			} catch (IllegalArgumentException e) {
 				sendIllegalTFTPOperation(e.getMessage());
 			} catch (SocketTimeoutException e) {
-				if (numRetry >= TFTPPacket.MAX_RETRY)
+				if (timer.isConnectionLost(numRetry))
 					throw new TFTPErrorException("Connection lost.");
+				timer.timedOut(); // wait longer for the packet that is re-sent
 				resendPacket(); // last packet might be lost, re-send last packet
 				++numRetry;
 			}
@@ -279,18 +369,73 @@ public class TFTPRequestHandler extends Thread {
 	}
 	
 	/**
-	 * Receive a data packet with the specified block number
+	 * Receive the ack packet for the data packets in the window, the window is
+	 * sent again if no ack packet arrives in time
 	 * 
-	 * @param blockNumber
-	 * @return AckPacket
+	 * @param window
+	 * @return AckPacket, valid until the next packet is received
+	 * @throws IOException 
+	 * @throws TFTPErrorException 
+	 */
+	private TFTPPacketView receiveAck(TFTPSendWindow window) throws IOException, TFTPErrorException {
+		// create packets for receiving and validating the packet
+		TFTPPacketView receivePacket = null;
+		int numRetry = 0; // record the number of times we have retried
+		while (true) {
+			try {
+				receivePacket = receivePacket();
+				if (port != receivePacket.getPort() ||
+						!address.equals(receivePacket.getAddress())) {
+					String errorMsg = "This tid is invalid, please use the correct tid!";
+					sendUnknownTid(errorMsg, receivePacket.getAddress(), receivePacket.getPort());
+					continue;
+				}
+					
+				receivePacket.decode();
+
+				if (receivePacket.type() == Type.ACK) {
+					int ackBlockNumber = receivePacket.getBlockNumber();
+					if (window.isOldAck(ackBlockNumber))
+						ThreadLog.print("Request handler has received one old ack packet, will ignore it...");
+					else if (window.isFutureAck(ackBlockNumber)) { // received future ack packet, this is invalid
+						String errorMsg = "Request handler has received future ack packet with block number: " + ackBlockNumber;
+						sendIllegalTFTPOperation(errorMsg);
+					} else { // received correct ack packet, move the window
+						timer.acknowledged();
+						window.acknowledge(ackBlockNumber);
+						return receivePacket;
+					}
+				} else if (receivePacket.type() == Type.ERROR)
+					throw new TFTPErrorException(receivePacket.getErrorMsg());
+				else
+					throw new TFTPErrorException("Unknown packet received.");
+			} catch (IllegalArgumentException e) {
+				sendIllegalTFTPOperation(e.getMessage());
+			} catch (SocketTimeoutException e) {
+				if (timer.isConnectionLost(numRetry))
+					throw new TFTPErrorException("Connection lost.");
+				// data packets in the window might be lost, re-send the window
+				ThreadLog.print("Last packet might be lost, sending last packet again...");
+				timer.timedOut(); // wait longer for the window that is re-sent
+				window.resend();
+				sendWindow(window);
+				++numRetry;
+			}
+		}
+	}
+	
+	/**
+	 * Receive the next data packet of the window, data packets out of order
+	 * are answered with the ack packet for the last block received in order
+	 * 
+	 * @param window
+	 * @return DATAPacket, valid until the next packet is received
 	 * @throws IOException 
 	 * @throws TFTPErrorException 
 	 */
-	private TFTPDataPacket receiveData(int blockNumber) throws IOException, TFTPErrorException {
+	private TFTPPacketView receiveData(TFTPReceiveWindow window) throws IOException, TFTPErrorException {
 		// create packets for receiving and validating the packet
-		DatagramPacket receivePacket = null;
-		TFTPPacket packet;
-		TFTPDataPacket DATAPacket;
+		TFTPPacketView receivePacket = null;
 		int numRetry = 0;
 		while (true) {
 			try {
@@ -303,178 +448,308 @@ public class TFTPRequestHandler extends Thread {
 					continue;
 				}
 				
-				packet = TFTPPacket.createFromPacket(receivePacket);
-				// if received packet is not TFTPDataPacket, raise an exception
-				if (packet instanceof TFTPDataPacket) {
-					DATAPacket = (TFTPDataPacket) packet;
+				receivePacket.decode();
+				// if received packet is not a data packet, raise an exception
+				if (receivePacket.type() == Type.DATA) {
+					int blockNumber = receivePacket.getBlockNumber();
+					// data packet must not be larger than the negotiated block size
+					if (receivePacket.getLength() > transferOptions.getBlockSize())
+						sendIllegalTFTPOperation("Data packet is larger than the block size " 
+								+ transferOptions.getBlockSize());
 					// received correct data packet, continue transfer
-					if (DATAPacket.getBlockNumber() == blockNumber)
-						return DATAPacket;
-					// received old data packet, send the ack packet and
-					// wait for the correct data packet
-					else if (DATAPacket.getBlockNumber() < blockNumber) {
-						ThreadLog.print("Request handler has received one old data packet, sending the ack packet");
-						sendPacket(new TFTPAckPacket(DATAPacket.getBlockNumber(), 
-								address, port));
-					} else if (DATAPacket.getBlockNumber() > blockNumber) { // received future data packet, this is invalid
-						String errorMsg = "Request handler has received future data packet with block number: " + DATAPacket.getBlockNumber();
+					if (window.isNext(blockNumber))
+						return receivePacket;
+					// received future data packet after the window, this is invalid
+					if (!window.isInWindow(blockNumber)) {
+						String errorMsg = "Request handler has received future data packet with block number: " + blockNumber;
 						sendIllegalTFTPOperation(errorMsg);
 					}
-				} else if (packet instanceof TFTPErrorPacket)
-					throw new TFTPErrorException(((TFTPErrorPacket) packet).getErrorMsg());
+					// received old data packet, or missed a data packet in
+					// the window, send the ack packet for the last block
+					// received in order and wait for the correct data packet
+					if (window.receiveOutOfOrder(blockNumber)) {
+						ThreadLog.print("Request handler has received data packet " + blockNumber 
+								+ " out of order, sending the ack packet");
+						sendAck(window);
+					} else
+						ThreadLog.print("Request handler has received data packet " + blockNumber 
+								+ " out of order, will ignore it...");
+				} else if (receivePacket.type() == Type.ERROR)
+					throw new TFTPErrorException(receivePacket.getErrorMsg());
 				else
 					throw new TFTPErrorException("Unknown packet received.");
 			} catch (IllegalArgumentException e) {
 				sendIllegalTFTPOperation(e.getMessage());
 			} catch (SocketTimeoutException e) {
-				if (numRetry >= TFTPPacket.MAX_RETRY)
+				if (timer.isConnectionLost(numRetry))
 					throw new TFTPErrorException("Connection lost.");
 				++numRetry;
 			}
 		}
 	}
+
+	/**
+	 * Send all data packets of the window that have not been sent yet, the
+	 * blocks of a file that is still being uploaded may wait for the upload
+	 * 
+	 * @param window
+	 * @throws IOException
+	 * @throws TFTPErrorException - if the upload of the file has been aborted
+	 */
+	private void sendWindow(TFTPSendWindow window) throws IOException, TFTPErrorException {
+		if (window.isResending())
+			timer.resent();
+		else
+			timer.start();
+		while (window.hasPacketToSend()) {
+			// request handler forms the data packet
+			TFTPDataPacket DATAPacket;
+			try {
+				DATAPacket = window.nextPacket(address, port);
+			} catch (FileNotFoundException e) { // the upload that the file is read from has been aborted
+				sendFileNotFound(e.getMessage());
+				throw new TFTPErrorException(e.getMessage());
+			}
+
+			// request handler sends the packet
+			sendPacket(DATAPacket);
+			server.printInformation(
+					ThreadLog.formatThreadPrint("Request handler has sent the Data packet."),
+					DATAPacket);
+		}
+	}
+
+	/**
+	 * Send the ack packet for the last block received in order
+	 * 
+	 * @param window
+	 * @throws IOException
+	 */
+	private void sendAck(TFTPReceiveWindow window) throws IOException {
+		// request handler forms the ack packet, the same packet is reused for every ack
+		if (ackPacket == null)
+			ackPacket = new TFTPAckPacket(window.getLastBlock(), address, port);
+		else
+			ackPacket.setBlockNumber(window.getLastBlock());
+
+		// request handler sends the ack packet
+		sendPacket(ackPacket);
+		server.printInformation(
+				ThreadLog.formatThreadPrint("Request handler has sent the Ack packet."),
+				ackPacket);
+		window.acknowledged();
+	}
 	
 	/**
-	 * Handle WRQ
+	 * Handle WRQ, the client sends a window of data packets for each ack packet
 	 * 
+	 * @param requestPacket
 	 * @throws IOException 
 	 * @throws TFTPErrorException 
 	 */
-	private void readFileFromClient() throws IOException, TFTPErrorException {
+	private void readFileFromClient(TFTPRequestPacket requestPacket) throws IOException, TFTPErrorException {
 		String filePath = server.getFilePath(filename); // get full file path
 		
 		File file = null;
-		FileOutputStream fs = null;
-		boolean shouldDeleteFile = false; // in case any error happen, this will be set to true
+		RandomAccessFile fs = null;
+		TFTPFileWriter writer = null; // writes the file through the write-behind stage of the server
+		TFTPUploadStaging.Upload upload = null; // the file is written to the staging area until it is complete
 		
 		try {
 			file = new File(filePath);
-			if (file.exists()) { // check if file already exist
+			TFTPFileInfo info = server.getFileInfo(file);
+			if (info.exists()) { // check if file already exist
 				sendFileAlreadyExist(filename + " already exists in server folder!");
 				return;
 			}
-			if (!file.getParentFile().canWrite()) { // check if client has permission to write
+			if (!server.getFileInfo(file.getParentFile()).canWrite()) { // check if client has permission to write
 				sendAccessViolation(filename + " cannot be modified!");
 				return;
 			}
 
-			fs = new FileOutputStream(filePath);
+			Map<String, String> acceptedOptions = negotiateOptions(requestPacket, info);
+			// the client has sent the size of the file with the tsize option,
+			// refuse the file at once if it cannot fit on the disk
+			long transferSize = transferOptions.getTransferSize();
+			if (transferSize > file.getParentFile().getUsableSpace()) {
+				sendDiskFull("Server don't has enough space to write " + filename);
+				return;
+			}
+			upload = server.getUploadStaging().begin(file, transferSize);
+			if (upload == null) { // another client is uploading the file
+				sendFileAlreadyExist(filename + " already exists in server folder!");
+				return;
+			}
+			leaseBuffer(false);
+			fs = new RandomAccessFile(upload.getStagedFile(), "rw");
+			if (transferSize > 0)
+				fs.setLength(transferSize); // reserve the space for the whole file
+			writer = server.getWriteBehind().open(fs, upload);
 			
 			// packets used for receiving
-			TFTPDataPacket DATAPacket;
-			int blockNumber = 0;
-			
-			// request handler forms the ack packet
-			TFTPAckPacket AckPacket = new TFTPAckPacket(blockNumber++, address, port);
+			TFTPPacketView DATAPacket;
+			TFTPReceiveWindow window = new TFTPReceiveWindow(transferOptions);
 			
-			// request handler sends the ack packet
-			sendPacket(AckPacket);
-			server.printInformation(
-					ThreadLog.formatThreadPrint("Request handler has sent the Ack packet."),
-					AckPacket);
+			if (!acceptedOptions.isEmpty()) {
+				// the option ack packet acknowledges the request instead of ack packet 0
+				sendOptionAck(acceptedOptions, false);
+			} else {
+				sendAck(window); // ack packet 0
+			}
 
 			// run until all data has been received
 			do {
-				DATAPacket = receiveData(blockNumber);
+				DATAPacket = receiveData(window);
 				
 				// received packet is data packet
 				server.printInformation(
 						ThreadLog.formatThreadPrint("Request handler has received the Data packet."),
 						DATAPacket);
 				
-				// get free space left in disk
-				long freeSpace = file.getFreeSpace();
-				
-				// check if there is enough space to write the current data packet
-				if (freeSpace >= DATAPacket.getLength())
-					fs.write(DATAPacket.getFileData()); // write to the file
-				else {
-					String errorMsg = "Server don't has enough space to write " + filename;
-					sendDiskFull(errorMsg);
+				boolean lastDataPacket = DATAPacket.isLastDataPacket(transferOptions.getBlockSize());
+				try {
+					writer.write(DATAPacket.getFileData()); // write to the file
+					if (lastDataPacket) { // the last ack packet is only sent once the file has been published
+						writer.finish();
+						writer = null;
+						fs.close();
+						server.getUploadStaging().publish(upload);
+						server.fileChanged(file);
+					}
+				} catch (FileAlreadyExistsException e) { // the file has been created while it was uploaded
+					String errorMsg = filename + " already exists in server folder!";
+					sendFileAlreadyExist(errorMsg);
+					throw new TFTPErrorException(errorMsg); // abort the connection
+				} catch (AccessDeniedException e) { // the storage refuses to write the file
+					String errorMsg = filename + " cannot be modified!";
+					sendAccessViolation(errorMsg);
+					throw new TFTPErrorException(errorMsg); // abort the connection
+				} catch (IOException e) { // the data packets could not be written
+					String errorMsg = "Server failed to write " + filename + ": " + e.getMessage();
+					sendNotDefined(errorMsg);
 					throw new TFTPErrorException(errorMsg); // abort the connection
 				}
 
-				// request handler forms the ack packet
-				AckPacket = new TFTPAckPacket(blockNumber++, address, port);
-				
-				// request handler sends the ack packet
-				sendPacket(AckPacket);
-				server.printInformation(
-						ThreadLog.formatThreadPrint("Request handler has sent the Ack packet."),
-						AckPacket);
-			} while (!DATAPacket.isLastDataPacket());
+				// acknowledge once per window, or at the last data packet
+				if (window.receive(lastDataPacket))
+					sendAck(window);
+			} while (!DATAPacket.isLastDataPacket(transferOptions.getBlockSize()));
 		} finally {
+			if (writer != null) // the transfer has failed, wait for the batches that are being written
+				writer.abort();
 			if (fs != null)
 				fs.close();
-			if (shouldDeleteFile) // delete the file if any error happens
-				file.delete();
+			if (upload != null) // the staged file of a failed upload is deleted in the background
+				server.getUploadStaging().abort(upload);
 		} // end of try-catch
 	} // end of function
 
 	/**
-	 * Handle RRQ
+	 * Handle RRQ, a window of data packets is sent for each ack packet
 	 * 
+	 * @param requestPacket
 	 * @throws IOException
 	 * @throws TFTPErrorException 
 	 */
-	private void writeFileToClient() throws IOException, TFTPErrorException {
+	private void writeFileToClient(TFTPRequestPacket requestPacket) throws IOException, TFTPErrorException {
 		String filePath = server.getFilePath(filename);
 		File file = null;
-		FileInputStream fs = null;
+		TFTPBlockReader reader = null;
 		try {
 			file = new File(filePath);
-			if (!file.exists()) { // check if file exist
+			TFTPFileInfo info = server.getFileInfo(file);
+			if (!info.exists()) { // check if file exist
+				server.fileMissing(file);
 				this.sendFileNotFound(filename + " not found in server's folder.");
 				return;
 			}
 
-			if (!file.canRead()) { // check if the file can be read
+			if (!info.canRead()) { // check if the file can be read
 				this.sendAccessViolation("Server has no permission to read " + filename);
 				return;
 			}
 
-			fs = new FileInputStream(filePath);
+			Map<String, String> acceptedOptions = negotiateOptions(requestPacket, info);
+			leaseBuffer(true);
+			// blocks come from the block cache, or the shared mapping of a large file
+			try {
+				reader = server.openBlockReader(file, transferOptions);
+			} catch (NoSuchFileException | FileNotFoundException e) { // removed since its attributes were read
+				server.fileChanged(file);
+				server.fileMissing(file);
+				this.sendFileNotFound(filename + " not found in server's folder.");
+				return;
+			} catch (AccessDeniedException e) { // no longer readable since its attributes were read
+				server.fileChanged(file);
+				this.sendAccessViolation("Server has no permission to read " + filename);
+				return;
+			}
 
-			byte[] data = new byte[TFTPDataPacket.MAX_DATA_LENGTH];
-			int blockNumber = 1, byteUsed = 1;
+			TFTPSendWindow window = new TFTPSendWindow(reader, transferOptions);
 			
 			// packets used for receiving
-			TFTPAckPacket AckPacket;
-			TFTPDataPacket DATAPacket;
+			TFTPPacketView AckPacket;
 			
-			do {
-				byteUsed = fs.read(data);
-
-				// special case when the file length is a multiple of 512,
-				// then just send a empty data to indicate that the file has
-				// all been transfered
-				if (byteUsed == -1) {
-					byteUsed = 0;
-					data = new byte[0];
-				}
- 
-				// request handler forms the data packet
-				DATAPacket = new TFTPDataPacket(blockNumber, Arrays.copyOfRange(data, 0, byteUsed),
-						byteUsed, address, port);
-				
-				// request handler sends the packet
-				sendPacket(DATAPacket, true);
+			if (!acceptedOptions.isEmpty()) {
+				// the client acknowledges the option ack packet with ack packet 0
+				sendOptionAck(acceptedOptions, true);
+				timer.start();
+				AckPacket = receiveAck(0);
 				server.printInformation(
-						ThreadLog.formatThreadPrint("Request handler has sent the Data packet."),
-						DATAPacket);
-
-				AckPacket = receiveAck(blockNumber);
+						ThreadLog.formatThreadPrint("Request handler has received the ack packet."),
+						AckPacket);
+			}
+			
+			do {
+				sendWindow(window);
+				AckPacket = receiveAck(window);
 				server.printInformation(
 						ThreadLog.formatThreadPrint("Request handler has received the ack packet."),
 						AckPacket);
-				++blockNumber;
-			} while (byteUsed == TFTPDataPacket.MAX_DATA_LENGTH);
-		} finally { // close the file stream as the last step
-			if (fs != null)
-				fs.close();
+			} while (!window.isFinished());
+		} finally { // close the file as the last step
+			if (reader != null)
+				reader.close();
+		}
+	}
+
+	/**
+	 * Lease the buffer that the data packets are sent or received with from
+	 * the buffer pool, once the block size of the transfer is known. Waits
+	 * while the buffer does not fit in the budget of the pool, which delays
+	 * the transfer until other transfers have returned their buffers.
+	 * 
+	 * @param sending - true if the data packets are sent(RRQ), false if they are received(WRQ)
+	 * @throws TFTPErrorException
+	 */
+	private void leaseBuffer(boolean sending) throws TFTPErrorException {
+		int blockSize = transferOptions.getBlockSize();
+		try {
+			if (sending) {
+				leasedBuffer = server.getBufferPool().lease(TFTPDataPacket.HEADER_LENGTH + blockSize, false);
+				sendBuffer = new TFTPSendBuffer(leasedBuffer);
+			} else {
+				leasedBuffer = server.getBufferPool().lease(TFTPPacket.getReceiveLength(blockSize), false);
+				receiveView = new TFTPPacketView(leasedBuffer);
+			}
+			finishAdmission();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new TFTPErrorException("Request handler was interrupted while waiting for a buffer.");
 		}
 	}
 
+	/**
+	 * Give up the place of the handler in the buffer pool, once the buffer
+	 * has been leased or the handler ends without one
+	 */
+	private void finishAdmission() {
+		if (!admitted)
+			return;
+		admitted = false;
+		server.getBufferPool().finishAdmission();
+	}
+
 	/**
 	 * re-send the last packet send
 	 * @throws IOException 
@@ -497,11 +772,26 @@ public class TFTPRequestHandler extends Thread {
 		} catch (SocketException e) {
 			ThreadLog.print("Request handler failed to create the socket," 
 					+ " cannot handle the request");
+			finishAdmission();
 			return;
 		}
 		server.incrementNumThread(); // increase the thread count in server
-		handleRequest();
-		server.decrementNumThread(); // decrease the thread count in server
+		server.handlerStarted();
+		try {
+			handleRequest();
+		} finally {
+			if (timer != null) { // the request has been accepted
+				server.getStats().recordTransfer(timer);
+				if (server.isVerbose())
+					ThreadLog.print("Request handler: " + timer);
+			}
+			finishAdmission(); // the request has been refused before its buffer was leased
+			if (leasedBuffer != null) // give the buffer to the next transfer
+				server.getBufferPool().release(leasedBuffer);
+			socket.close();
+			server.handlerFinished();
+			server.decrementNumThread(); // decrease the thread count in server
+		}
 	}
 
 }
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.net.DatagramSocket;
 import java.net.DatagramPacket;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Request listener class that will listen on the given port for new requests, and
@@ -20,6 +22,9 @@ public class TFTPRequestListener extends Thread {
 	// the request listen will not accept any new requests
 	private boolean acceptNewConnection;
 	private DatagramSocket socket;
+	private TFTPSendBuffer sendBuffer; // buffer that the error packets are encoded into
+	private ByteBuffer receiveBuffer; // buffer that every request is received into, reserved from the buffer pool
+	private DatagramPacket receivePacket; // packet that shares the array of the receive buffer
 	
 	/**
 	 * Constructor
@@ -31,6 +36,10 @@ public class TFTPRequestListener extends Thread {
 		this.server = server;
 		this.port = port;
 		this.acceptNewConnection = true;
+		this.sendBuffer = new TFTPSendBuffer();
+		this.receiveBuffer = server.getBufferPool().reserve(
+				TFTPPacket.getReceiveLength(TFTPDataPacket.DEFAULT_BLOCK_SIZE), false);
+		this.receivePacket = new DatagramPacket(receiveBuffer.array(), receiveBuffer.capacity());
 	}
 	
 	/**
@@ -41,6 +50,45 @@ public class TFTPRequestListener extends Thread {
 		socket.close(); // close socket as it will not be used any more
 	}
 	
+	/**
+	 * Print how many of the request handlers created by this listener are
+	 * parked(waiting for a packet from the client) and how many are running
+	 */
+	protected void printHandlerCount() {
+		int numHandlers = server.getNumHandlers();
+		int numParked = Math.min(server.getNumParkedHandlers(), numHandlers);
+		System.out.println("Current number of request handlers is: " + numHandlers
+				+ " (parked: " + numParked + ", running: " + (numHandlers - numParked) + ")");
+	}
+
+	/**
+	 * Answer a RRQ for a file that is known to be missing with a file not
+	 * found error packet, no request handler or session is started for it
+	 * 
+	 * @param packet
+	 * @return true if the request has been answered, false otherwise
+	 * @throws IOException
+	 */
+	private boolean answerMissingFile(DatagramPacket packet) throws IOException {
+		if (server.isWriteRequest(packet.getData()))
+			return false;
+		TFTPRequestPacket requestPacket;
+		try {
+			requestPacket = TFTPRequestPacket.createFromPacket(packet);
+		} catch (IllegalArgumentException e) { // the request handler answers invalid requests
+			return false;
+		}
+		String filename = requestPacket.getFilename();
+		if (!server.isMissingFile(filename))
+			return false;
+		TFTPPacket errorPacket = TFTPErrorPacket.createFileNotFoundErrorPacket(
+				filename + " not found in server's folder.", packet.getAddress(), packet.getPort());
+		socket.send(sendBuffer.toDatagramPacket(errorPacket));
+		server.printInformation(ThreadLog.formatThreadPrint("Request listener has answered the RRQ, "
+				+ filename + " is missing."), errorPacket);
+		return true;
+	}
+
 	/**
 	 * Override run method
 	 */
@@ -57,19 +105,27 @@ public class TFTPRequestListener extends Thread {
 		}
 		
 		while (acceptNewConnection) { // keep waiting for new connection
-			// create new packet for receiving new requests
-			DatagramPacket packet = TFTPPacket.createDatagramPacketForReceive();
+			// the same packet receives every request, a request is only
+			// copied when it is handed to the engine
+			DatagramPacket packet = receivePacket;
+			packet.setLength(packet.getData().length); // the last receive has shortened the length
 			try {
 				socket.receive(packet);
-				// request listener is only responsible to create new request handler
-				// to handler new request packet
-				if (server.isRequestPacket(packet.getData()))
-					server.createNewRequestHandler(packet, packet.getAddress(), packet.getPort()).start();
+				// request listener is only responsible to hand new request packet
+				// to the server engine(new request handler or event loop session)
+				if (packet.getLength() >= 2 && server.isRequestPacket(packet.getData())) {
+					if (answerMissingFile(packet))
+						continue;
+					// a new transfer that does not fit in the budget of the
+					// buffer pool waits for its buffer in its own handler
+					server.dispatchRequest(new DatagramPacket(Arrays.copyOf(packet.getData(), packet.getLength()),
+							packet.getLength(), packet.getAddress(), packet.getPort()));
+				}
 				// if any packets other than request packet is received, send illegalTFTPOperation error packet
 				else {
 					String errMsg = "Request listener has received an packet with invalid OPCODE";
 					TFTPPacket errorPacket = TFTPErrorPacket.createIllegalTFTPOperation(errMsg, packet.getAddress(), packet.getPort());
-					socket.send(errorPacket.createDatagramPacket());
+					socket.send(sendBuffer.toDatagramPacket(errorPacket));
 					ThreadLog.print(errMsg);
 				}
 			} catch(IOException e) {
@@ -84,6 +140,7 @@ public class TFTPRequestListener extends Thread {
 		}
 		
 		socket.disconnect(); // disconnect the socket
+		server.getBufferPool().unreserve(receiveBuffer);
 		server.decrementNumThread(); // decrease the thread count in server
 	}
 	
@@ -1,10 +1,13 @@
 package project;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * TFTPRequestPacket, can be a RRQ or a WRQ
@@ -16,18 +19,22 @@ public class TFTPRequestPacket extends TFTPPacket {
 	private static final String mode = "octet"; // default mode (as described in the project description, it doesn't
 												// matter whether the mode is netascii or octet)
 	private String filename; // filename in this packet
+	private Map<String, String> options; // options requested(RFC 2347), name to value
 
 	/**
 	 * Constructor
 	 * 
 	 * @param filename
+	 * @param options
 	 * @param type
 	 * @param address
 	 * @param port
 	 */
-	private TFTPRequestPacket(String filename, Type type, InetAddress address, int port) {
+	private TFTPRequestPacket(String filename, Map<String, String> options, Type type, InetAddress address,
+			int port) {
 		super(type, address, port);
 		this.filename = filename;
+		this.options = Collections.unmodifiableMap(new LinkedHashMap<>(options));
 	}
 
 	/**
@@ -49,19 +56,26 @@ public class TFTPRequestPacket extends TFTPPacket {
 	}
 	
 	/**
-	 * Generate the byte array that contains all information in the packet
+	 * Write the packet into the buffer
 	 * 
-	 * @return byteArray
-	 * @throws IOException
+	 * @param buffer
 	 */
-	protected byte[] getData() throws IOException {
-		ByteArrayOutputStream steam = new ByteArrayOutputStream();
-		steam.write(type().OPCODE());
-		steam.write(filename.getBytes());
-		steam.write(0);
-		steam.write(mode.toLowerCase().getBytes());
-		steam.write(0);
-		return steam.toByteArray();
+	@Override
+	public void encodeTo(ByteBuffer buffer) {
+		type().encodeTo(buffer);
+		encodeString(buffer, filename);
+		encodeString(buffer, mode);
+		encodeOptions(buffer, options);
+	}
+
+	/**
+	 * Getter the number of bytes written by encodeTo
+	 * 
+	 * @return encodedLength
+	 */
+	@Override
+	public int getEncodedLength() {
+		return 2 + getEncodedLength(filename) + getEncodedLength(mode) + getEncodedLength(options);
 	}
 
 	/**
@@ -82,6 +96,15 @@ public class TFTPRequestPacket extends TFTPPacket {
 		return mode;
 	}
 
+	/**
+	 * Getter
+	 * 
+	 * @return options
+	 */
+	public Map<String, String> getOptions() {
+		return options;
+	}
+
 	/**
 	 * Create new write request
 	 * 
@@ -91,7 +114,21 @@ public class TFTPRequestPacket extends TFTPPacket {
 	 * @return TFTPRequestPacket
 	 */
 	public static TFTPRequestPacket createWriteRequest(String filename, InetAddress address, int port) {
-		return new TFTPRequestPacket(filename, Type.WRQ, address, port);
+		return createWriteRequest(filename, Collections.<String, String>emptyMap(), address, port);
+	}
+
+	/**
+	 * Create new write request with options
+	 * 
+	 * @param filename
+	 * @param options
+	 * @param address
+	 * @param port
+	 * @return TFTPRequestPacket
+	 */
+	public static TFTPRequestPacket createWriteRequest(String filename, Map<String, String> options,
+			InetAddress address, int port) {
+		return new TFTPRequestPacket(filename, options, Type.WRQ, address, port);
 	}
 
 	/**
@@ -103,7 +140,21 @@ public class TFTPRequestPacket extends TFTPPacket {
 	 * @return TFTPRequestPacket
 	 */
 	public static TFTPRequestPacket createReadRequest(String filename, InetAddress address, int port) {
-		return new TFTPRequestPacket(filename, Type.RRQ, address, port);
+		return createReadRequest(filename, Collections.<String, String>emptyMap(), address, port);
+	}
+
+	/**
+	 * Create new read request with options
+	 * 
+	 * @param filename
+	 * @param options
+	 * @param address
+	 * @param port
+	 * @return TFTPRequestPacket
+	 */
+	public static TFTPRequestPacket createReadRequest(String filename, Map<String, String> options,
+			InetAddress address, int port) {
+		return new TFTPRequestPacket(filename, options, Type.RRQ, address, port);
 	}
 
 	/**
@@ -148,10 +199,12 @@ public class TFTPRequestPacket extends TFTPPacket {
 		while (i < (packetDataLength - 1) && packetData[++i] != 0)
 			modeBuilder.append((char) packetData[i]);
 
-		// i != packetDataLength means there is more bytes after the final 0 byte, so
-		// the packet format contains an error
-		if (i != packetDataLength - 1)
-			throw new IllegalArgumentException("Invalid packet data, more zero bytes after the final 0 byte");
+		// the mode must be followed by a 0 byte
+		if (packetData[i] != 0)
+			throw new IllegalArgumentException("Invalid packet data, mode is not followed by a 0 byte");
+
+		// any bytes after the 0 byte of the mode are the options(RFC 2347)
+		Map<String, String> options = readOptions(packetData, i + 1, packetDataLength);
 		
 		// check if given mode is one of the three valid mode
 		String mode = modeBuilder.toString();
@@ -160,9 +213,9 @@ public class TFTPRequestPacket extends TFTPPacket {
 		
 		switch (OPCODE) {
 		case (1):
-			return createReadRequest(filename, address, port);
+			return createReadRequest(filename, options, address, port);
 		default: // OPCODE can only be 1 or 2 as it has been checked
-			return createWriteRequest(filename, address, port);
+			return createWriteRequest(filename, options, address, port);
 		}
 	}
 	
@@ -174,6 +227,7 @@ public class TFTPRequestPacket extends TFTPPacket {
 		return ("Packet type: " + this.type() + "\nDestination: \n" + 
 	            "IP address: " + this.getAddress() + "\nPort: " + this.getPort() +
 	            "\nInformation in this packet: \n" + "Filename: " + this.getFilename() +
-	            "\nMode: " + this.getMode() + "\n");
+	            "\nMode: " + this.getMode() + "\n" +
+	            (options.isEmpty() ? "" : "Options: " + options + "\n"));
 	}
 }
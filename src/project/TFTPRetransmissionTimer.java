@@ -0,0 +1,160 @@
+package project;
+
+/**
+ * Retransmission timer of one transfer. The round trip time is measured from
+ * the data packets(or the request/option ack packet) sent to the ack packet
+ * that acknowledges them, and the timeout is computed from the smoothed round
+ * trip time and its variation(RFC 6298). A packet that has been re-sent is not
+ * used for measuring(Karn's algorithm), and every timeout doubles the timeout
+ * until a new round trip time is measured. When the timeout has been
+ * negotiated with the timeout option, or this side never re-sends, the timer
+ * uses a fixed timeout instead.
+ * 
+ * The timeout only decides when the packets are re-sent. The transfer gives
+ * up after the packets have been re-sent TFTPPacket.MAX_RETRY times and the
+ * peer has not answered for MAX_RETRY times the fixed timeout(at least
+ * TFTPPacket.TIMEOUT for the adaptive timeout), so a short adaptive timeout
+ * does not abort a transfer whose peer stalls for a moment.
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPRetransmissionTimer {
+	public static final int MIN_TIMEOUT = 50; // shortest adaptive timeout in milliseconds
+	public static final int MAX_TIMEOUT = 60000; // longest adaptive timeout in milliseconds
+	private boolean adaptive; // false if the timeout is fixed
+	private int timeout; // current timeout in milliseconds
+	private double smoothedRtt; // smoothed round trip time in milliseconds, -1 before the first measurement
+	private double rttVariation; // round trip time variation in milliseconds
+	private long sendTime; // System.nanoTime at which the timed packet was sent, -1 if nothing is timed
+	private int numSamples; // number of round trip times measured
+	private int numTimeouts; // number of times the timer has expired
+	private long giveUpTime; // time in milliseconds without an answer after which the transfer gives up
+	private long waitStart; // System.nanoTime at which the peer stopped answering
+
+	/**
+	 * Constructor, the timer starts with the given timeout
+	 * 
+	 * @param timeout
+	 */
+	TFTPRetransmissionTimer(int timeout) {
+		this.adaptive = true;
+		this.timeout = timeout;
+		this.smoothedRtt = -1;
+		this.sendTime = -1;
+		this.giveUpTime = (long) Math.max(timeout, TFTPPacket.TIMEOUT) * TFTPPacket.MAX_RETRY;
+	}
+
+	/**
+	 * Use a fixed timeout, no round trip time is measured anymore
+	 * 
+	 * @param timeout
+	 */
+	public void setFixedTimeout(int timeout) {
+		this.adaptive = false;
+		this.timeout = timeout;
+		this.sendTime = -1;
+		this.giveUpTime = (long) timeout * TFTPPacket.MAX_RETRY;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return timeout in milliseconds
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return smoothed round trip time in milliseconds, -1 if nothing has been measured
+	 */
+	public double getSmoothedRtt() {
+		return smoothedRtt;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return numTimeouts
+	 */
+	public int getNumTimeouts() {
+		return numTimeouts;
+	}
+
+	/**
+	 * A new packet has been sent, measure the time until it is acknowledged
+	 */
+	public void start() {
+		if (adaptive)
+			sendTime = System.nanoTime();
+	}
+
+	/**
+	 * Packets have been sent again, the ack packet may belong to either of
+	 * the copies, so it cannot be measured(Karn's algorithm)
+	 */
+	public void resent() {
+		sendTime = -1;
+	}
+
+	/**
+	 * Check if the connection is lost after the timer has expired, called
+	 * before timedOut. The first timeout of a wait starts measuring how long
+	 * the peer has not answered.
+	 * 
+	 * @param numRetry - number of times the packets have been re-sent since the peer last answered
+	 * @return true if the transfer should give up, false if the packets should be re-sent
+	 */
+	public boolean isConnectionLost(int numRetry) {
+		long now = System.nanoTime();
+		if (numRetry == 0) // the wait has started one timeout ago
+			waitStart = now - timeout * 1000000L;
+		return numRetry >= TFTPPacket.MAX_RETRY && now - waitStart >= giveUpTime * 1000000L;
+	}
+
+	/**
+	 * The timer has expired, the packets will be sent again with double the timeout
+	 */
+	public void timedOut() {
+		++numTimeouts;
+		resent();
+		if (adaptive)
+			timeout = Math.min(timeout * 2, MAX_TIMEOUT);
+	}
+
+	/**
+	 * The packet that is being timed has been acknowledged, update the
+	 * smoothed round trip time and the timeout
+	 */
+	public void acknowledged() {
+		if (sendTime == -1)
+			return;
+		double rtt = (System.nanoTime() - sendTime) / 1000000.0;
+		sendTime = -1;
+		if (smoothedRtt < 0) { // first measurement
+			smoothedRtt = rtt;
+			rttVariation = rtt / 2;
+		} else {
+			rttVariation = 0.75 * rttVariation + 0.25 * Math.abs(smoothedRtt - rtt);
+			smoothedRtt = 0.875 * smoothedRtt + 0.125 * rtt;
+		}
+		++numSamples;
+		timeout = (int) Math.ceil(smoothedRtt + 4 * rttVariation);
+		timeout = Math.max(MIN_TIMEOUT, Math.min(timeout, MAX_TIMEOUT));
+	}
+
+	/**
+	 * toString method, used for printing
+	 */
+	@Override
+	public String toString() {
+		if (!adaptive)
+			return "RTO: " + timeout + "ms(fixed), timeouts: " + numTimeouts;
+		return "SRTT: " + (smoothedRtt < 0 ? "-" : String.format("%.3fms", smoothedRtt))
+				+ ", RTTVAR: " + (smoothedRtt < 0 ? "-" : String.format("%.3fms", rttVariation))
+				+ ", RTO: " + timeout + "ms, samples: " + numSamples + ", timeouts: " + numTimeouts;
+	}
+}
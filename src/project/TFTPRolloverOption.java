@@ -0,0 +1,62 @@
+package project;
+
+/**
+ * Rollover option, the block number that follows block 65535. Without the
+ * option the block number rolls over to 0, with rollover=1 it rolls over to
+ * 1, as some clients expect.
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPRolloverOption extends TFTPOption {
+	public static final String NAME = "rollover"; // option name
+
+	/**
+	 * Constructor
+	 */
+	TFTPRolloverOption() {
+		super(NAME);
+	}
+
+	/**
+	 * Parse the rollover value, it must be 0 or 1
+	 * 
+	 * @param value
+	 * @return rollover
+	 */
+	private int parseRollover(String value) {
+		int rollover = parseInt(value);
+		if (rollover != 0 && rollover != 1)
+			throw new IllegalArgumentException("Rollover must be 0 or 1");
+		return rollover;
+	}
+
+	/**
+	 * The rollover must be 0 or 1
+	 */
+	@Override
+	public void checkRequestedValue(String value) {
+		parseRollover(value);
+	}
+
+	/**
+	 * Use the requested rollover
+	 */
+	@Override
+	public String negotiate(String value, TFTPTransferOptions options) {
+		int rollover = parseRollover(value);
+		options.setRollover(rollover);
+		return String.valueOf(rollover);
+	}
+
+	/**
+	 * The server must acknowledge the requested rollover
+	 */
+	@Override
+	public void accept(String requestedValue, String value, TFTPTransferOptions options) {
+		int rollover = parseRollover(value);
+		if (rollover != parseRollover(requestedValue))
+			throw new IllegalArgumentException("Server has acknowledged invalid rollover " + value);
+		options.setRollover(rollover);
+	}
+}
@@ -0,0 +1,90 @@
+package project;
+
+import java.net.DatagramPacket;
+import java.nio.ByteBuffer;
+
+/**
+ * Buffer that the packets of one sender are encoded into before they are
+ * sent. The same buffer and datagram packet are used for every packet, so
+ * once the buffer has grown to the largest packet of the transfer, sending
+ * a packet does not allocate anything. A send buffer must only be used by
+ * one thread at a time, and the packet must be sent before the next one is
+ * encoded.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPSendBuffer {
+	private ByteBuffer buffer; // buffer that the packets are encoded into
+	private DatagramPacket datagramPacket; // datagram packet that shares the buffer array, created when it is first used
+
+	/**
+	 * Constructor, the buffer starts large enough for a data packet of the
+	 * default block size and grows when a larger packet is encoded
+	 */
+	TFTPSendBuffer() {
+		this(ByteBuffer.allocate(TFTPPacket.MAX_LENGTH));
+	}
+
+	/**
+	 * Constructor, the packets are encoded into the given buffer(i.e. a buffer
+	 * leased from the buffer pool), a direct buffer can only be used with
+	 * toByteBuffer as a datagram packet needs an array
+	 * 
+	 * @param buffer
+	 */
+	TFTPSendBuffer(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Encode the packet into the buffer, ready to be read from the start
+	 * 
+	 * @param packet
+	 */
+	private void encode(TFTPPacket packet) {
+		int length = packet.getEncodedLength();
+		if (length > buffer.capacity()) // a larger block size has been negotiated
+			buffer = buffer.isDirect() ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+		buffer.clear();
+		byte[] frame = packet.getFrame();
+		if (frame != null) // pre-encoded, only copied
+			buffer.put(frame, packet.getFrameOffset(), length);
+		else
+			packet.encodeTo(buffer);
+		buffer.flip();
+	}
+
+	/**
+	 * Encode the packet for sending with a datagram socket
+	 * 
+	 * @param packet
+	 * @return datagram packet addressed to the destination of the packet, valid
+	 *         until the next packet is encoded
+	 */
+	public DatagramPacket toDatagramPacket(TFTPPacket packet) {
+		if (datagramPacket == null)
+			datagramPacket = new DatagramPacket(new byte[0], 0);
+		byte[] frame = packet.getFrame();
+		if (frame != null) { // the datagram packet points at the shared frame
+			datagramPacket.setData(frame, packet.getFrameOffset(), packet.getEncodedLength());
+		} else {
+			encode(packet);
+			datagramPacket.setData(buffer.array(), 0, buffer.limit());
+		}
+		datagramPacket.setAddress(packet.getAddress());
+		datagramPacket.setPort(packet.getPort());
+		return datagramPacket;
+	}
+
+	/**
+	 * Encode the packet for sending with a datagram channel
+	 * 
+	 * @param packet
+	 * @return buffer that contains the packet, valid until the next packet is encoded
+	 */
+	public ByteBuffer toByteBuffer(TFTPPacket packet) {
+		encode(packet);
+		return buffer;
+	}
+}
@@ -0,0 +1,157 @@
+package project;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * Data packets that the sender keeps in flight(RFC 7440 windowsize). The
+ * sender sends every packet of the window before it waits for an ack packet,
+ * the blocks of the window are read again from the block reader when the
+ * receiver asks for them or the ack packet times out.
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPSendWindow {
+	private TFTPBlockReader reader; // reader of the file that is being sent
+	private int blockSize; // number of bytes of file data in each data packet
+	private int windowSize; // number of data packets sent before waiting for an ack packet
+	private int rollover; // block number that follows 65535
+	// logical block numbers, they do not roll over
+	private long windowStart; // first block that has not been acknowledged
+	private long nextBlock; // next block to send
+	private long lastReadBlock; // last block that has been read from the file
+	private long lastBlock; // block number of the last data packet, -1 while it is unknown
+	private TFTPDataPacket packet; // data packet that every block is sent with, created with the first block
+
+	/**
+	 * Constructor
+	 * 
+	 * @param reader - must read blocks of the negotiated block size
+	 * @param options - negotiated options of the transfer
+	 */
+	TFTPSendWindow(TFTPBlockReader reader, TFTPTransferOptions options) {
+		this.reader = reader;
+		this.blockSize = options.getBlockSize();
+		this.windowSize = options.getWindowSize();
+		this.rollover = options.getRollover();
+		this.windowStart = 1;
+		this.nextBlock = 1;
+		this.lastReadBlock = 0;
+		this.lastBlock = -1;
+	}
+
+	/**
+	 * Check if there is a packet in the window that has to be sent
+	 * 
+	 * @return true if there is a packet to send, false otherwise
+	 */
+	public boolean hasPacketToSend() {
+		return nextBlock < windowStart + windowSize && (lastBlock == -1 || nextBlock <= lastBlock);
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return nextBlock, the logical block number of the next packet to send
+	 */
+	public long getNextBlock() {
+		return nextBlock;
+	}
+
+	/**
+	 * Check if the next packet to send has been sent before
+	 * 
+	 * @return true if the window is being sent again, false otherwise
+	 */
+	public boolean isResending() {
+		return nextBlock <= lastReadBlock;
+	}
+
+	/**
+	 * Get the next data packet to send, its file data is read from the
+	 * block reader without copying. The same packet is reused for every block.
+	 * 
+	 * @param address
+	 * @param port
+	 * @return TFTPDataPacket, only valid until the next packet is created
+	 * @throws IOException
+	 */
+	public TFTPDataPacket nextPacket(InetAddress address, int port) throws IOException {
+		int blockNumber = TFTPBlockNumber.toPacketBlockNumber(nextBlock, rollover);
+		if (packet == null)
+			packet = new TFTPDataPacket(blockNumber, reader.readBlock(nextBlock), address, port);
+		else
+			packet.setBlock(blockNumber, reader.readBlock(nextBlock));
+		if (nextBlock > lastReadBlock) { // the block is sent for the first time
+			lastReadBlock = nextBlock;
+			// special case when the file length is a multiple of the block
+			// size, then just send a empty data to indicate that the file
+			// has all been transfered
+			if (packet.getLength() < blockSize)
+				lastBlock = nextBlock;
+		}
+		++nextBlock;
+		return packet;
+	}
+
+	/**
+	 * Convert the block number of an ack packet into the logical block number
+	 * 
+	 * @param blockNumber
+	 * @return logical block number
+	 */
+	private long toLogicalBlockNumber(int blockNumber) {
+		return TFTPBlockNumber.toLogicalBlockNumber(blockNumber, windowStart, rollover);
+	}
+
+	/**
+	 * Check if the ack packet with the given block number has been received before
+	 * 
+	 * @param blockNumber
+	 * @return true if the ack packet is old, false otherwise
+	 */
+	public boolean isOldAck(int blockNumber) {
+		return toLogicalBlockNumber(blockNumber) < windowStart;
+	}
+
+	/**
+	 * Check if the ack packet with the given block number acknowledges a block
+	 * that has not been sent yet
+	 * 
+	 * @param blockNumber
+	 * @return true if the ack packet is invalid, false otherwise
+	 */
+	public boolean isFutureAck(int blockNumber) {
+		return toLogicalBlockNumber(blockNumber) >= nextBlock;
+	}
+
+	/**
+	 * All blocks up to the given block number have been received, the window
+	 * moves to the block after it. If the receiver has acknowledged a block
+	 * before the end of the window, it has missed the next block, so the sender
+	 * goes back and sends the window again from there.
+	 * 
+	 * @param blockNumber
+	 */
+	public void acknowledge(int blockNumber) {
+		windowStart = toLogicalBlockNumber(blockNumber) + 1;
+		nextBlock = windowStart;
+	}
+
+	/**
+	 * The ack packet has timed out, the whole window will be sent again
+	 */
+	public void resend() {
+		nextBlock = windowStart;
+	}
+
+	/**
+	 * Check if the last data packet has been acknowledged
+	 * 
+	 * @return true if the transfer has finished, false otherwise
+	 */
+	public boolean isFinished() {
+		return lastBlock != -1 && windowStart > lastBlock;
+	}
+}
@@ -1,9 +1,21 @@
 package project;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * TFTPServer
@@ -17,18 +29,84 @@ public class TFTPServer extends TFTPHost {
 	public static final int TFTP_LISTEN_PORT = 69; // default port
 	private int numThread; // number of threads that are currently going
 	private TFTPRequestListener requestListener; // request listener
+	private TFTPServerConfig config; // settings chosen when the server is started
+	private TFTPNioEngine nioEngine; // engine that runs the sessions, null for the blocking engine
+	private ExecutorService handlerExecutor; // runs request handlers on virtual threads, null for the blocking engine
+	private AtomicInteger numHandlers; // number of request handlers that are running
+	private AtomicInteger numParkedHandlers; // number of request handlers waiting for a packet
+	private TFTPServerStats stats; // statistics of the finished transfers
+	private TFTPBufferPool bufferPool; // buffers that the transfers send and receive with
+	private TFTPFileHandles fileHandles; // open files being sent, shared by their transfers
+	private TFTPWriteBehind writeBehind; // writes the files uploaded by the clients
+	private TFTPUploadStaging uploadStaging; // uploads that are not complete yet
+	private TFTPStorage storage; // storage of the served directory
+	private TFTPMappedFiles mappedFiles; // memory mappings of the files being sent, shared by their transfers
+	private TFTPBlockCache blockCache; // blocks of the files sent, null if the cache is disabled
+	private TFTPMissingFiles missingFiles; // files that clients asked for but do not exist, null if disabled
+	private TFTPFileInventory inventory; // files of the served directory, null if disabled
+	private Map<String, TFTPMulticastSession> multicastSessions; // filename to the multicast session sending it
 	private static final String DEFAULT_FOLDER = System.getProperty("user.dir") +
 			File.separator + "server_files" + File.separator; // default folder location
 
 	/**
 	 * Constructor
+	 * 
+	 * @param config
+	 * @throws IOException
 	 */
-	TFTPServer() {
+	TFTPServer(TFTPServerConfig config) throws IOException {
 		super(DEFAULT_FOLDER, Mode.QUITE); // default mode is quite
+		this.config = config;
+		this.numHandlers = new AtomicInteger();
+		this.stats = new TFTPServerStats();
+		this.bufferPool = new TFTPBufferPool(config.getBufferBudget());
+		this.fileHandles = new TFTPFileHandles(config.getMaxIdleHandles(), config.getHandleIdleTime());
+		this.writeBehind = new TFTPWriteBehind(config.getWriteBatchSize(), config.getWriteBudget(),
+				config.getSyncInterval(), config.isSparse());
+		this.writeBehind.start();
+		this.mappedFiles = new TFTPMappedFiles(config.getMapThreshold(), config.getReadAhead(), fileHandles);
+		if (config.getBlockCacheSize() > 0)
+			this.blockCache = new TFTPBlockCache(config.getBlockCacheSize());
+		this.storage = createStorage();
+		this.uploadStaging = new TFTPUploadStaging(DEFAULT_FOLDER, storage);
+		this.uploadStaging.start();
+		this.numParkedHandlers = new AtomicInteger();
+		this.multicastSessions = new HashMap<>();
+		if (config.getEngine() == TFTPServerEngine.NIO)
+			this.nioEngine = new TFTPNioEngine(this, config.getNumEventLoops());
+		else if (config.getEngine() == TFTPServerEngine.VIRTUAL)
+			this.handlerExecutor = createVirtualThreadExecutor();
 		this.requestListener = new TFTPRequestListener(this, TFTP_LISTEN_PORT);
 		this.requestListener.start();
 	}
 
+	/**
+	 * Create the storage of the served directory with the configured backend.
+	 * The missing file cache and the file inventory are only used with the
+	 * file system, the other storages keep the attributes in memory.
+	 * 
+	 * @return TFTPStorage
+	 * @throws IOException - if the files cannot be loaded, or the archive cannot be opened
+	 */
+	private TFTPStorage createStorage() throws IOException {
+		switch (config.getStorageBackend()) {
+		case HEAP:
+			return new TFTPMemoryStorage(DEFAULT_FOLDER, false);
+		case OFF_HEAP:
+			return new TFTPMemoryStorage(DEFAULT_FOLDER, true);
+		case ZIP:
+			return new TFTPZipStorage(DEFAULT_FOLDER, config.getStorageArchive());
+		default:
+			if (config.getMissingFileCacheSize() > 0)
+				this.missingFiles = new TFTPMissingFiles(config.getMissingFileCacheSize());
+			if (config.isInventoryEnabled()) {
+				this.inventory = new TFTPFileInventory(DEFAULT_FOLDER);
+				this.inventory.start();
+			}
+			return new TFTPFileSystemStorage(inventory, blockCache, mappedFiles);
+		}
+	}
+
 	/**
 	 * Increase the thread count
 	 */
@@ -55,6 +133,61 @@ public class TFTPServer extends TFTPHost {
 		return numThread;
 	}
 
+	/**
+	 * Getter
+	 * 
+	 * @return config
+	 */
+	public TFTPServerConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * A request handler has started
+	 */
+	public void handlerStarted() {
+		numHandlers.incrementAndGet();
+	}
+
+	/**
+	 * A request handler has finished
+	 */
+	public void handlerFinished() {
+		numHandlers.decrementAndGet();
+	}
+
+	/**
+	 * A request handler is blocked waiting for a packet
+	 */
+	public void handlerParked() {
+		numParkedHandlers.incrementAndGet();
+	}
+
+	/**
+	 * A request handler has stopped waiting for a packet
+	 */
+	public void handlerUnparked() {
+		numParkedHandlers.decrementAndGet();
+	}
+
+	/**
+	 * Create the executor that starts a new virtual thread for every request
+	 * handler. Virtual threads are only available from Java 21, so the executor
+	 * is looked up by reflection, on older Java versions the request handlers
+	 * fall back to a pool of platform threads.
+	 * 
+	 * @return ExecutorService
+	 */
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			ThreadLog.print("Virtual threads are not supported by this Java version, "
+					+ "request handlers will run on platform threads");
+			return Executors.newCachedThreadPool();
+		}
+	}
+
 	/**
 	 * Create new request handler thread
 	 * 
@@ -67,6 +200,238 @@ public class TFTPServer extends TFTPHost {
 		return new TFTPRequestHandler(this, packet, address, port);
 	}
 
+	/**
+	 * Hand the request packet to the engine that the server is running,
+	 * called by the request listener for every request packet. A RRQ with the
+	 * multicast option is joined to its multicast group by the engine(see
+	 * execute), since joining reads the file and the listener must not wait
+	 * for it.
+	 * 
+	 * @param packet
+	 */
+	public void dispatchRequest(DatagramPacket packet) {
+		if (config.isMulticastEnabled()) {
+			TFTPRequestPacket requestPacket = getMulticastRequest(packet);
+			if (requestPacket != null) {
+				execute(new MulticastJoin(packet, requestPacket));
+				return;
+			}
+		}
+		dispatchUnicastRequest(packet);
+	}
+
+	/**
+	 * Hand the request packet to a request handler or an event loop session.
+	 * A request handler is only started once the buffer pool has room for
+	 * its transfer, until then no thread or socket is created for it.
+	 * 
+	 * @param packet
+	 */
+	private void dispatchUnicastRequest(DatagramPacket packet) {
+		if (nioEngine != null)
+			nioEngine.submit(packet);
+		else
+			bufferPool.admit(new InetSocketAddress(packet.getAddress(), packet.getPort()), new HandlerStart(packet));
+	}
+
+	/**
+	 * Run a task of a multicast transfer the way the engine runs the
+	 * transfers: on an event loop for the nio engine, on a virtual thread for
+	 * the virtual engine, and on a thread of its own for the blocking engine
+	 * 
+	 * @param task
+	 */
+	private void execute(Runnable task) {
+		if (nioEngine != null)
+			nioEngine.execute(task);
+		else if (handlerExecutor != null)
+			handlerExecutor.execute(task);
+		else
+			new Thread(task).start();
+	}
+
+	/**
+	 * Starts the request handler of a request that the buffer pool has
+	 * admitted, on the executor of the engine or a thread of its own
+	 */
+	private class HandlerStart implements Runnable {
+		private DatagramPacket packet; // request packet
+
+		/**
+		 * Constructor
+		 * 
+		 * @param packet
+		 */
+		HandlerStart(DatagramPacket packet) {
+			this.packet = packet;
+		}
+
+		/**
+		 * Override run method
+		 */
+		@Override
+		public void run() {
+			TFTPRequestHandler handler = createNewRequestHandler(packet, packet.getAddress(), packet.getPort());
+			if (handlerExecutor != null)
+				handlerExecutor.execute(handler);
+			else
+				new Thread(handler).start();
+		}
+	}
+
+	/**
+	 * Parse the request packet if it is a RRQ with the multicast option
+	 * 
+	 * @param packet
+	 * @return requestPacket, or null if the request is not sent with multicast
+	 */
+	private static TFTPRequestPacket getMulticastRequest(DatagramPacket packet) {
+		TFTPRequestPacket requestPacket;
+		try {
+			requestPacket = TFTPRequestPacket.createFromPacket(packet);
+		} catch (IllegalArgumentException e) { // the request handler answers invalid requests
+			return null;
+		}
+		if (!requestPacket.isReadRequest() || !requestPacket.getOptions().containsKey(TFTPMulticastOption.NAME))
+			return null;
+		return requestPacket;
+	}
+
+	/**
+	 * Joins the client of a RRQ with the multicast option to its multicast
+	 * group, the request is handed to the engine as a unicast transfer if the
+	 * file cannot be sent with multicast
+	 */
+	private class MulticastJoin implements Runnable {
+		private DatagramPacket packet; // request packet
+		private TFTPRequestPacket requestPacket; // parsed request packet
+
+		/**
+		 * Constructor
+		 * 
+		 * @param packet
+		 * @param requestPacket
+		 */
+		MulticastJoin(DatagramPacket packet, TFTPRequestPacket requestPacket) {
+			this.packet = packet;
+			this.requestPacket = requestPacket;
+		}
+
+		/**
+		 * Override run method
+		 */
+		@Override
+		public void run() {
+			incrementNumThread();
+			try {
+				if (!joinMulticastGroup(requestPacket))
+					dispatchUnicastRequest(packet);
+			} finally {
+				decrementNumThread();
+			}
+		}
+	}
+
+	/**
+	 * Add the client to the multicast group sending the requested file, a new
+	 * multicast session is started for the first client. The sessions are only
+	 * looked up under the lock, the client joins its session outside of it, so
+	 * that a slow join does not hold up the clients of other files.
+	 * 
+	 * @param requestPacket - RRQ with the multicast option
+	 * @return true if the request is handled by a multicast session, false otherwise
+	 */
+	private boolean joinMulticastGroup(TFTPRequestPacket requestPacket) {
+		File file = new File(getFilePath(requestPacket.getFilename()));
+		TFTPFileInfo info = getFileInfo(file);
+		if (!info.isFile() || !info.canRead()) // the request handler answers with the error
+			return false;
+		if (getLiveUpload(TFTPFileInventory.toPath(file.getPath())) != null) // sent with unicast as it is uploaded
+			return false;
+		while (true) {
+			TFTPMulticastSession session;
+			boolean created = false;
+			try {
+				synchronized (multicastSessions) {
+					session = multicastSessions.get(requestPacket.getFilename());
+					if (session == null || session.isClosed()) {
+						session = new TFTPMulticastSession(this, file, config.getMulticastAddress(), nextMulticastPort(),
+								nioEngine != null);
+						multicastSessions.put(requestPacket.getFilename(), session);
+						created = true;
+					}
+				}
+			} catch (IOException e) {
+				ThreadLog.print("Failed to start the multicast session for " + requestPacket.getFilename()
+						+ ", sending it to the client with unicast");
+				return false;
+			}
+			boolean joined = false;
+			try {
+				joined = session.join(requestPacket);
+			} catch (IOException e) {
+				ThreadLog.print("Failed to add the client to the multicast session for "
+						+ requestPacket.getFilename() + ", sending it to the client with unicast");
+			}
+			if (joined) {
+				if (created && nioEngine != null)
+					nioEngine.submit(session);
+				else if (created)
+					execute(session);
+				return true;
+			}
+			if (created) { // the file cannot be sent with multicast, nobody has joined the new session
+				session.discard();
+				multicastSessionFinished(session);
+				return false;
+			}
+			if (!session.isClosed()) // the client has negotiated another block size
+				return false;
+			// the session has closed while the client was joining, start a new one
+		}
+	}
+
+	/**
+	 * Find the first group port that is not used by a multicast session
+	 * 
+	 * @return port
+	 */
+	private int nextMulticastPort() {
+		int port = config.getMulticastPort();
+		boolean used = true;
+		while (used) {
+			used = false;
+			for (TFTPMulticastSession session : multicastSessions.values())
+				if (session.getGroupPort() == port) {
+					used = true;
+					++port;
+				}
+		}
+		return port;
+	}
+
+	/**
+	 * A multicast session has sent the file to all clients in the group
+	 * 
+	 * @param session
+	 */
+	public void multicastSessionFinished(TFTPMulticastSession session) {
+		synchronized (multicastSessions) {
+			multicastSessions.values().remove(session);
+		}
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return number of multicast sessions that are running
+	 */
+	public int getNumMulticastSessions() {
+		synchronized (multicastSessions) {
+			return multicastSessions.size();
+		}
+	}
+
 	/**
 	 * Print the menu
 	 */
@@ -77,6 +442,8 @@ public class TFTPServer extends TFTPHost {
 	            + "  mode             - show current mode\n"
 				+ "  switch           - switch mode\n"
 	            + "  count            - number of threads that are running\n"
+	            + "  config           - show the settings the server was started with\n"
+	            + "  stats            - statistics of the finished transfers and buffer pool occupancy\n"
 				+ "  dir/pwd          - current directory\n"
 	            + "  la/ls            - list of files under current directory\n"
 	  		    + "  rm <filename>    - remove existing file\n"
@@ -95,6 +462,14 @@ public class TFTPServer extends TFTPHost {
 		System.out.println("Waiting for all threads to finish...");
 		while (getNumThread() > 0)
 			continue;
+		if (nioEngine != null)
+			nioEngine.shutdown();
+		if (handlerExecutor != null)
+			handlerExecutor.shutdown();
+		if (missingFiles != null)
+			missingFiles.close();
+		if (inventory != null)
+			inventory.close();
 
 		System.out.println("Terminating server.");
 	}
@@ -104,6 +479,226 @@ public class TFTPServer extends TFTPHost {
 	 */
 	private void printCount() {
 		System.out.println("Current number of threads is: " + getNumThread());
+		if (nioEngine != null)
+			System.out.println("Current number of sessions in event loops is: " + nioEngine.getNumSessions());
+		else
+			requestListener.printHandlerCount();
+		if (config.isMulticastEnabled())
+			System.out.println("Current number of multicast sessions is: " + getNumMulticastSessions());
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return numHandlers
+	 */
+	public int getNumHandlers() {
+		return numHandlers.get();
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return numParkedHandlers
+	 */
+	public int getNumParkedHandlers() {
+		return numParkedHandlers.get();
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return stats
+	 */
+	public TFTPServerStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return bufferPool
+	 */
+	public TFTPBufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return writeBehind
+	 */
+	public TFTPWriteBehind getWriteBehind() {
+		return writeBehind;
+	}
+
+	/**
+	 * Get the upload of a file that RRQs read while it is uploaded
+	 * 
+	 * @param path - path returned by TFTPFileInventory.toPath
+	 * @return upload, or null if the file is not being uploaded or pass-through is disabled
+	 */
+	public TFTPUploadStaging.Upload getLiveUpload(Path path) {
+		return config.isPassThrough() ? uploadStaging.getUpload(path) : null;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return uploadStaging
+	 */
+	public TFTPUploadStaging getUploadStaging() {
+		return uploadStaging;
+	}
+
+	/**
+	 * Open a block reader for a file that is sent to clients, the file is read
+	 * from the storage. A file that is still being uploaded is read while the
+	 * upload writes it in pass-through mode.
+	 * 
+	 * @param file
+	 * @param options - negotiated options of the transfer
+	 * @return TFTPBlockReader, must be closed when the transfer has finished
+	 * @throws IOException
+	 */
+	public TFTPBlockReader openBlockReader(File file, TFTPTransferOptions options) throws IOException {
+		Path path = TFTPFileInventory.toPath(file.getPath());
+		TFTPUploadStaging.Upload upload = getLiveUpload(path);
+		if (upload != null) {
+			try {
+				return new TFTPLiveBlockReader(upload, options.getBlockSize());
+			} catch (NoSuchFileException e) { } // the upload has just been published, read the file
+		}
+		return storage.openReader(path, options);
+	}
+
+	/**
+	 * Check if the requested file is known to be missing, so that the request
+	 * can be answered without starting a transfer
+	 * 
+	 * @param filename
+	 * @return true if the file is missing, false if it may exist
+	 */
+	public boolean isMissingFile(String filename) {
+		String filePath = getFilePath(filename);
+		Path path = TFTPFileInventory.toPath(filePath);
+		if (getLiveUpload(path) != null)
+			return false;
+		TFTPFileInfo info = storage.lookup(path);
+		if (info != null)
+			return !info.exists();
+		return missingFiles != null && missingFiles.isMissing(filePath);
+	}
+
+	/**
+	 * A client has asked for a file that does not exist, the following
+	 * requests for the file are answered by the request listener. The files
+	 * whose attributes the storage keeps in memory are already known to be
+	 * missing.
+	 * 
+	 * @param file
+	 */
+	public void fileMissing(File file) {
+		if (missingFiles != null && storage.lookup(TFTPFileInventory.toPath(file.getPath())) == null)
+			missingFiles.add(file.getPath());
+	}
+
+	/**
+	 * A client has created, written or deleted a file
+	 * 
+	 * @param file
+	 */
+	public void fileChanged(File file) {
+		if (missingFiles != null)
+			missingFiles.created(file.getPath());
+		if (inventory != null)
+			inventory.refresh(TFTPFileInventory.toPath(file.getPath()));
+	}
+
+	/**
+	 * Get the attributes of the file from the storage. The staged files of
+	 * the uploads are never visible to the clients.
+	 * 
+	 * @param file
+	 * @return TFTPFileInfo
+	 */
+	public TFTPFileInfo getFileInfo(File file) {
+		Path path = TFTPFileInventory.toPath(file.getPath());
+		if (uploadStaging.contains(path))
+			return TFTPFileInfo.MISSING;
+		TFTPUploadStaging.Upload upload = getLiveUpload(path);
+		if (upload != null) // the length is -1 unless the client has sent it
+			return new TFTPFileInfo(true, false, upload.getExpectedLength(), System.currentTimeMillis(), true, false);
+		return storage.getFileInfo(path);
+	}
+
+	/**
+	 * Print the files of the current directory, from the storage if it keeps
+	 * the directory in memory. The upload staging directory is not listed.
+	 */
+	@Override
+	protected void printListFiles() {
+		List<String> names = storage.list(TFTPFileInventory.toPath(getFolder()));
+		if (names == null) { // the directory is listed on the disk
+			String[] fileNames = new File(getFolder()).list();
+			names = fileNames == null ? new ArrayList<String>() : Arrays.asList(fileNames);
+		}
+		for (String name : names)
+			if (!name.equals(TFTPUploadStaging.DIRECTORY_NAME))
+				System.out.println(name);
+		System.out.println();
+	}
+
+	/**
+	 * Change the current directory. The storages other than the file system
+	 * are built for the served directory when the server starts, so with
+	 * them only the directories that the storage serves can be entered,
+	 * checked in the storage instead of on the disk.
+	 * 
+	 * @param newDirectoryPath
+	 */
+	@Override
+	protected void switchDirectory(String newDirectoryPath) {
+		if (config.getStorageBackend() == TFTPStorageBackend.FILE_SYSTEM) {
+			super.switchDirectory(newDirectoryPath);
+			return;
+		}
+		Path directory = TFTPFileInventory.toPath(getFolder() + newDirectoryPath);
+		if (!storage.getFileInfo(directory).isDirectory()) {
+			System.out.println("New directory path is not served by the " + config.getStorageBackend().backend()
+					+ " storage, please try again.\n");
+			return;
+		}
+		setFolder(directory.toString() + File.separator);
+	}
+
+	/**
+	 * Print the statistics of the finished transfers, the occupancy of the
+	 * buffer pool, the storage, the upload staging area and the write-behind
+	 * stage, the open and mapped files, the block cache, the missing files and
+	 * the file inventory
+	 */
+	private void printStats() {
+		System.out.println(stats);
+		System.out.println(bufferPool);
+		System.out.println(storage);
+		System.out.println(uploadStaging);
+		System.out.println(writeBehind);
+		System.out.println(fileHandles);
+		System.out.println(mappedFiles);
+		if (blockCache != null)
+			System.out.println(blockCache);
+		if (missingFiles != null)
+			System.out.println(missingFiles);
+		if (inventory != null)
+			System.out.println(inventory);
+	}
+
+	/**
+	 * Print the settings the server was started with
+	 */
+	private void printConfig() {
+		System.out.println(config);
 	}
 
 	/**
@@ -136,6 +731,12 @@ public class TFTPServer extends TFTPHost {
 			case "count":
 				this.printCount();
 				continue;
+			case "config":
+				this.printConfig();
+				continue;
+			case "stats":
+				this.printStats();
+				continue;
 			case "pwd":
 			case "dir":
 				printDirectory();
@@ -194,6 +795,19 @@ public class TFTPServer extends TFTPHost {
 	}
 
 	public static void main(String[] args) {
-		new TFTPServer().waitForCommand();
+		TFTPServerConfig config = null;
+		try {
+			config = TFTPServerConfig.createFromArgs(args);
+		} catch (IllegalArgumentException e) { // invalid command line arguments
+			System.out.println(e.getMessage());
+			TFTPServerConfig.printUsage();
+			System.exit(1);
+		}
+		try {
+			new TFTPServer(config).waitForCommand();
+		} catch (IOException e) { // failed to start the engine
+			e.printStackTrace();
+			System.exit(1);
+		}
 	}
 }
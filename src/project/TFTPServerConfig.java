@@ -0,0 +1,551 @@
+package project;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * TFTPServerConfig
+ * Settings that are chosen when the server is started. They are given
+ * on the command line as key=value pairs, i.e.
+ *     java project.TFTPServer engine=nio loops=4
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPServerConfig {
+	private TFTPServerEngine engine; // engine used to run file transfers
+	private int numEventLoops; // number of event loop threads (nio engine only)
+	private int maxBlockSize; // largest block size that can be negotiated with blksize
+	private int maxWindowSize; // largest window size that can be negotiated with windowsize
+	private int minTimeout; // shortest timeout in milliseconds that can be negotiated
+	private int maxTimeout; // longest timeout in milliseconds that can be negotiated
+	private InetAddress multicastAddress; // group address of multicast transfers, null if multicast is disabled
+	private int multicastPort; // first port used by multicast groups
+	private long bufferBudget; // largest number of bytes of the buffers that transfers send and receive with
+	private long mapThreshold; // smallest file that is memory mapped for sending
+	private long blockCacheSize; // largest number of bytes in the block cache, 0 if the cache is disabled
+	private int readAhead; // largest number of blocks read ahead of a transfer, 0 if read-ahead is disabled
+	private int missingFileCacheSize; // largest number of missing files remembered, 0 if the cache is disabled
+	private boolean inventoryEnabled; // true if the files of the served directory are kept in memory
+	private int maxIdleHandles; // largest number of open files that no transfer is reading
+	private int handleIdleTime; // time in milliseconds an open file that no transfer is reading is kept
+	private long writeBudget; // largest number of bytes of uploaded data waiting to be written
+	private int writeBatchSize; // number of bytes of uploaded data written with one write
+	private long syncInterval; // when uploaded files are flushed to the disk(see TFTPWriteBehind)
+	private boolean sparse; // true if blocks of zeros in uploaded files are skipped instead of written
+	private boolean passThrough; // true if RRQs read the files that are still being uploaded
+	private TFTPStorageBackend storageBackend; // backend of the storage of the served directory
+	private String storageArchive; // archive served by the zip backend, null for the other backends
+
+	/**
+	 * Constructor, all settings start with the default value
+	 */
+	TFTPServerConfig() {
+		this.engine = TFTPServerEngine.BLOCKING;
+		this.numEventLoops = Runtime.getRuntime().availableProcessors();
+		this.maxBlockSize = TFTPDataPacket.MAX_BLOCK_SIZE;
+		this.maxWindowSize = 64;
+		this.minTimeout = 10;
+		this.maxTimeout = 255000;
+		this.multicastAddress = null;
+		this.multicastPort = 1758;
+		this.bufferBudget = 64 * 1024 * 1024;
+		this.mapThreshold = 64 * 1024;
+		this.blockCacheSize = 32 * 1024 * 1024;
+		this.readAhead = 8;
+		this.missingFileCacheSize = 1024;
+		this.inventoryEnabled = true;
+		this.maxIdleHandles = 64;
+		this.handleIdleTime = 30000;
+		this.writeBudget = 16 * 1024 * 1024;
+		this.writeBatchSize = 256 * 1024;
+		this.syncInterval = TFTPWriteBehind.SYNC_NONE;
+		this.sparse = true;
+		this.passThrough = false;
+		this.storageBackend = TFTPStorageBackend.FILE_SYSTEM;
+		this.storageArchive = null;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return engine
+	 */
+	public TFTPServerEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return numEventLoops
+	 */
+	public int getNumEventLoops() {
+		return numEventLoops;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return maxBlockSize
+	 */
+	public int getMaxBlockSize() {
+		return maxBlockSize;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return maxWindowSize
+	 */
+	public int getMaxWindowSize() {
+		return maxWindowSize;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return minTimeout
+	 */
+	public int getMinTimeout() {
+		return minTimeout;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return maxTimeout
+	 */
+	public int getMaxTimeout() {
+		return maxTimeout;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return multicastAddress
+	 */
+	public InetAddress getMulticastAddress() {
+		return multicastAddress;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return multicastPort
+	 */
+	public int getMulticastPort() {
+		return multicastPort;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return bufferBudget
+	 */
+	public long getBufferBudget() {
+		return bufferBudget;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return mapThreshold
+	 */
+	public long getMapThreshold() {
+		return mapThreshold;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return blockCacheSize
+	 */
+	public long getBlockCacheSize() {
+		return blockCacheSize;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return readAhead
+	 */
+	public int getReadAhead() {
+		return readAhead;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return missingFileCacheSize
+	 */
+	public int getMissingFileCacheSize() {
+		return missingFileCacheSize;
+	}
+
+	/**
+	 * Check if the files of the served directory are kept in memory
+	 * 
+	 * @return true if the inventory is enabled, false otherwise
+	 */
+	public boolean isInventoryEnabled() {
+		return inventoryEnabled;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return maxIdleHandles
+	 */
+	public int getMaxIdleHandles() {
+		return maxIdleHandles;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return handleIdleTime in milliseconds
+	 */
+	public int getHandleIdleTime() {
+		return handleIdleTime;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return writeBudget
+	 */
+	public long getWriteBudget() {
+		return writeBudget;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return writeBatchSize
+	 */
+	public int getWriteBatchSize() {
+		return writeBatchSize;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return syncInterval
+	 */
+	public long getSyncInterval() {
+		return syncInterval;
+	}
+
+	/**
+	 * Check if blocks of zeros in uploaded files are skipped instead of written
+	 * 
+	 * @return true if uploaded files are written as sparse files, false otherwise
+	 */
+	public boolean isSparse() {
+		return sparse;
+	}
+
+	/**
+	 * Check if RRQs read the files that are still being uploaded
+	 * 
+	 * @return true if pass-through is enabled, false otherwise
+	 */
+	public boolean isPassThrough() {
+		return passThrough;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return storageBackend
+	 */
+	public TFTPStorageBackend getStorageBackend() {
+		return storageBackend;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return storageArchive, null unless the zip backend is used
+	 */
+	public String getStorageArchive() {
+		return storageArchive;
+	}
+
+	/**
+	 * Check if read requests may be answered with a multicast transfer(RFC 2090)
+	 * 
+	 * @return true if multicast is enabled, false otherwise
+	 */
+	public boolean isMulticastEnabled() {
+		return multicastAddress != null;
+	}
+
+	/**
+	 * Create new server config from the command line arguments
+	 * 
+	 * @param args
+	 * @return TFTPServerConfig
+	 */
+	public static TFTPServerConfig createFromArgs(String[] args) {
+		TFTPServerConfig config = new TFTPServerConfig();
+		for (String arg : args) {
+			String[] pair = arg.split("=", 2);
+			if (pair.length != 2)
+				throw new IllegalArgumentException("Invalid argument: " + arg);
+			config.set(pair[0], pair[1]);
+		}
+		if (config.minTimeout > config.maxTimeout)
+			throw new IllegalArgumentException("mintimeout must not be larger than maxtimeout");
+		return config;
+	}
+
+	/**
+	 * Set the setting with the given key to the given value
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	private void set(String key, String value) {
+		switch (key.toLowerCase()) {
+		case "engine":
+			engine = TFTPServerEngine.getFromName(value);
+			return;
+		case "loops":
+			numEventLoops = parsePositive(key, value);
+			return;
+		case "maxblksize":
+			maxBlockSize = parsePositive(key, value);
+			if (maxBlockSize < TFTPDataPacket.MIN_BLOCK_SIZE || maxBlockSize > TFTPDataPacket.MAX_BLOCK_SIZE)
+				throw new IllegalArgumentException(key + " must be between " + TFTPDataPacket.MIN_BLOCK_SIZE
+						+ " and " + TFTPDataPacket.MAX_BLOCK_SIZE);
+			return;
+		case "maxwindowsize":
+			maxWindowSize = parsePositive(key, value);
+			// a larger window could not be told apart from the blocks before it after rollover
+			if (maxWindowSize > TFTPWindowSizeOption.MAX_WINDOW_SIZE)
+				throw new IllegalArgumentException(key + " must be between " + TFTPWindowSizeOption.MIN_WINDOW_SIZE
+						+ " and " + TFTPWindowSizeOption.MAX_WINDOW_SIZE);
+			return;
+		case "mintimeout":
+			minTimeout = parsePositive(key, value);
+			return;
+		case "maxtimeout":
+			maxTimeout = parsePositive(key, value);
+			return;
+		case "multicast":
+			setMulticastGroup(key, value);
+			return;
+		case "bufferbudget":
+			bufferBudget = parseSize(key, value);
+			return;
+		case "mapthreshold":
+			mapThreshold = parseSize(key, value);
+			return;
+		case "blockcache":
+			blockCacheSize = value.equals("0") ? 0 : parseSize(key, value);
+			return;
+		case "readahead":
+			readAhead = value.equals("0") ? 0 : parsePositive(key, value);
+			return;
+		case "missingcache":
+			missingFileCacheSize = value.equals("0") ? 0 : parsePositive(key, value);
+			return;
+		case "inventory":
+			if (!value.equals("on") && !value.equals("off"))
+				throw new IllegalArgumentException(key + " must be on or off");
+			inventoryEnabled = value.equals("on");
+			return;
+		case "idlehandles":
+			maxIdleHandles = value.equals("0") ? 0 : parsePositive(key, value);
+			return;
+		case "handleidletime":
+			handleIdleTime = parsePositive(key, value);
+			return;
+		case "writebudget":
+			writeBudget = parseSize(key, value);
+			return;
+		case "writebatch":
+			long batchSize = parseSize(key, value);
+			if (batchSize > Integer.MAX_VALUE)
+				throw new IllegalArgumentException(key + " must be smaller than 2g");
+			writeBatchSize = (int) batchSize;
+			return;
+		case "fsync":
+			if (value.equals("none"))
+				syncInterval = TFTPWriteBehind.SYNC_NONE;
+			else if (value.equals("close"))
+				syncInterval = TFTPWriteBehind.SYNC_ON_CLOSE;
+			else
+				syncInterval = parseSize(key, value);
+			return;
+		case "sparse":
+			if (!value.equals("on") && !value.equals("off"))
+				throw new IllegalArgumentException(key + " must be on or off");
+			sparse = value.equals("on");
+			return;
+		case "passthrough":
+			if (!value.equals("on") && !value.equals("off"))
+				throw new IllegalArgumentException(key + " must be on or off");
+			passThrough = value.equals("on");
+			return;
+		case "storage":
+			setStorage(key, value);
+			return;
+		default:
+			throw new IllegalArgumentException("Unknown setting: " + key);
+		}
+	}
+
+	/**
+	 * Set the multicast group from the given value, the value is the group
+	 * address optionally followed by the first port, i.e. 239.255.0.1:1758
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	private void setMulticastGroup(String key, String value) {
+		int separator = value.lastIndexOf(':');
+		if (separator != -1) {
+			multicastPort = parsePositive(key + " port", value.substring(separator + 1));
+			if (multicastPort > 0xffff)
+				throw new IllegalArgumentException(key + " port must be between 1 and 65535");
+			value = value.substring(0, separator);
+		}
+		try {
+			multicastAddress = InetAddress.getByName(value);
+		} catch (UnknownHostException e) {
+			throw new IllegalArgumentException(key + " address is invalid: " + value);
+		}
+		if (!multicastAddress.isMulticastAddress())
+			throw new IllegalArgumentException(key + " address must be a multicast address: " + value);
+	}
+
+	/**
+	 * Set the storage of the served directory from the given value, the value
+	 * is the name of the backend, the zip backend is followed by the archive,
+	 * i.e. zip:images.zip
+	 * 
+	 * @param key
+	 * @param value
+	 */
+	private void setStorage(String key, String value) {
+		int separator = value.indexOf(':');
+		storageBackend = TFTPStorageBackend.getFromName(separator == -1 ? value : value.substring(0, separator));
+		storageArchive = separator == -1 ? null : value.substring(separator + 1);
+		if (storageBackend == TFTPStorageBackend.ZIP && (storageArchive == null || storageArchive.isEmpty()))
+			throw new IllegalArgumentException(key + " must name the archive, i.e. zip:images.zip");
+		if (storageBackend != TFTPStorageBackend.ZIP && storageArchive != null)
+			throw new IllegalArgumentException(key + " only takes an archive with the zip backend");
+	}
+
+	/**
+	 * Parse the given value as a positive integer
+	 * 
+	 * @param key
+	 * @param value
+	 * @return int
+	 */
+	private static int parsePositive(String key, String value) {
+		try {
+			int i = Integer.parseInt(value);
+			if (i > 0)
+				return i;
+		} catch (NumberFormatException e) { }
+		throw new IllegalArgumentException(key + " must be a positive integer");
+	}
+
+	/**
+	 * Parse the given value as a positive number of bytes, optionally followed
+	 * by k or m for kilobytes or megabytes, i.e. 64m
+	 * 
+	 * @param key
+	 * @param value
+	 * @return long
+	 */
+	private static long parseSize(String key, String value) {
+		long unit = 1;
+		if (value.endsWith("k") || value.endsWith("K"))
+			unit = 1024;
+		else if (value.endsWith("m") || value.endsWith("M"))
+			unit = 1024 * 1024;
+		if (unit != 1)
+			value = value.substring(0, value.length() - 1);
+		return parsePositive(key, value) * unit;
+	}
+
+	/**
+	 * Print the usage of the server command line arguments
+	 */
+	public static void printUsage() {
+		System.out.println("Usage: TFTPServer [key=value]...\n"
+				+ "  engine=blocking|virtual|nio - engine used to run file transfers(default blocking)\n"
+				+ "  loops=<n>                   - number of event loop threads for the nio engine\n"
+				+ "  maxblksize=<n>              - largest block size clients can negotiate, i.e. 1468 to fit\n"
+				+ "                                a 1500 byte path MTU(default 65464)\n"
+				+ "  maxwindowsize=<n>           - largest window size clients can negotiate(default 64)\n"
+				+ "  mintimeout=<ms>             - shortest timeout clients can negotiate(default 10)\n"
+				+ "  maxtimeout=<ms>             - longest timeout clients can negotiate(default 255000)\n"
+				+ "  multicast=<addr>[:<port>]   - answer RRQs with the multicast option through this group,\n"
+				+ "                                i.e. 239.255.0.1:1758(default disabled)\n"
+				+ "  bufferbudget=<n>[k|m]       - memory of the buffers that transfers send and receive with,\n"
+				+ "                                new transfers wait when it is used up(default 64m)\n"
+				+ "  mapthreshold=<n>[k|m]       - smallest file that is memory mapped for RRQs, smaller files\n"
+				+ "                                are read with plain reads(default 64k)\n"
+				+ "  blockcache=<n>[k|m]         - memory of the cache of the blocks sent to clients, 0 disables\n"
+				+ "                                the cache(default 32m)\n"
+				+ "  readahead=<n>               - most blocks read ahead of the block being sent from files that\n"
+				+ "                                are not memory mapped, 0 disables read-ahead(default 8)\n"
+				+ "  missingcache=<n>            - most missing files remembered, RRQs for them are answered by\n"
+				+ "                                the request listener, 0 disables the cache(default 1024)\n"
+				+ "  inventory=on|off            - keep the files of the served directory and their attributes\n"
+				+ "                                in memory, requests are checked without the disk(default on)\n"
+				+ "  idlehandles=<n>             - most files kept open after their transfers have finished,\n"
+				+ "                                the open files are shared by their transfers(default 64)\n"
+				+ "  handleidletime=<ms>         - time an open file is kept after its transfers have finished\n"
+				+ "                                (default 30000)\n"
+				+ "  writebudget=<n>[k|m]        - memory of the uploaded data waiting to be written, the acks\n"
+				+ "                                are held when it is used up(default 16m)\n"
+				+ "  writebatch=<n>[k|m]         - uploaded data written to the disk with one write, at most the\n"
+				+ "                                writebudget(default 256k)\n"
+				+ "  fsync=none|close|<n>[k|m]   - flush uploaded files to the disk never, when they are complete,\n"
+				+ "                                or every n bytes and when they are complete(default none)\n"
+				+ "  sparse=on|off               - skip the blocks of zeros in uploaded files instead of writing\n"
+				+ "                                them, which leaves holes in the files(default on)\n"
+				+ "  passthrough=on|off          - send files that are still being uploaded to RRQs as the upload\n"
+				+ "                                writes them, instead of file not found(default off)\n"
+				+ "  storage=fs|heap|offheap|zip:<archive>\n"
+				+ "                              - storage of the served directory: the disk, the files loaded\n"
+				+ "                                into heap or direct memory at start, or the entries of a zip\n"
+				+ "                                or jar archive(read-only)(default fs)\n");
+	}
+
+	/**
+	 * toString method, used for printing
+	 */
+	@Override
+	public String toString() {
+		return "Server engine: " + engine.engine() + "\n"
+				+ (engine == TFTPServerEngine.NIO ? "Event loops: " + numEventLoops + "\n" : "")
+				+ "Maximum block size: " + maxBlockSize + "\n"
+				+ "Maximum window size: " + maxWindowSize + "\n"
+				+ "Timeout limits: " + minTimeout + "ms - " + maxTimeout + "ms\n"
+				+ "Multicast group: " + (isMulticastEnabled() ? 
+						multicastAddress.getHostAddress() + ":" + multicastPort : "disabled") + "\n"
+				+ "Buffer budget: " + bufferBudget / 1024 + "KB\n"
+				+ "Memory mapped files: " + mapThreshold / 1024 + "KB and larger\n"
+				+ "Block cache: " + (blockCacheSize == 0 ? "disabled" : blockCacheSize / 1024 + "KB") + "\n"
+				+ "Read-ahead: " + (readAhead == 0 ? "disabled" : "up to " + readAhead + " blocks") + "\n"
+				+ "Missing file cache: " + (missingFileCacheSize == 0 ? "disabled" : missingFileCacheSize + " files") + "\n"
+				+ "File inventory: " + (inventoryEnabled ? "enabled" : "disabled") + "\n"
+				+ "Idle open files: " + maxIdleHandles + ", kept for " + handleIdleTime + "ms\n"
+				+ "Write-behind: " + writeBatchSize / 1024 + "KB batches, budget " + writeBudget / 1024 + "KB, fsync "
+						+ (syncInterval == TFTPWriteBehind.SYNC_NONE ? "none"
+								: syncInterval == TFTPWriteBehind.SYNC_ON_CLOSE ? "on close"
+										: "every " + syncInterval / 1024 + "KB")
+						+ (sparse ? ", sparse" : "") + "\n"
+				+ "Pass-through: " + (passThrough ? "enabled" : "disabled") + "\n"
+				+ "Storage: " + storageBackend.backend() + (storageArchive == null ? "" : " " + storageArchive) + "\n";
+	}
+}
@@ -0,0 +1,47 @@
+package project;
+
+/**
+ * Enum for the engine that the server uses to run file transfers
+ * 
+ * @author yunkai wang
+ *
+ */
+public enum TFTPServerEngine {
+	BLOCKING("blocking"), // one request handler thread with its own blocking socket per transfer
+	VIRTUAL("virtual"), // one request handler per transfer, run on a virtual thread
+	NIO("nio"); // a few event loop threads drive all transfers with non-blocking channels
+	
+	private String engine; // string representation of the engine
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param engine
+	 */
+	private TFTPServerEngine(String engine) {
+		this.engine = engine;
+	}
+	
+	/**
+	 * Getter
+	 * 
+	 * @return engine
+	 */
+	public String engine() {
+		return engine;
+	}
+	
+	/**
+	 * Return the engine with the given name
+	 * 
+	 * @param name
+	 * @return TFTPServerEngine
+	 */
+	public static TFTPServerEngine getFromName(String name) {
+		for (TFTPServerEngine e : TFTPServerEngine.values()) {
+			if (e.engine.equalsIgnoreCase(name))
+				return e;
+		}
+		throw new IllegalArgumentException("Invalid server engine: " + name);
+	}
+}
@@ -0,0 +1,71 @@
+package project;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Statistics of the transfers handled by the server, updated by the request
+ * handlers and sessions of every engine and printed by the stats command
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPServerStats {
+	private AtomicLong numTransfers; // number of transfers that have finished
+	private AtomicLong numTimeouts; // number of times a retransmission timer has expired
+	private AtomicLong numMeasuredTransfers; // number of transfers with a measured round trip time
+	private AtomicLong smoothedRttSum; // sum of the smoothed round trip times in microseconds
+	private AtomicLong numGroupDataPackets; // number of data packets sent to multicast groups
+	private AtomicLong numMasterDataPackets; // number of data packets sent to master clients to fill their gaps
+
+	/**
+	 * Constructor
+	 */
+	TFTPServerStats() {
+		this.numTransfers = new AtomicLong();
+		this.numTimeouts = new AtomicLong();
+		this.numMeasuredTransfers = new AtomicLong();
+		this.smoothedRttSum = new AtomicLong();
+		this.numGroupDataPackets = new AtomicLong();
+		this.numMasterDataPackets = new AtomicLong();
+	}
+
+	/**
+	 * Record a finished transfer
+	 * 
+	 * @param timer - retransmission timer of the transfer
+	 */
+	public void recordTransfer(TFTPRetransmissionTimer timer) {
+		numTransfers.incrementAndGet();
+		numTimeouts.addAndGet(timer.getNumTimeouts());
+		if (timer.getSmoothedRtt() >= 0) {
+			numMeasuredTransfers.incrementAndGet();
+			smoothedRttSum.addAndGet((long) (timer.getSmoothedRtt() * 1000));
+		}
+	}
+
+	/**
+	 * Record a data packet sent by a multicast session
+	 * 
+	 * @param toGroup - true if the packet is sent to the group, false if it is sent to the master client
+	 */
+	public void recordMulticastDataPacket(boolean toGroup) {
+		if (toGroup)
+			numGroupDataPackets.incrementAndGet();
+		else
+			numMasterDataPackets.incrementAndGet();
+	}
+
+	/**
+	 * toString method, used for printing
+	 */
+	@Override
+	public String toString() {
+		long measured = numMeasuredTransfers.get();
+		return "Transfers finished: " + numTransfers.get() + "\n"
+				+ "Retransmission timeouts: " + numTimeouts.get() + "\n"
+				+ "Average SRTT: " + (measured == 0 ? "-" 
+						: String.format("%.3fms", smoothedRttSum.get() / 1000.0 / measured)) + "\n"
+				+ "Multicast data packets: " + numGroupDataPackets.get() + " to groups, "
+						+ numMasterDataPackets.get() + " to master clients\n";
+	}
+}
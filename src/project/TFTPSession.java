@@ -0,0 +1,602 @@
+package project;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Abstract parent class for all sessions run by the nio engine. A session
+ * does the same work as a TFTPRequestHandler, but instead of blocking on its
+ * own socket, it is a state machine that is driven by an event loop thread:
+ * the event loop calls it whenever a packet arrives on its channel or the
+ * packet it is waiting for has timed out.
+ * 
+ * @author yunkai wang
+ *
+ */
+public abstract class TFTPSession implements TFTPChannelSession {
+	protected TFTPServer server; // server that this session is working for
+	protected InetAddress address; // client address
+	protected int port; // client port
+	protected String filename; // filename of the request
+	protected TFTPTransferOptions transferOptions; // options negotiated for the transfer
+	protected TFTPRetransmissionTimer timer; // retransmission timer of the transfer
+	private InetSocketAddress clientSocketAddress; // client address and port
+	private DatagramPacket packet; // the packet that initialized this session
+	private DatagramChannel channel; // channel for sending and receiving
+	private SelectionKey key; // key of the channel in the event loop selector
+	private TFTPEventLoop eventLoop; // event loop that drives this session
+	private TFTPPacket lastPacket; // last packet sent
+	private int numRetry; // number of times we have retried for the current packet
+	private long deadline; // time(System.nanoTime) at which the current packet times out
+	private boolean closed; // true once the session has finished
+	private TFTPAckPacket receivedAck; // ack packet that every ack packet received is decoded into
+	private TFTPDataPacket receivedData; // data packet that every data packet received is decoded into
+
+	/**
+	 * Constructor
+	 * 
+	 * @param server
+	 * @param packet
+	 */
+	protected TFTPSession(TFTPServer server, DatagramPacket packet) {
+		this.server = server;
+		this.packet = packet;
+		this.address = packet.getAddress();
+		this.port = packet.getPort();
+		this.clientSocketAddress = new InetSocketAddress(address, port);
+		this.filename = "";
+		this.deadline = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Start handling the request, this is called on the event loop thread
+	 * 
+	 * @param requestPacket
+	 * @throws IOException
+	 * @throws TFTPErrorException
+	 */
+	protected abstract void start(TFTPRequestPacket requestPacket) throws IOException, TFTPErrorException;
+
+	/**
+	 * Handle a packet received from the client(error packets are already handled)
+	 * 
+	 * @param packet
+	 * @throws IOException
+	 * @throws TFTPErrorException
+	 */
+	protected abstract void handlePacket(TFTPPacket packet) throws IOException, TFTPErrorException;
+
+	/**
+	 * Called when the packet that the session is waiting for times out, the
+	 * session re-sends the packets that might be lost
+	 * 
+	 * @throws IOException
+	 * @throws TFTPErrorException
+	 */
+	protected abstract void handleTimeout() throws IOException, TFTPErrorException;
+
+	/**
+	 * Release the file used by this session
+	 * 
+	 * @param success - false if the transfer has failed
+	 * @throws IOException
+	 */
+	protected abstract void closeFile(boolean success) throws IOException;
+
+	/**
+	 * Open the channel of this session and start handling the request
+	 * 
+	 * @param eventLoop
+	 * @param selector
+	 */
+	@Override
+	public final void open(TFTPEventLoop eventLoop, Selector selector) {
+		this.eventLoop = eventLoop;
+		try {
+			channel = DatagramChannel.open();
+			channel.configureBlocking(false);
+			channel.bind(null);
+			key = channel.register(selector, SelectionKey.OP_READ, this);
+		} catch (IOException e) {
+			ThreadLog.print("Request session failed to create the channel, cannot handle the request");
+			closeChannel();
+			closed = true;
+			return;
+		}
+		server.incrementNumThread(); // increase the thread count in server
+
+		try {
+			TFTPPacket requestPacket = null;
+			try {
+				requestPacket = TFTPPacket.createFromPacket(packet);
+			} catch (IllegalArgumentException e) { // received packet is invalid
+				sendIllegalTFTPOperation(e.getMessage());
+			}
+			if (!(requestPacket instanceof TFTPRequestPacket))
+				throw new TFTPErrorException("Request session is handling unknown packet");
+			filename = ((TFTPRequestPacket) requestPacket).getFilename();
+			start((TFTPRequestPacket) requestPacket);
+		} catch (TFTPErrorException e) {
+			fail(e.getMessage());
+		} catch (IOException e) {
+			fail(null);
+		}
+	}
+
+	/**
+	 * Receive all packets that are waiting in the channel
+	 * 
+	 * @param buffer - buffer shared by all sessions of the event loop
+	 */
+	@Override
+	public final void handleReadable(ByteBuffer buffer) {
+		try {
+			while (!closed) {
+				buffer.clear();
+				SocketAddress source = channel.receive(buffer);
+				if (source == null) // no more packets
+					return;
+				receivePacket(buffer, (InetSocketAddress) source);
+			}
+		} catch (TFTPErrorException e) {
+			fail(e.getMessage());
+		} catch (IOException e) {
+			fail(null);
+		}
+	}
+
+	/**
+	 * Check if the packet we are waiting for has timed out
+	 * 
+	 * @param now - current System.nanoTime
+	 */
+	@Override
+	public final void checkTimeout(long now) {
+		if (closed || now < deadline)
+			return;
+		try {
+			if (timer == null ? numRetry >= TFTPPacket.MAX_RETRY : timer.isConnectionLost(numRetry))
+				throw new TFTPErrorException("Connection lost.");
+			if (timer != null)
+				timer.timedOut(); // wait longer for the packets that are re-sent
+			handleTimeout(); // last packet might be lost
+			++numRetry;
+			setDeadline();
+		} catch (TFTPErrorException e) {
+			fail(e.getMessage());
+		} catch (IOException e) {
+			fail(null);
+		}
+	}
+
+	/**
+	 * Wake up the session on its event loop, can be called from any thread
+	 */
+	final void wakeUp() {
+		eventLoop.wakeUp(this);
+	}
+
+	/**
+	 * Resume the session after it has been woken up
+	 */
+	@Override
+	public final void resume() {
+		if (closed)
+			return;
+		try {
+			handleWakeUp();
+		} catch (TFTPErrorException e) {
+			fail(e.getMessage());
+		} catch (IOException e) {
+			fail(null);
+		}
+	}
+
+	/**
+	 * Handle a wake up, the sessions that wait for other threads override it
+	 * 
+	 * @throws IOException
+	 * @throws TFTPErrorException
+	 */
+	protected void handleWakeUp() throws IOException, TFTPErrorException { }
+
+	/**
+	 * Handle one received packet
+	 * 
+	 * @param buffer
+	 * @param source
+	 * @throws IOException
+	 * @throws TFTPErrorException
+	 */
+	private void receivePacket(ByteBuffer buffer, InetSocketAddress source) throws IOException, TFTPErrorException {
+		if (port != source.getPort() || !address.equals(source.getAddress())) {
+			String errorMsg = "This tid is invalid, please use the correct tid!";
+			sendUnknownTid(errorMsg, source.getAddress(), source.getPort());
+			return;
+		}
+
+		TFTPPacket packet = null;
+		try {
+			buffer.flip();
+			packet = decode(buffer);
+		} catch (IllegalArgumentException e) {
+			sendIllegalTFTPOperation(e.getMessage());
+		}
+		if (packet instanceof TFTPErrorPacket)
+			throw new TFTPErrorException(((TFTPErrorPacket) packet).getErrorMsg());
+		handlePacket(packet);
+	}
+
+	/**
+	 * Decode the packet received from the client. Ack and data packets are
+	 * decoded into the packets that the session reuses, the file data of a
+	 * data packet is read from the buffer without copying. The other packets
+	 * are rare and are copied into a new packet.
+	 * 
+	 * @param buffer - received packet between the position and the limit
+	 * @return packet, valid until the next packet is received
+	 * @throws IllegalArgumentException if the packet is invalid
+	 */
+	private TFTPPacket decode(ByteBuffer buffer) {
+		int length = buffer.remaining();
+		if (length < 2)
+			throw new IllegalArgumentException("Invalid packet data");
+		int OPCODE = buffer.getShort(buffer.position()) & 0xFFFF;
+		if (Type.validOPCODE(Type.ACK, OPCODE) && length == TFTPPacket.MIN_LENGTH) {
+			int blockNumber = buffer.getShort(buffer.position() + 2) & 0xFFFF;
+			if (receivedAck == null)
+				receivedAck = new TFTPAckPacket(blockNumber, address, port);
+			else
+				receivedAck.setBlockNumber(blockNumber);
+			return receivedAck;
+		}
+		if (Type.validOPCODE(Type.DATA, OPCODE) && length >= TFTPDataPacket.HEADER_LENGTH) {
+			int blockNumber = buffer.getShort(buffer.position() + 2) & 0xFFFF;
+			buffer.position(buffer.position() + TFTPDataPacket.HEADER_LENGTH);
+			if (receivedData == null)
+				receivedData = new TFTPDataPacket(blockNumber, buffer, address, port);
+			else
+				receivedData.setBlock(blockNumber, buffer);
+			return receivedData;
+		}
+		byte[] packetData = new byte[length];
+		buffer.get(packetData);
+		return TFTPPacket.createFromPacketData(packetData, packetData.length, address, port);
+	}
+
+	/**
+	 * Wait for the next packet from the client, the retry count starts over
+	 */
+	protected void waitForPacket() {
+		numRetry = 0;
+		setDeadline();
+	}
+
+	/**
+	 * Wait until the session is woken up, the session does not time out while
+	 * it waits for another thread
+	 */
+	protected void waitForWakeUp() {
+		numRetry = 0;
+		deadline = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Set the time at which the packet we are waiting for times out
+	 */
+	private void setDeadline() {
+		int timeout = timer == null ? TFTPPacket.TIMEOUT : timer.getTimeout();
+		deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		eventLoop.scheduleTimeout(deadline);
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return deadline
+	 */
+	@Override
+	public long getDeadline() {
+		return closed ? Long.MAX_VALUE : deadline;
+	}
+
+	/**
+	 * Check if the session has finished
+	 * 
+	 * @return true if the session has finished, false otherwise
+	 */
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * The file transfer has finished successfully
+	 * 
+	 * @throws IOException
+	 */
+	protected void finish() throws IOException {
+		close(true);
+	}
+
+	/**
+	 * The file transfer has failed, print the reason and close the session
+	 * 
+	 * @param errorMsg - null if an IOException happened
+	 */
+	@Override
+	public final void fail(String errorMsg) {
+		if (errorMsg == null)
+			print("Request session failed to send the request. Please try again.\n");
+		else
+			print("Request session: Failed to transfer " + filename
+					+ " with client since the following error message:\n" + errorMsg);
+		try {
+			close(false);
+		} catch (IOException e) { }
+	}
+
+	/**
+	 * Close the session, release the file and the channel
+	 * 
+	 * @param success
+	 * @throws IOException
+	 */
+	private void close(boolean success) throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		if (timer != null) { // the request has been accepted
+			server.getStats().recordTransfer(timer);
+			if (server.isVerbose())
+				print("Request session: " + timer);
+		}
+		try {
+			closeFile(success);
+		} finally {
+			closeChannel();
+			server.decrementNumThread(); // decrease the thread count in server
+		}
+	}
+
+	/**
+	 * Close the channel and remove it from the event loop selector
+	 */
+	private void closeChannel() {
+		if (key != null)
+			key.cancel();
+		try {
+			if (channel != null)
+				channel.close();
+		} catch (IOException e) { }
+	}
+
+	/**
+	 * Send the packet to the client
+	 * 
+	 * @param packet
+	 * @throws IOException
+	 */
+	protected void sendPacket(TFTPPacket packet) throws IOException {
+		sendPacket(packet, false);
+	}
+
+	/**
+	 * Send the packet to the client
+	 * 
+	 * @param packet
+	 * @param recordForResend
+	 * @throws IOException
+	 */
+	protected void sendPacket(TFTPPacket packet, boolean recordForResend) throws IOException {
+		if (recordForResend)
+			lastPacket = packet;
+		send(packet, clientSocketAddress);
+	}
+
+	/**
+	 * Send the packet to the given address, if the send buffer of the channel is
+	 * full the packet is dropped, and it will be re-sent when it times out
+	 * 
+	 * @param packet
+	 * @param target
+	 * @throws IOException
+	 */
+	private void send(TFTPPacket packet, InetSocketAddress target) throws IOException {
+		channel.send(eventLoop.getSendBuffer().toByteBuffer(packet), target);
+	}
+
+	/**
+	 * re-send the last packet send
+	 * 
+	 * @throws IOException
+	 */
+	protected void resendPacket() throws IOException {
+		print("Last packet might be lost, sending last packet again...");
+		if (lastPacket == null)
+			return;
+		sendPacket(lastPacket, true);
+	}
+
+	/**
+	 * Send TFTPErrorPacket with file not found error to client
+	 * 
+	 * @param errorMsg
+	 * @throws IOException
+	 */
+	protected void sendFileNotFound(String errorMsg) throws IOException {
+		TFTPErrorPacket errorPacket = TFTPErrorPacket.createFileNotFoundErrorPacket(errorMsg, address, port);
+		printInformation("Request session has sent file not found error packet back to client.", errorPacket);
+		sendPacket(errorPacket);
+	}
+
+	/**
+	 * Send TFTPErrorPacket with access violation error to client
+	 * 
+	 * @param errorMsg
+	 * @throws IOException
+	 */
+	protected void sendAccessViolation(String errorMsg) throws IOException {
+		TFTPErrorPacket errorPacket = TFTPErrorPacket.createAccessViolationErrorPacket(errorMsg, address, port);
+		printInformation("Request session has sent access violation error packet back to client.", errorPacket);
+		sendPacket(errorPacket);
+	}
+
+	/**
+	 * Send TFTPErrorPacket with disk full error to client
+	 * 
+	 * @param errorMsg
+	 * @throws IOException
+	 */
+	protected void sendDiskFull(String errorMsg) throws IOException {
+		TFTPErrorPacket errorPacket = TFTPErrorPacket.createDiskfullErrorPacket(errorMsg, address, port);
+		printInformation("Request session has sent disk full error packet back to client.", errorPacket);
+		sendPacket(errorPacket);
+	}
+
+	/**
+	 * Send TFTPErrorPacket with file already exist error to client
+	 * 
+	 * @param errorMsg
+	 * @throws IOException
+	 */
+	protected void sendFileAlreadyExist(String errorMsg) throws IOException {
+		TFTPErrorPacket errorPacket = TFTPErrorPacket.createFileAlreadyExistErrorPacket(errorMsg, address, port);
+		printInformation("Request session has sent file already exist error packet back to client.", errorPacket);
+		sendPacket(errorPacket);
+	}
+
+	/**
+	 * Send TFTPErrorPacket with not defined error to client
+	 * 
+	 * @param errorMsg
+	 * @throws IOException
+	 */
+	protected void sendNotDefined(String errorMsg) throws IOException {
+		TFTPErrorPacket errorPacket = TFTPErrorPacket.createNotDefined(errorMsg, address, port);
+		printInformation("Request session has sent not defined error packet back to client.", errorPacket);
+		sendPacket(errorPacket);
+	}
+
+	/**
+	 * Send TFTPErrorPacket with illegal TFTP operation error to client
+	 * 
+	 * @param errorMsg
+	 * @throws IOException
+	 * @throws TFTPErrorException
+	 */
+	protected void sendIllegalTFTPOperation(String errorMsg) throws IOException, TFTPErrorException {
+		TFTPErrorPacket errorPacket = TFTPErrorPacket.createIllegalTFTPOperation(errorMsg, address, port);
+		printInformation("Request session has sent illegal TFTP operation packet back to client.", errorPacket);
+		sendPacket(errorPacket);
+		throw new TFTPErrorException(errorMsg);
+	}
+
+	/**
+	 * Send TFTPErrorPacket with option negotiation failed error to client
+	 * 
+	 * @param errorMsg
+	 * @throws IOException
+	 * @throws TFTPErrorException
+	 */
+	protected void sendOptionNegotiationFailed(String errorMsg) throws IOException, TFTPErrorException {
+		TFTPErrorPacket errorPacket = TFTPErrorPacket.createOptionNegotiationFailed(errorMsg, address, port);
+		printInformation("Request session has sent option negotiation failed packet back to client.", errorPacket);
+		sendPacket(errorPacket);
+		throw new TFTPErrorException(errorMsg);
+	}
+
+	/**
+	 * Negotiate the options requested by the client
+	 * 
+	 * @param requestPacket
+	 * @param info - attributes of the requested file, its size is reported for a RRQ
+	 * @return accepted options, empty if no option is accepted
+	 * @throws IOException
+	 * @throws TFTPErrorException
+	 */
+	protected Map<String, String> negotiateOptions(TFTPRequestPacket requestPacket, TFTPFileInfo info)
+			throws IOException, TFTPErrorException {
+		transferOptions = new TFTPTransferOptions(server.getConfig(), requestPacket.isReadRequest());
+		if (requestPacket.isReadRequest())
+			transferOptions.setTransferSize(info.length());
+		Map<String, String> acceptedOptions = null;
+		try {
+			acceptedOptions = TFTPOptionRegistry.negotiate(requestPacket.getOptions(), transferOptions);
+		} catch (IllegalArgumentException e) { // the requested options are refused
+			sendOptionNegotiationFailed(e.getMessage());
+		}
+		// only the sender of the data packets measures the round trip time,
+		// the receiver and a negotiated timeout use a fixed timeout
+		timer = new TFTPRetransmissionTimer(transferOptions.getTimeout());
+		if (!requestPacket.isReadRequest() || transferOptions.isTimeoutNegotiated())
+			timer.setFixedTimeout(transferOptions.getTimeout());
+		return acceptedOptions;
+	}
+
+	/**
+	 * Send the option ack packet for the accepted options
+	 * 
+	 * @param acceptedOptions
+	 * @param recordForResend
+	 * @throws IOException
+	 */
+	protected void sendOptionAck(Map<String, String> acceptedOptions, boolean recordForResend) throws IOException {
+		TFTPOackPacket OackPacket = new TFTPOackPacket(acceptedOptions, address, port);
+		sendPacket(OackPacket, recordForResend);
+		printInformation("Request session has sent the option ack packet.", OackPacket);
+	}
+
+	/**
+	 * Send unknown tid error packet
+	 * 
+	 * @param errorMsg
+	 * @param address
+	 * @param port
+	 * @throws IOException
+	 */
+	private void sendUnknownTid(String errorMsg, InetAddress address, int port) throws IOException {
+		print("Request session has sent unknown tid error packet to " + TFTPHost.addressToString(address, port) + ".");
+		send(TFTPErrorPacket.createUnknownTID(errorMsg, address, port), new InetSocketAddress(address, port));
+	}
+
+	/**
+	 * Print information stored in the packet, labeled with the client of this session
+	 * 
+	 * @param info
+	 * @param packet
+	 * @throws IOException
+	 */
+	protected void printInformation(String info, TFTPPacket packet) throws IOException {
+		server.printInformation(format(info), packet);
+	}
+
+	/**
+	 * Print the message, labeled with the client of this session
+	 * 
+	 * @param msg
+	 */
+	protected void print(String msg) {
+		System.out.println(format(msg));
+	}
+
+	/**
+	 * Label the message with the thread and the client of this session
+	 * 
+	 * @param msg
+	 * @return formatted message
+	 */
+	private String format(String msg) {
+		return ThreadLog.formatThreadPrint("[" + TFTPHost.addressToString(address, port) + "] " + msg);
+	}
+}
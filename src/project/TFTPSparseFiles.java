@@ -0,0 +1,86 @@
+package project;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Helpers for writing sparse files. Disk images(i.e. VM and firmware images)
+ * are often mostly zeros, a block of zeros is not written but skipped, which
+ * leaves a hole in the file that reads back as zeros without using the disk.
+ * The file must have been empty before it was written(or truncated), so that
+ * every skipped range is a hole, and its length must be set once it is
+ * complete, since a file that ends in zeros would be too short otherwise.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPSparseFiles {
+	public static final int HOLE_SIZE = 4096; // smallest range of zeros skipped by the server, a file system block
+	private static final byte[] ZEROS = new byte[HOLE_SIZE]; // compared against the file data, never modified
+
+	/**
+	 * Constructor, the class only has static methods
+	 */
+	private TFTPSparseFiles() { }
+
+	/**
+	 * Check if the bytes are all zero, the bytes are compared a chunk at a
+	 * time with Arrays.mismatch, which compares many bytes at once
+	 * 
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return true if all bytes are zero, false otherwise
+	 */
+	public static boolean isZero(byte[] data, int offset, int length) {
+		int end = offset + length;
+		for (int start = offset; start < end; start += ZEROS.length) {
+			int n = Math.min(ZEROS.length, end - start);
+			if (Arrays.mismatch(data, start, start + n, ZEROS, 0, n) != -1)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Check if the bytes between the position and the limit are all zero, a
+	 * direct buffer is checked a word at a time
+	 * 
+	 * @param data - not modified
+	 * @return true if all bytes are zero, false otherwise
+	 */
+	public static boolean isZero(ByteBuffer data) {
+		if (data.hasArray())
+			return isZero(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		int i = data.position();
+		for (; i + Long.BYTES <= data.limit(); i += Long.BYTES)
+			if (data.getLong(i) != 0)
+				return false;
+		for (; i < data.limit(); ++i)
+			if (data.get(i) != 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Write the bytes at the file pointer, bytes that are all zero are skipped
+	 * instead of written
+	 * 
+	 * @param fs
+	 * @param data
+	 * @param offset
+	 * @param length
+	 * @return true if the bytes have been skipped, false if they have been written
+	 * @throws IOException
+	 */
+	public static boolean write(RandomAccessFile fs, byte[] data, int offset, int length) throws IOException {
+		if (isZero(data, offset, length)) {
+			fs.seek(fs.getFilePointer() + length);
+			return true;
+		}
+		fs.write(data, offset, length);
+		return false;
+	}
+}
@@ -0,0 +1,65 @@
+package project;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Storage of the files served by the server. The server reads and lists the
+ * files of the served directory through its storage, and publishes the
+ * uploads into it, so the files may be served from the file system(the
+ * default), from memory, or out of a zip or jar archive(see
+ * TFTPStorageBackend). The files are named by the path they would have in
+ * the served directory.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public interface TFTPStorage {
+	/**
+	 * Get the attributes of the file
+	 * 
+	 * @param path - path returned by TFTPFileInventory.toPath
+	 * @return TFTPFileInfo, MISSING if the file does not exist
+	 */
+	TFTPFileInfo getFileInfo(Path path);
+
+	/**
+	 * Get the attributes of the file if they are known without the disk, used
+	 * by the request listener to answer requests for missing files
+	 * 
+	 * @param path - path returned by TFTPFileInventory.toPath
+	 * @return TFTPFileInfo, or null if the attributes are not known
+	 */
+	TFTPFileInfo lookup(Path path);
+
+	/**
+	 * Open a block reader for the file
+	 * 
+	 * @param path - path returned by TFTPFileInventory.toPath
+	 * @param options - negotiated options of the transfer, the blocks have its block size
+	 * @return TFTPBlockReader, must be closed when the transfer has finished
+	 * @throws IOException - if the file does not exist or cannot be read
+	 */
+	TFTPBlockReader openReader(Path path, TFTPTransferOptions options) throws IOException;
+
+	/**
+	 * Get the names of the files in the directory
+	 * 
+	 * @param directory - path returned by TFTPFileInventory.toPath
+	 * @return names, or null if the directory has to be listed from the disk
+	 */
+	List<String> list(Path directory);
+
+	/**
+	 * Publish a complete upload, the staged file becomes the file with the
+	 * given path. Called with the lock of the filename held(see
+	 * TFTPUploadStaging).
+	 * 
+	 * @param stagedFile - closed staged file of the upload
+	 * @param path - path returned by TFTPFileInventory.toPath
+	 * @throws java.nio.file.FileAlreadyExistsException - if the file exists
+	 * @throws IOException - if the file cannot be stored(i.e. the storage is read-only)
+	 */
+	void publish(Path stagedFile, Path path) throws IOException;
+}
@@ -0,0 +1,48 @@
+package project;
+
+/**
+ * Enum for the backend of the storage of the served directory
+ * 
+ * @author yunkai wang
+ * 
+ */
+public enum TFTPStorageBackend {
+	FILE_SYSTEM("fs"), // files of the served directory on the disk
+	HEAP("heap"), // files loaded into heap buffers
+	OFF_HEAP("offheap"), // files loaded into direct buffers, off the heap
+	ZIP("zip"); // read-only entries of a zip or jar archive
+	
+	private String backend; // string representation of the backend
+	
+	/**
+	 * Constructor
+	 * 
+	 * @param backend
+	 */
+	private TFTPStorageBackend(String backend) {
+		this.backend = backend;
+	}
+	
+	/**
+	 * Getter
+	 * 
+	 * @return backend
+	 */
+	public String backend() {
+		return backend;
+	}
+	
+	/**
+	 * Return the backend with the given name
+	 * 
+	 * @param name
+	 * @return TFTPStorageBackend
+	 */
+	public static TFTPStorageBackend getFromName(String name) {
+		for (TFTPStorageBackend b : TFTPStorageBackend.values()) {
+			if (b.backend.equalsIgnoreCase(name))
+				return b;
+		}
+		throw new IllegalArgumentException("Invalid storage backend: " + name);
+	}
+}
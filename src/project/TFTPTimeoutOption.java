@@ -0,0 +1,110 @@
+package project;
+
+/**
+ * Timeout options, the time to wait before a packet is re-sent. The timeout
+ * option(RFC 2349) is given in seconds, the utimeout option is the same with
+ * the value given in microseconds, so that a transfer on a fast network can
+ * use a timeout below one second. The server must acknowledge the exact
+ * value that was requested, so a value outside the limits of the server is
+ * ignored and the default timeout is used.
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPTimeoutOption extends TFTPOption {
+	public static final String TIMEOUT_NAME = "timeout"; // timeout in seconds(RFC 2349)
+	public static final String UTIMEOUT_NAME = "utimeout"; // timeout in microseconds
+	private long unit; // number of microseconds in one unit of the value
+	private long minValue; // smallest valid value
+	private long maxValue; // largest valid value
+
+	/**
+	 * Constructor
+	 * 
+	 * @param name
+	 * @param unit
+	 * @param minValue
+	 * @param maxValue
+	 */
+	private TFTPTimeoutOption(String name, long unit, long minValue, long maxValue) {
+		super(name);
+		this.unit = unit;
+		this.minValue = minValue;
+		this.maxValue = maxValue;
+	}
+
+	/**
+	 * Create the timeout option, 1 to 255 seconds
+	 * 
+	 * @return TFTPTimeoutOption
+	 */
+	static TFTPTimeoutOption createTimeoutOption() {
+		return new TFTPTimeoutOption(TIMEOUT_NAME, 1000000, 1, 255);
+	}
+
+	/**
+	 * Create the utimeout option, 10 milliseconds to 255 seconds
+	 * 
+	 * @return TFTPTimeoutOption
+	 */
+	static TFTPTimeoutOption createMicroTimeoutOption() {
+		return new TFTPTimeoutOption(UTIMEOUT_NAME, 1, 10000, 255000000);
+	}
+
+	/**
+	 * Check if the value is in the valid range
+	 * 
+	 * @param value
+	 * @return true if the value is valid, false otherwise
+	 */
+	private boolean validValue(long value) {
+		return value >= minValue && value <= maxValue;
+	}
+
+	/**
+	 * Convert the value into milliseconds, rounded up
+	 * 
+	 * @param value
+	 * @return timeout in milliseconds
+	 */
+	private int toMillis(long value) {
+		return (int) ((value * unit + 999) / 1000);
+	}
+
+	/**
+	 * The value must be in the valid range of the option
+	 */
+	@Override
+	public void checkRequestedValue(String value) {
+		if (!validValue(parseLong(value)))
+			throw new IllegalArgumentException(getName() + " must be between " + minValue + " and " + maxValue);
+	}
+
+	/**
+	 * Use the requested timeout if it is within the limits of the server,
+	 * otherwise ignore the option
+	 */
+	@Override
+	public String negotiate(String value, TFTPTransferOptions options) {
+		long requestedValue = parseLong(value);
+		if (!validValue(requestedValue))
+			return null;
+		int timeout = toMillis(requestedValue);
+		TFTPServerConfig config = options.getConfig();
+		if (timeout < config.getMinTimeout() || timeout > config.getMaxTimeout())
+			return null;
+		options.setTimeout(timeout);
+		return String.valueOf(requestedValue);
+	}
+
+	/**
+	 * The server must acknowledge the requested value
+	 */
+	@Override
+	public void accept(String requestedValue, String value, TFTPTransferOptions options) {
+		long timeout = parseLong(value);
+		if (timeout != parseLong(requestedValue))
+			throw new IllegalArgumentException("Server has acknowledged invalid " + getName() + " " + value);
+		options.setTimeout(toMillis(timeout));
+	}
+}
@@ -0,0 +1,241 @@
+package project;
+
+import java.net.InetAddress;
+
+/**
+ * Options of one file transfer. They start with the default TFTP values and
+ * are changed by the options negotiated for the transfer(RFC 2347).
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPTransferOptions {
+	private TFTPServerConfig config; // server settings, null on the client side
+	private boolean readRequest; // true for RRQ, false for WRQ
+	private int blockSize; // number of bytes of file data in each data packet
+	private int windowSize; // number of data packets sent before waiting for an ack packet
+	private long transferSize; // size of the file in bytes, -1 if it is unknown
+	private int timeout; // time in milliseconds before a packet is re-sent
+	private boolean timeoutNegotiated; // true if the timeout has been negotiated with an option
+	private int rollover; // block number that follows 65535(0 or 1)
+	private InetAddress multicastAddress; // group address of a multicast transfer, null for a unicast transfer
+	private int multicastPort; // group port of a multicast transfer
+	private boolean masterClient; // true if the client acknowledges the data packets sent to the group
+
+	/**
+	 * Constructor for the client side
+	 * 
+	 * @param readRequest
+	 */
+	TFTPTransferOptions(boolean readRequest) {
+		this(null, readRequest);
+	}
+
+	/**
+	 * Constructor for the server side, the server settings limit the values
+	 * that can be negotiated
+	 * 
+	 * @param config
+	 * @param readRequest
+	 */
+	TFTPTransferOptions(TFTPServerConfig config, boolean readRequest) {
+		this.config = config;
+		this.readRequest = readRequest;
+		this.blockSize = TFTPDataPacket.DEFAULT_BLOCK_SIZE;
+		this.windowSize = 1;
+		this.transferSize = -1;
+		this.timeout = TFTPPacket.TIMEOUT;
+		this.rollover = 0;
+		this.multicastAddress = null;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return config, null on the client side
+	 */
+	public TFTPServerConfig getConfig() {
+		return config;
+	}
+
+	/**
+	 * Check if the transfer is for a read request
+	 * 
+	 * @return true if the transfer is for a RRQ, false for a WRQ
+	 */
+	public boolean isReadRequest() {
+		return readRequest;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return blockSize
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	/**
+	 * Setter
+	 * 
+	 * @param blockSize
+	 */
+	public void setBlockSize(int blockSize) {
+		this.blockSize = blockSize;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return windowSize
+	 */
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * Setter
+	 * 
+	 * @param windowSize
+	 */
+	public void setWindowSize(int windowSize) {
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return transferSize
+	 */
+	public long getTransferSize() {
+		return transferSize;
+	}
+
+	/**
+	 * Setter
+	 * 
+	 * @param transferSize
+	 */
+	public void setTransferSize(long transferSize) {
+		this.transferSize = transferSize;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return timeout
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * Setter, used by the timeout options
+	 * 
+	 * @param timeout
+	 */
+	public void setTimeout(int timeout) {
+		this.timeout = timeout;
+		this.timeoutNegotiated = true;
+	}
+
+	/**
+	 * Check if the timeout has been negotiated, a negotiated timeout is used
+	 * as it is instead of the adaptive timeout
+	 * 
+	 * @return true if the timeout has been negotiated, false otherwise
+	 */
+	public boolean isTimeoutNegotiated() {
+		return timeoutNegotiated;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return rollover
+	 */
+	public int getRollover() {
+		return rollover;
+	}
+
+	/**
+	 * Setter
+	 * 
+	 * @param rollover
+	 */
+	public void setRollover(int rollover) {
+		this.rollover = rollover;
+	}
+
+	/**
+	 * Check if the transfer is a multicast transfer(RFC 2090)
+	 * 
+	 * @return true if the data packets are sent to a multicast group, false otherwise
+	 */
+	public boolean isMulticast() {
+		return multicastAddress != null;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return multicastAddress, null for a unicast transfer
+	 */
+	public InetAddress getMulticastAddress() {
+		return multicastAddress;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return multicastPort
+	 */
+	public int getMulticastPort() {
+		return multicastPort;
+	}
+
+	/**
+	 * Setter, the transfer becomes a multicast transfer
+	 * 
+	 * @param multicastAddress
+	 * @param multicastPort
+	 */
+	public void setMulticastGroup(InetAddress multicastAddress, int multicastPort) {
+		this.multicastAddress = multicastAddress;
+		this.multicastPort = multicastPort;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return masterClient
+	 */
+	public boolean isMasterClient() {
+		return masterClient;
+	}
+
+	/**
+	 * Setter
+	 * 
+	 * @param masterClient
+	 */
+	public void setMasterClient(boolean masterClient) {
+		this.masterClient = masterClient;
+	}
+
+	/**
+	 * toString method, used for printing
+	 */
+	@Override
+	public String toString() {
+		return "Transfer options: " + (readRequest ? "RRQ" : "WRQ") + "\n"
+				+ "Block size: " + blockSize + "\n"
+				+ "Window size: " + windowSize + "\n"
+				+ "Timeout: " + timeout + "ms\n"
+				+ "Rollover: " + rollover + "\n"
+				+ (isMulticast() ? "Multicast group: " + multicastAddress.getHostAddress() + ":" + multicastPort
+						+ (masterClient ? " (master client)" : "") + "\n" : "")
+				+ (transferSize >= 0 ? "Transfer size: " + transferSize + "\n" : "");
+	}
+}
@@ -0,0 +1,73 @@
+package project;
+
+/**
+ * Transfer size option(RFC 2349), the size of the file in bytes. In a WRQ
+ * the client sends the size of the file it is going to write, so that the
+ * server can refuse it upfront if it does not fit on the disk. In a RRQ the
+ * client sends 0 and the server answers with the size of the file, or
+ * leaves the option out when the size is not known yet(i.e. a file that is
+ * still being uploaded without the tsize option).
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPTransferSizeOption extends TFTPOption {
+	public static final String NAME = "tsize"; // option name
+
+	/**
+	 * Constructor
+	 */
+	TFTPTransferSizeOption() {
+		super(NAME);
+	}
+
+	/**
+	 * Parse the transfer size, it must not be negative
+	 * 
+	 * @param value
+	 * @return transfer size
+	 */
+	private long parseTransferSize(String value) {
+		long transferSize = parseLong(value);
+		if (transferSize < 0)
+			throw new IllegalArgumentException("Transfer size must not be negative");
+		return transferSize;
+	}
+
+	/**
+	 * The transfer size must not be negative, the client replaces it with the
+	 * real size for each request
+	 */
+	@Override
+	public void checkRequestedValue(String value) {
+		parseTransferSize(value);
+	}
+
+	/**
+	 * Answer a RRQ with the size of the file, a WRQ with the size requested by
+	 * the client. A RRQ is answered without the option if the size of the
+	 * file is unknown, a negative size is never acknowledged.
+	 */
+	@Override
+	public String negotiate(String value, TFTPTransferOptions options) {
+		long transferSize = parseTransferSize(value);
+		if (options.isReadRequest()) {
+			transferSize = options.getTransferSize(); // size of the requested file
+			if (transferSize < 0) // the file is still being uploaded without the tsize option
+				return null;
+		} else
+			options.setTransferSize(transferSize);
+		return String.valueOf(transferSize);
+	}
+
+	/**
+	 * Store the size acknowledged by the server
+	 */
+	@Override
+	public void accept(String requestedValue, String value, TFTPTransferOptions options) {
+		long transferSize = parseTransferSize(value);
+		if (!options.isReadRequest() && transferSize != parseTransferSize(requestedValue))
+			throw new IllegalArgumentException("Server has acknowledged invalid transfer size " + value);
+		options.setTransferSize(transferSize);
+	}
+}
@@ -0,0 +1,359 @@
+package project;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Staging area of the files uploaded by the clients. An upload is written to
+ * a file in the staging directory and only published into the storage of the
+ * served directory(renamed to its name on the file system) once it is
+ * complete, so a RRQ never reads a half written file, and a failed upload
+ * never leaves a partial file behind. The staging directory is in the served
+ * directory, so that the rename is atomic.
+ * 
+ * The filename of an upload is reserved when the upload begins, a second WRQ
+ * for the same filename is refused until the first upload has been published
+ * or aborted. The reservation and the publish lock the stripe of the
+ * filename in a table of locks, so uploads of other files do not wait for
+ * each other, and readers never take a lock. The files of aborted uploads
+ * are deleted by the thread of the staging area, and so are the files left
+ * behind by an earlier run of the server.
+ * 
+ * An upload keeps track of how much of the staged file has been written, so
+ * that in pass-through mode a RRQ for a file that is still being uploaded
+ * reads the staged file while it is written(see TFTPLiveBlockReader).
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPUploadStaging extends Thread {
+	public static final String DIRECTORY_NAME = ".tftp-staging"; // name of the staging directory
+	private static final int NUM_STRIPES = 64; // number of locks in the lock table
+	private Path directory; // staging directory
+	private TFTPStorage storage; // storage that the uploads are published into
+	private Object[] stripes; // lock table, a filename locks the stripe of its hash code
+	private ConcurrentHashMap<Path, Upload> uploads; // files that are being uploaded to their upload
+	private String runId; // prefix of the staged files of this run of the server
+	private AtomicLong nextId; // number of the next staged file
+	private LinkedBlockingQueue<Path> abandoned; // staged files of aborted uploads, deleted by the thread
+	private AtomicLong numPublished; // number of uploads published
+	private AtomicLong numAborted; // number of uploads aborted
+	private AtomicLong numRefused; // number of WRQs refused because the file was being uploaded
+
+	/**
+	 * Upload of one file
+	 */
+	static class Upload {
+		private Path target; // file that the upload is published as
+		private File stagedFile; // file in the staging directory that the upload is written to
+		private boolean published; // true once the upload has been published
+		private boolean aborted; // true once the upload has been aborted
+		private long expectedLength; // length sent by the client with the tsize option, -1 if unknown
+		// the following fields are guarded by the upload, they are read by the readers of the upload
+		private long committed; // number of bytes at the start of the staged file that have been written
+		private long length; // length of the complete file, -1 until the upload is complete
+		private boolean failed; // true once the upload has been aborted
+		private int numWaiting; // number of readers waiting for the upload
+		private List<Runnable> wakeUps; // readers that do not wait, each is called once the upload has progressed
+
+		/**
+		 * Constructor
+		 * 
+		 * @param target
+		 * @param stagedFile
+		 * @param expectedLength
+		 */
+		Upload(Path target, File stagedFile, long expectedLength) {
+			this.target = target;
+			this.stagedFile = stagedFile;
+			this.expectedLength = expectedLength;
+			this.length = -1;
+			this.wakeUps = new ArrayList<>();
+		}
+
+		/**
+		 * Getter
+		 * 
+		 * @return stagedFile, the file that the upload is written to
+		 */
+		File getStagedFile() {
+			return stagedFile;
+		}
+
+		/**
+		 * Getter
+		 * 
+		 * @return expectedLength, -1 if the client has not sent the length
+		 */
+		long getExpectedLength() {
+			return expectedLength;
+		}
+
+		/**
+		 * Check if a reader is waiting for the upload, the writer then writes
+		 * the data packets as they arrive instead of filling a whole batch
+		 * 
+		 * @return true if a reader is waiting, false otherwise
+		 */
+		synchronized boolean hasWaitingReaders() {
+			return numWaiting > 0 || !wakeUps.isEmpty();
+		}
+
+		/**
+		 * The staged file has been written up to the given position, called by
+		 * the write-behind stage
+		 * 
+		 * @param position
+		 */
+		synchronized void committed(long position) {
+			committed = Math.max(committed, position);
+			progressed();
+		}
+
+		/**
+		 * The whole file has been written
+		 * 
+		 * @param length - length of the file
+		 */
+		synchronized void completed(long length) {
+			this.length = length;
+			progressed();
+		}
+
+		/**
+		 * The upload has been aborted, the readers fail
+		 */
+		synchronized void failed() {
+			failed = true;
+			progressed();
+		}
+
+		/**
+		 * Wake up the readers of the upload
+		 */
+		private void progressed() {
+			notifyAll();
+			for (Runnable wakeUp : wakeUps)
+				wakeUp.run();
+			wakeUps.clear();
+		}
+
+		/**
+		 * Get the number of bytes that can be read from the staged file
+		 * 
+		 * @return number of bytes, the length of the file once it is complete
+		 * @throws FileNotFoundException - if the upload has been aborted
+		 */
+		private long getAvailable() throws FileNotFoundException {
+			if (failed)
+				throw new FileNotFoundException("Upload of " + target.getFileName() + " has been aborted");
+			return length >= 0 ? length : committed;
+		}
+
+		/**
+		 * Wait until the staged file has been written up to the given position,
+		 * or the upload is complete
+		 * 
+		 * @param position
+		 * @return number of bytes that can be read from the staged file
+		 * @throws FileNotFoundException - if the upload has been aborted
+		 * @throws InterruptedIOException
+		 */
+		synchronized long await(long position) throws IOException {
+			++numWaiting;
+			try {
+				while (!failed && length < 0 && committed < position)
+					wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the upload");
+			} finally {
+				--numWaiting;
+			}
+			return getAvailable();
+		}
+
+		/**
+		 * Check if the staged file has been written up to the given position
+		 * without waiting, the wake up is called once the upload has
+		 * progressed if it has not
+		 * 
+		 * @param position
+		 * @param wakeUp - called on the thread of the writer, must not block
+		 * @return true if the position can be read(or the upload has ended), false otherwise
+		 */
+		synchronized boolean isAvailable(long position, Runnable wakeUp) {
+			if (failed || length >= 0 || committed >= position)
+				return true;
+			if (!wakeUps.contains(wakeUp))
+				wakeUps.add(wakeUp);
+			return false;
+		}
+	}
+
+	/**
+	 * Constructor, creates the staging directory
+	 * 
+	 * @param folder - served directory
+	 * @param storage - storage that the uploads are published into
+	 * @throws IOException
+	 */
+	TFTPUploadStaging(String folder, TFTPStorage storage) throws IOException {
+		super("TFTPUploadStaging");
+		this.directory = TFTPFileInventory.toPath(folder).resolve(DIRECTORY_NAME);
+		this.storage = storage;
+		Files.createDirectories(directory);
+		this.stripes = new Object[NUM_STRIPES];
+		for (int i = 0; i < NUM_STRIPES; ++i)
+			stripes[i] = new Object();
+		this.uploads = new ConcurrentHashMap<>();
+		this.runId = Long.toString(System.currentTimeMillis(), 36);
+		this.nextId = new AtomicLong();
+		this.abandoned = new LinkedBlockingQueue<>();
+		this.numPublished = new AtomicLong();
+		this.numAborted = new AtomicLong();
+		this.numRefused = new AtomicLong();
+		setDaemon(true); // the server does not wait for the deletes when it stops
+	}
+
+	/**
+	 * Get the lock of the stripe of the file
+	 * 
+	 * @param path
+	 * @return lock
+	 */
+	private Object getStripe(Path path) {
+		return stripes[(path.hashCode() & Integer.MAX_VALUE) % NUM_STRIPES];
+	}
+
+	/**
+	 * Check if the file is in the staging directory, clients may not read or
+	 * write the staged files
+	 * 
+	 * @param path - path returned by TFTPFileInventory.toPath
+	 * @return true if the file is in the staging directory, false otherwise
+	 */
+	public boolean contains(Path path) {
+		return path.startsWith(directory);
+	}
+
+	/**
+	 * Get the upload of the file
+	 * 
+	 * @param path - path returned by TFTPFileInventory.toPath
+	 * @return upload, or null if the file is not being uploaded
+	 */
+	public Upload getUpload(Path path) {
+		return uploads.get(path);
+	}
+
+	/**
+	 * Reserve the filename and create the staged file of an upload
+	 * 
+	 * @param file - file that the upload is published as
+	 * @param expectedLength - length sent by the client with the tsize option, -1 if unknown
+	 * @return upload, or null if the file exists or is being uploaded
+	 * @throws IOException
+	 */
+	public Upload begin(File file, long expectedLength) throws IOException {
+		Path target = TFTPFileInventory.toPath(file.getPath());
+		Path stagedFile = directory.resolve(runId + "-" + nextId.incrementAndGet() + ".part");
+		Upload upload = new Upload(target, stagedFile.toFile(), expectedLength);
+		// the staged file is created before the upload is visible to the readers
+		Files.createFile(stagedFile);
+		synchronized (getStripe(target)) {
+			if (storage.getFileInfo(target).exists() || uploads.putIfAbsent(target, upload) != null) {
+				numRefused.incrementAndGet();
+				abandoned.add(stagedFile);
+				return null;
+			}
+		}
+		return upload;
+	}
+
+	/**
+	 * Publish a complete upload into the storage. The staged file must be
+	 * closed. An upload that cannot be published keeps its filename until it
+	 * is aborted.
+	 * 
+	 * @param upload
+	 * @throws java.nio.file.FileAlreadyExistsException - if the file has been created by someone else
+	 * @throws IOException
+	 */
+	public void publish(Upload upload) throws IOException {
+		synchronized (getStripe(upload.target)) {
+			if (upload.aborted) // the transfer has failed while the file was finished
+				throw new IOException("Upload of " + upload.target.getFileName() + " has been aborted");
+			storage.publish(upload.stagedFile.toPath(), upload.target);
+			upload.published = true;
+			uploads.remove(upload.target);
+		}
+		numPublished.incrementAndGet();
+	}
+
+	/**
+	 * Abort an upload, the filename is released at once and the staged file
+	 * is deleted in the background. Does nothing if the upload has been
+	 * published or aborted.
+	 * 
+	 * @param upload
+	 */
+	public void abort(Upload upload) {
+		synchronized (getStripe(upload.target)) {
+			if (upload.published || upload.aborted)
+				return;
+			upload.aborted = true;
+			uploads.remove(upload.target);
+		}
+		upload.failed();
+		abandoned.add(upload.stagedFile.toPath());
+		numAborted.incrementAndGet();
+	}
+
+	/**
+	 * Delete the staged files left behind by an earlier run of the server
+	 */
+	private void deleteLeftovers() {
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+			for (Path path : stream)
+				if (!path.getFileName().toString().startsWith(runId + "-"))
+					abandoned.add(path);
+		} catch (IOException e) { }
+	}
+
+	/**
+	 * Override run method, delete the staged files of aborted uploads
+	 */
+	@Override
+	public void run() {
+		deleteLeftovers();
+		try {
+			while (true) {
+				try {
+					Files.deleteIfExists(abandoned.take());
+				} catch (IOException e) { } // the file stays until the next run
+			}
+		} catch (InterruptedException e) { }
+	}
+
+	/**
+	 * toString method, used for printing
+	 */
+	@Override
+	public String toString() {
+		return "Upload staging: " + uploads.size() + " uploads in progress, " + abandoned.size()
+				+ " staged files waiting to be deleted\n"
+				+ "Uploads: " + numPublished + " published, " + numAborted + " aborted, " + numRefused
+				+ " refused(file exists or is being uploaded)\n";
+	}
+}
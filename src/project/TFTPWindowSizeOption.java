@@ -0,0 +1,70 @@
+package project;
+
+/**
+ * Window size option(RFC 7440), the number of data packets that the sender
+ * sends before it waits for an ack packet. The server may answer with a
+ * smaller window size than the one requested, limited by the maximum window
+ * size of the server. RFC 7440 allows windows up to 65535 blocks, but a
+ * window larger than half of the block numbers cannot be told apart from the
+ * blocks before it after rollover, so the window is limited to 32767 blocks.
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPWindowSizeOption extends TFTPOption {
+	public static final String NAME = "windowsize"; // option name
+	public static final int MIN_WINDOW_SIZE = 1; // min window size(RFC 7440)
+	public static final int MAX_WINDOW_SIZE = TFTPBlockNumber.MAX_WINDOW_SIZE; // max window size that survives rollover
+
+	/**
+	 * Constructor
+	 */
+	TFTPWindowSizeOption() {
+		super(NAME);
+	}
+
+	/**
+	 * Check if the window size is in the valid range
+	 * 
+	 * @param windowSize
+	 * @return true if the window size is valid, false otherwise
+	 */
+	private static boolean validWindowSize(int windowSize) {
+		return windowSize >= MIN_WINDOW_SIZE && windowSize <= MAX_WINDOW_SIZE;
+	}
+
+	/**
+	 * The window size must be between 1 and 32767
+	 */
+	@Override
+	public void checkRequestedValue(String value) {
+		if (!validWindowSize(parseInt(value)))
+			throw new IllegalArgumentException("Window size must be between " + MIN_WINDOW_SIZE
+					+ " and " + MAX_WINDOW_SIZE);
+	}
+
+	/**
+	 * Use the requested window size, but no more than the maximum window size of the server
+	 */
+	@Override
+	public String negotiate(String value, TFTPTransferOptions options) {
+		int windowSize = parseInt(value);
+		if (windowSize < MIN_WINDOW_SIZE)
+			throw new IllegalArgumentException("Window size " + windowSize + " is too small");
+		// a larger request is valid(RFC 7440) but is answered with the largest window of the server
+		windowSize = Math.min(windowSize, options.getConfig().getMaxWindowSize());
+		options.setWindowSize(windowSize);
+		return String.valueOf(windowSize);
+	}
+
+	/**
+	 * The server may only acknowledge a window size that is not larger than the requested one
+	 */
+	@Override
+	public void accept(String requestedValue, String value, TFTPTransferOptions options) {
+		int windowSize = parseInt(value);
+		if (!validWindowSize(windowSize) || windowSize > parseInt(requestedValue))
+			throw new IllegalArgumentException("Server has acknowledged invalid window size " + value);
+		options.setWindowSize(windowSize);
+	}
+}
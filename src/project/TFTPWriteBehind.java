@@ -0,0 +1,341 @@
+package project;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Write-behind stage of the server, the thread that writes the files
+ * uploaded by the clients. The transfers copy the data packets into batches
+ * of consecutive blocks(see TFTPFileWriter) and queue the full batches, so
+ * that the file is written with a few large writes and a slow disk does not
+ * delay every ack packet. Only when the queued batches use more than the
+ * budget does a transfer wait before it queues its batch, which holds its
+ * next ack packet until the disk has caught up. A transfer of the nio engine
+ * must not block its event loop, so it offers its batch instead, a batch
+ * that does not fit is held by the transfer, which is woken up once a batch
+ * has been written(see TFTPFileWriter).
+ * 
+ * The stage is serialized on purpose: the uploads are staged in the served
+ * directory, so their files share one disk, and writing the batches one
+ * after the other in large writes is faster than concurrent writes that
+ * make the disk seek between the files. A slow write delays the batches of
+ * the other uploads, which is bounded: a batch is never larger than the
+ * budget, and it is only queued behind batches that fit in the budget
+ * together with it, so it waits for at most one budget of writes(and the
+ * flushes of the sync policy among them). The longest write is shown in the
+ * statistics. The transfers waiting for a batch to be written are woken up
+ * after the lock of the stage has been released.
+ * 
+ * The files are flushed to the disk(fsync) according to the sync policy:
+ * never, when the file is complete, or every time the given number of bytes
+ * of the file has been written(and when the file is complete).
+ * 
+ * In sparse mode the blocks of the file system that only hold zeros are not
+ * written but skipped, which leaves holes in the file(see TFTPSparseFiles).
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPWriteBehind extends Thread {
+	public static final long SYNC_NONE = -1; // files are never flushed to the disk
+	public static final long SYNC_ON_CLOSE = 0; // files are flushed to the disk when they are complete
+	private int batchSize; // number of bytes in a full batch
+	private long budget; // largest number of bytes of queued batches
+	private long syncInterval; // SYNC_NONE, SYNC_ON_CLOSE or the number of bytes written between flushes
+	private boolean sparse; // true if blocks of zeros are skipped instead of written
+	private ArrayDeque<Batch> queue; // batches waiting to be written, in order
+	private List<Runnable> wakeUps; // transfers holding a batch that did not fit, woken up once a batch has been written
+	private long queuedBytes; // number of bytes of the queued batches
+	private long maxQueuedBytes; // largest number of bytes that were queued at once
+	private long numBatches; // number of batches written
+	private long numBytes; // number of bytes written
+	private long numSkipped; // number of bytes of zeros skipped in sparse mode
+	private long writeTime; // total time in nanoseconds spent writing the batches
+	private long maxWriteTime; // longest time in nanoseconds spent writing one batch
+	private long numSyncs; // number of times a file has been flushed to the disk
+	private long numDelayed; // number of batches that had to wait for the budget
+
+	/**
+	 * Consecutive blocks of a file that are written with one write, or the
+	 * end of a file, which finishes the file once its batches are written
+	 */
+	static class Batch {
+		private TFTPFileWriter writer; // writer of the file
+		private ByteBuffer buffer; // file data between the position and the limit, null at the end of the file
+		private long position; // position of the first byte in the file
+		private Runnable completion; // run once the file has been finished, null for a batch of file data
+
+		/**
+		 * Constructor
+		 * 
+		 * @param writer
+		 * @param buffer
+		 * @param position
+		 */
+		Batch(TFTPFileWriter writer, ByteBuffer buffer, long position) {
+			this.writer = writer;
+			this.buffer = buffer;
+			this.position = position;
+		}
+
+		/**
+		 * Constructor, the end of the file
+		 * 
+		 * @param writer
+		 * @param completion - run on the thread of the stage once the file has been finished
+		 */
+		Batch(TFTPFileWriter writer, Runnable completion) {
+			this.writer = writer;
+			this.completion = completion;
+		}
+
+		/**
+		 * Getter
+		 * 
+		 * @return number of bytes of file data, 0 at the end of the file
+		 */
+		int getLength() {
+			return buffer == null ? 0 : buffer.remaining();
+		}
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param batchSize - number of bytes in a full batch, at most the budget
+	 * @param budget - largest number of bytes of queued batches
+	 * @param syncInterval - SYNC_NONE, SYNC_ON_CLOSE or the number of bytes written between flushes
+	 * @param sparse - true if blocks of zeros are skipped instead of written
+	 */
+	TFTPWriteBehind(int batchSize, long budget, long syncInterval, boolean sparse) {
+		super("TFTPWriteBehind");
+		this.batchSize = (int) Math.min(batchSize, budget); // bounds how long one batch delays the others
+		this.budget = budget;
+		this.syncInterval = syncInterval;
+		this.sparse = sparse;
+		this.queue = new ArrayDeque<>();
+		this.wakeUps = new ArrayList<>();
+		setDaemon(true); // the transfers wait for their own batches before they finish
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return batchSize
+	 */
+	public int getBatchSize() {
+		return batchSize;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return syncInterval
+	 */
+	public long getSyncInterval() {
+		return syncInterval;
+	}
+
+	/**
+	 * Getter
+	 * 
+	 * @return sparse
+	 */
+	public boolean isSparse() {
+		return sparse;
+	}
+
+	/**
+	 * Start writing a file through the stage
+	 * 
+	 * @param fs - file that is written from the start
+	 * @param upload - upload that is told how much of the file has been written, null for none
+	 * @return TFTPFileWriter
+	 */
+	public TFTPFileWriter open(RandomAccessFile fs, TFTPUploadStaging.Upload upload) {
+		return new TFTPFileWriter(this, fs, upload, null);
+	}
+
+	/**
+	 * Start writing a file through the stage for a transfer that must not
+	 * block(i.e. a session of the nio engine)
+	 * 
+	 * @param fs - file that is written from the start
+	 * @param upload - upload that is told how much of the file has been written, null for none
+	 * @param wakeUp - wakes up the transfer once a batch that it holds may fit
+	 * @return TFTPFileWriter
+	 */
+	public TFTPFileWriter open(RandomAccessFile fs, TFTPUploadStaging.Upload upload, Runnable wakeUp) {
+		return new TFTPFileWriter(this, fs, upload, wakeUp);
+	}
+
+	/**
+	 * Check if a batch of the given length fits in the budget, a batch is
+	 * always queued when the queue is empty
+	 * 
+	 * @param length
+	 * @return true if the batch fits, false otherwise
+	 */
+	private boolean fits(int length) {
+		return queuedBytes == 0 || length == 0 || queuedBytes + length <= budget;
+	}
+
+	/**
+	 * Queue a batch to be written, waits while the queued batches use the
+	 * whole budget
+	 * 
+	 * @param batch
+	 * @throws IOException
+	 */
+	synchronized void submit(Batch batch) throws IOException {
+		boolean delayed = false;
+		try {
+			while (!fits(batch.getLength())) {
+				if (!delayed) {
+					++numDelayed;
+					delayed = true;
+				}
+				wait(); // wait until a batch has been written
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the disk");
+		}
+		add(batch);
+	}
+
+	/**
+	 * Queue a batch to be written if it fits in the budget, never waits
+	 * 
+	 * @param batch
+	 * @param wakeUp - called once a batch has been written if the batch does not fit
+	 * @return true if the batch has been queued, false if the transfer must hold it
+	 */
+	synchronized boolean offer(Batch batch, Runnable wakeUp) {
+		if (!fits(batch.getLength())) {
+			if (!wakeUps.contains(wakeUp)) {
+				++numDelayed;
+				wakeUps.add(wakeUp);
+			}
+			return false;
+		}
+		add(batch);
+		return true;
+	}
+
+	/**
+	 * Add the batch to the queue
+	 * 
+	 * @param batch
+	 */
+	private void add(Batch batch) {
+		queue.add(batch);
+		queuedBytes += batch.getLength();
+		maxQueuedBytes = Math.max(maxQueuedBytes, queuedBytes);
+		notifyAll();
+	}
+
+	/**
+	 * Take the next batch, waits until a batch is queued
+	 * 
+	 * @return batch
+	 * @throws InterruptedException
+	 */
+	private synchronized Batch take() throws InterruptedException {
+		while (queue.isEmpty())
+			wait();
+		return queue.peek(); // the batch stays queued until it has been written
+	}
+
+	/**
+	 * A batch has been written, it no longer counts in the budget
+	 * 
+	 * @param length - number of bytes in the batch
+	 * @param time - time in nanoseconds the write took
+	 * @param synced - true if the file has been flushed to the disk
+	 */
+	private void written(int length, long time, boolean synced) {
+		List<Runnable> woken;
+		synchronized (this) {
+			queue.remove();
+			queuedBytes -= length;
+			++numBatches;
+			numBytes += length;
+			writeTime += time;
+			maxWriteTime = Math.max(maxWriteTime, time);
+			if (synced)
+				++numSyncs;
+			notifyAll();
+			if (wakeUps.isEmpty())
+				return;
+			woken = wakeUps;
+			wakeUps = new ArrayList<>();
+		}
+		// the transfers that hold a batch offer it again, outside of the lock
+		// since offering takes the lock again
+		for (Runnable wakeUp : woken)
+			wakeUp.run();
+	}
+
+	/**
+	 * The end of a file has been reached, the file has been finished
+	 */
+	private synchronized void finished() {
+		queue.remove();
+	}
+
+	/**
+	 * A block of zeros has been skipped instead of written
+	 * 
+	 * @param length
+	 */
+	synchronized void skipped(int length) {
+		numSkipped += length;
+	}
+
+	/**
+	 * A file has been flushed to the disk when it was complete
+	 */
+	synchronized void synced() {
+		++numSyncs;
+	}
+
+	/**
+	 * Override run method, write the batches in the order they were queued
+	 */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				Batch batch = take();
+				if (batch.buffer == null) { // the batches of the file before it have been written
+					batch.writer.complete(batch.completion);
+					finished();
+					continue;
+				}
+				int length = batch.buffer.remaining();
+				long start = System.nanoTime();
+				boolean synced = batch.writer.write(batch.buffer, batch.position);
+				written(length, System.nanoTime() - start, synced);
+			}
+		} catch (InterruptedException e) { }
+	}
+
+	/**
+	 * toString method, used for printing
+	 */
+	@Override
+	public synchronized String toString() {
+		return "Write-behind queue: " + queue.size() + " batches, " + queuedBytes / 1024 + "KB (max "
+				+ maxQueuedBytes / 1024 + "KB), budget " + budget / 1024 + "KB, " + numDelayed + " acks held\n"
+				+ "Disk writes: " + numBatches + " batches, " + numBytes / 1024 + "KB, average latency "
+				+ (numBatches == 0 ? "-" : String.format("%.3fms", writeTime / 1000000.0 / numBatches))
+				+ String.format(" (max %.3fms)", maxWriteTime / 1000000.0)
+				+ ", " + numSyncs + " fsyncs" + (sparse ? ", " + numSkipped / 1024 + "KB of zeros skipped" : "") + "\n";
+	}
+}
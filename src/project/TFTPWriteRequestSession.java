@@ -0,0 +1,283 @@
+package project;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.util.Map;
+
+/**
+ * Session that handles a WRQ for the nio engine, it writes the data packets
+ * received from the client to the file(same as TFTPRequestHandler.readFileFromClient)
+ * 
+ * @author yunkai wang
+ *
+ */
+public class TFTPWriteRequestSession extends TFTPSession {
+	private File file; // file that is being uploaded
+	private TFTPUploadStaging.Upload upload; // the file is written to the staging area until it is complete
+	private RandomAccessFile fs; // the file that is being written
+	private TFTPFileWriter writer; // writes the file through the write-behind stage, null once the file is complete
+	private TFTPReceiveWindow window; // data packets received in the current window
+	private TFTPAckPacket ackPacket; // ack packet that every block received is acknowledged with, created with the first ack
+	private boolean held; // true while the writer holds a batch, the ack packet is held and the data packets are dropped
+	private Completion completion; // publishes the upload once the file is finished, null before the last data packet
+
+	/**
+	 * Wakes up the session on its event loop, called by the write-behind
+	 * stage once a batch has been written
+	 */
+	private class WakeUp implements Runnable {
+		/**
+		 * Override run method
+		 */
+		@Override
+		public void run() {
+			wakeUp();
+		}
+	}
+
+	/**
+	 * Closes the file and publishes the upload once the write-behind stage
+	 * has finished the file, then wakes up the session to send the last ack
+	 * packet. It is run on the thread of the stage, so the event loop never
+	 * waits for the disk.
+	 */
+	private class Completion implements Runnable {
+		private TFTPFileWriter writer; // writer of the file
+		private RandomAccessFile fs; // file that has been written
+		private TFTPUploadStaging.Upload upload; // upload that is published
+		private volatile boolean done; // true once the upload has been published or has failed
+		private volatile IOException error; // exception of the write or the publish, null if there is none
+
+		/**
+		 * Constructor
+		 * 
+		 * @param writer
+		 * @param fs
+		 * @param upload
+		 */
+		Completion(TFTPFileWriter writer, RandomAccessFile fs, TFTPUploadStaging.Upload upload) {
+			this.writer = writer;
+			this.fs = fs;
+			this.upload = upload;
+		}
+
+		/**
+		 * Override run method
+		 */
+		@Override
+		public void run() {
+			try {
+				writer.checkError();
+				fs.close();
+				server.getUploadStaging().publish(upload);
+				server.fileChanged(file);
+			} catch (IOException e) {
+				error = e;
+			}
+			done = true;
+			wakeUp();
+		}
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param server
+	 * @param packet
+	 */
+	TFTPWriteRequestSession(TFTPServer server, DatagramPacket packet) {
+		super(server, packet);
+	}
+
+	/**
+	 * Check the requested file and acknowledge the request
+	 */
+	@Override
+	protected void start(TFTPRequestPacket requestPacket) throws IOException, TFTPErrorException {
+		printInformation("Request session has received the WRQ.", requestPacket);
+		File file = new File(server.getFilePath(filename));
+		TFTPFileInfo info = server.getFileInfo(file);
+		if (info.exists()) { // check if file already exist
+			sendFileAlreadyExist(filename + " already exists in server folder!");
+			finish();
+			return;
+		}
+		if (!server.getFileInfo(file.getParentFile()).canWrite()) { // check if client has permission to write
+			sendAccessViolation(filename + " cannot be modified!");
+			finish();
+			return;
+		}
+
+		Map<String, String> acceptedOptions = negotiateOptions(requestPacket, info);
+		// the client has sent the size of the file with the tsize option,
+		// refuse the file at once if it cannot fit on the disk
+		long transferSize = transferOptions.getTransferSize();
+		if (transferSize > file.getParentFile().getUsableSpace()) {
+			sendDiskFull("Server don't has enough space to write " + filename);
+			finish();
+			return;
+		}
+		upload = server.getUploadStaging().begin(file, transferSize);
+		if (upload == null) { // another client is uploading the file
+			sendFileAlreadyExist(filename + " already exists in server folder!");
+			finish();
+			return;
+		}
+		this.file = file;
+		fs = new RandomAccessFile(upload.getStagedFile(), "rw");
+		if (transferSize > 0)
+			fs.setLength(transferSize); // reserve the space for the whole file
+		writer = server.getWriteBehind().open(fs, upload, new WakeUp());
+		window = new TFTPReceiveWindow(transferOptions);
+		if (!acceptedOptions.isEmpty()) {
+			// the option ack packet acknowledges the request instead of ack packet 0
+			sendOptionAck(acceptedOptions, false);
+		} else {
+			sendAckPacket(); // ack packet 0
+		}
+		waitForPacket();
+	}
+
+	/**
+	 * Acknowledge the last data packet received in order
+	 * 
+	 * @throws IOException
+	 */
+	private void sendAckPacket() throws IOException {
+		if (ackPacket == null)
+			ackPacket = new TFTPAckPacket(window.getLastBlock(), address, port);
+		else
+			ackPacket.setBlockNumber(window.getLastBlock());
+		sendPacket(ackPacket);
+		printInformation("Request session has sent the Ack packet.", ackPacket);
+		window.acknowledged();
+	}
+
+	/**
+	 * Handle a data packet, write it to the file if it is the next data packet
+	 */
+	@Override
+	protected void handlePacket(TFTPPacket packet) throws IOException, TFTPErrorException {
+		if (!(packet instanceof TFTPDataPacket))
+			throw new TFTPErrorException("Unknown packet received.");
+
+		TFTPDataPacket DATAPacket = (TFTPDataPacket) packet;
+		// data packet must not be larger than the negotiated block size
+		if (DATAPacket.getLength() > transferOptions.getBlockSize())
+			sendIllegalTFTPOperation("Data packet is larger than the block size " + transferOptions.getBlockSize());
+		int blockNumber = DATAPacket.getBlockNumber();
+		if (held || completion != null) { // the data packets are sent again once the ack packet is sent
+			print("Request session is waiting for the disk, will ignore data packet " + blockNumber + "...");
+			return;
+		}
+		if (window.isNext(blockNumber)) { // received correct data packet, continue transfer
+			printInformation("Request session has received the Data packet.", DATAPacket);
+
+			boolean lastDataPacket = DATAPacket.isLastDataPacket(transferOptions.getBlockSize());
+			try {
+				writer.write(DATAPacket.getFileDataBuffer()); // write to the file, the writer copies the file data
+				if (lastDataPacket) { // the last ack packet is only sent once the file has been published
+					completion = new Completion(writer, fs, upload);
+					writer.finish(completion);
+				}
+			} catch (IOException e) {
+				failWrite(e);
+			}
+
+			// acknowledge once per window, or at the last data packet
+			boolean acknowledge = window.receive(lastDataPacket);
+			if (lastDataPacket || writer.isHeld()) {
+				// the ack packet is held until the disk has caught up
+				held = !lastDataPacket;
+				waitForWakeUp();
+				return;
+			}
+			if (acknowledge)
+				sendAckPacket();
+			waitForPacket();
+		} else if (!window.isInWindow(blockNumber)) { // received future data packet after the window, this is invalid
+			String errorMsg = "Request session has received future data packet with block number: "
+					+ blockNumber;
+			sendIllegalTFTPOperation(errorMsg);
+		} else if (window.receiveOutOfOrder(blockNumber)) {
+			// received old data packet, or missed a data packet in the window,
+			// send the ack packet for the last block received in order and
+			// wait for the correct data packet
+			print("Request session has received data packet " + blockNumber + " out of order, sending the ack packet");
+			sendAckPacket();
+		} else
+			print("Request session has received data packet " + blockNumber + " out of order, will ignore it...");
+	}
+
+	/**
+	 * The write-behind stage has written a batch or finished the file, queue
+	 * the held batches and send the ack packet that has been held
+	 */
+	@Override
+	protected void handleWakeUp() throws IOException, TFTPErrorException {
+		if (completion != null) {
+			if (!writer.resume() || !completion.done)
+				return;
+			if (completion.error != null)
+				failWrite(completion.error);
+			writer = null;
+			sendAckPacket();
+			finish();
+			return;
+		}
+		if (!held || !writer.resume())
+			return;
+		held = false;
+		// the data packets dropped while the ack packet was held are sent again from here
+		sendAckPacket();
+		waitForPacket();
+	}
+
+	/**
+	 * Abort the upload after the file could not be written or published
+	 * 
+	 * @param e
+	 * @throws TFTPErrorException - always
+	 * @throws IOException
+	 */
+	private void failWrite(IOException e) throws IOException, TFTPErrorException {
+		String errorMsg;
+		if (e instanceof FileAlreadyExistsException) { // the file has been created while it was uploaded
+			errorMsg = filename + " already exists in server folder!";
+			sendFileAlreadyExist(errorMsg);
+		} else if (e instanceof AccessDeniedException) { // the storage refuses to write the file
+			errorMsg = filename + " cannot be modified!";
+			sendAccessViolation(errorMsg);
+		} else { // the data packets could not be written
+			errorMsg = "Server failed to write " + filename + ": " + e.getMessage();
+			sendNotDefined(errorMsg);
+		}
+		throw new TFTPErrorException(errorMsg); // abort the connection
+	}
+
+	/**
+	 * The client re-sends its window when our ack packet is lost, so there is
+	 * nothing to re-send
+	 */
+	@Override
+	protected void handleTimeout() {
+	}
+
+	/**
+	 * Close the file stream, the staged file of a failed upload is deleted in
+	 * the background
+	 */
+	@Override
+	protected void closeFile(boolean success) throws IOException {
+		if (writer != null) // the transfer has failed, the batches still queued fail once the file is closed
+			writer.abort();
+		if (fs != null)
+			fs.close();
+		if (upload != null)
+			server.getUploadStaging().abort(upload);
+	}
+}
@@ -0,0 +1,115 @@
+package project;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Block reader of an entry of a zip or jar archive, the entry is inflated
+ * as it is sent instead of being extracted. The entry can only be read in
+ * order, so the last window of inflated blocks is kept: a window that is
+ * sent again after a lost packet or a timeout is read from memory. The
+ * stream is only opened again when a block before the kept blocks is
+ * requested(i.e. a new master client of a multicast transfer), which is rare.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPZipBlockReader implements TFTPBlockReader {
+	private ZipFile archive; // archive of the entry, shared with the storage
+	private ZipEntry entry; // entry that is being sent
+	private InputStream in; // stream of the entry, null until the first block is read
+	private long position; // position in the entry of the next byte of the stream
+	private int blockSize; // number of bytes in each block
+	private int numKept; // number of blocks kept, the window size of the transfer
+	private byte[] kept; // the last blocks read, block b is kept in slot (b - 1) % numKept
+	private int[] lengths; // number of bytes of the block in each slot
+	private long lastRead; // last block read from the stream, 0 if none
+	private ByteBuffer buffer; // view of the kept blocks, returned for each block
+
+	/**
+	 * Constructor
+	 * 
+	 * @param archive
+	 * @param entry
+	 * @param blockSize
+	 * @param windowSize - number of blocks that may be sent again
+	 */
+	TFTPZipBlockReader(ZipFile archive, ZipEntry entry, int blockSize, int windowSize) {
+		this.archive = archive;
+		this.entry = entry;
+		this.blockSize = blockSize;
+		this.numKept = Math.max(1, windowSize);
+		this.kept = new byte[numKept * blockSize];
+		this.lengths = new int[numKept];
+		this.buffer = ByteBuffer.wrap(kept);
+	}
+
+	/**
+	 * Read the file data of the given block
+	 * 
+	 * @param block
+	 * @return buffer with the file data, valid until the next block is read
+	 * @throws IOException
+	 */
+	@Override
+	public ByteBuffer readBlock(long block) throws IOException {
+		if (in == null || block <= lastRead - numKept) { // the stream cannot go back, open it again
+			close();
+			in = archive.getInputStream(entry);
+			position = 0;
+			lastRead = 0;
+		}
+		if (block > lastRead) {
+			// the blocks before the last window are skipped, the others are kept
+			long first = Math.max(lastRead + 1, block - numKept + 1);
+			long start = (first - 1) * blockSize;
+			while (position < start) {
+				long n = in.skip(start - position);
+				if (n <= 0)
+					break; // the entry is shorter than the block
+				position += n;
+			}
+			for (long b = first; b <= block; b++)
+				readIntoSlot(b);
+			lastRead = block;
+		}
+		int slot = (int) ((block - 1) % numKept);
+		buffer.clear();
+		buffer.limit(slot * blockSize + lengths[slot]);
+		buffer.position(slot * blockSize);
+		return buffer;
+	}
+
+	/**
+	 * Inflate the next block of the stream into its slot
+	 * 
+	 * @param block
+	 * @throws IOException
+	 */
+	private void readIntoSlot(long block) throws IOException {
+		int slot = (int) ((block - 1) % numKept);
+		int offset = slot * blockSize;
+		int length = 0;
+		while (length < blockSize) {
+			int n = in.read(kept, offset + length, blockSize - length);
+			if (n < 0)
+				break;
+			length += n;
+		}
+		position += length;
+		lengths[slot] = length;
+	}
+
+	/**
+	 * Close the stream of the entry
+	 */
+	@Override
+	public void close() throws IOException {
+		if (in != null)
+			in.close();
+		in = null;
+	}
+}
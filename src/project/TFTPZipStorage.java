@@ -0,0 +1,125 @@
+package project;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.file.AccessDeniedException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Read-only storage that serves the entries of a zip or jar archive as the
+ * files of the served directory, an entry is inflated as it is sent instead
+ * of being extracted(see TFTPZipBlockReader). The entries are indexed when
+ * the server starts, WRQs are refused with an access violation.
+ * 
+ * @author yunkai wang
+ * 
+ */
+public class TFTPZipStorage implements TFTPStorage {
+	private Path root; // served directory, the entries are resolved against it
+	private File archiveFile; // the archive
+	private ZipFile archive; // open archive, shared by the readers
+	private Map<Path, ZipEntry> entries; // path of each file to its entry
+	private Set<Path> directories; // directories that hold an entry, and the served directory
+
+	/**
+	 * Constructor, indexes the entries of the archive
+	 * 
+	 * @param root - served directory
+	 * @param archive - zip or jar archive
+	 * @throws IOException - if the archive cannot be opened
+	 */
+	TFTPZipStorage(String root, String archive) throws IOException {
+		this.root = TFTPFileInventory.toPath(root);
+		this.archiveFile = new File(archive);
+		this.archive = new ZipFile(archiveFile);
+		this.entries = new HashMap<>();
+		this.directories = new HashSet<>();
+		this.directories.add(this.root);
+		Enumeration<? extends ZipEntry> it = this.archive.entries();
+		while (it.hasMoreElements()) {
+			ZipEntry entry = it.nextElement();
+			Path path = this.root.resolve(entry.getName()).normalize();
+			if (!path.startsWith(this.root) || path.equals(this.root)) // entry names like ../x are not served
+				continue;
+			if (!entry.isDirectory())
+				entries.put(path, entry);
+			for (Path dir = entry.isDirectory() ? path : path.getParent(); !dir.equals(this.root); dir = dir.getParent())
+				directories.add(dir);
+		}
+	}
+
+	/**
+	 * Get the attributes of the entry, the entries can be read but not written
+	 */
+	@Override
+	public TFTPFileInfo getFileInfo(Path path) {
+		ZipEntry entry = entries.get(path);
+		if (entry != null)
+			return new TFTPFileInfo(true, false, Math.max(entry.getSize(), 0), entry.getTime(), true, false);
+		if (directories.contains(path))
+			return new TFTPFileInfo(true, true, 0, archiveFile.lastModified(), true, false);
+		return TFTPFileInfo.MISSING;
+	}
+
+	/**
+	 * Get the attributes of the entry from the index
+	 */
+	@Override
+	public TFTPFileInfo lookup(Path path) {
+		return getFileInfo(path);
+	}
+
+	/**
+	 * Open a block reader that inflates the entry, the last window of blocks
+	 * is kept for sending it again
+	 */
+	@Override
+	public TFTPBlockReader openReader(Path path, TFTPTransferOptions options) throws IOException {
+		ZipEntry entry = entries.get(path);
+		if (entry == null)
+			throw new FileNotFoundException(path + " is not in " + archiveFile);
+		return new TFTPZipBlockReader(archive, entry, options.getBlockSize(), options.getWindowSize());
+	}
+
+	/**
+	 * Get the names of the entries and directories in the directory
+	 */
+	@Override
+	public List<String> list(Path directory) {
+		TreeSet<String> names = new TreeSet<>();
+		for (Path path : entries.keySet())
+			if (directory.equals(path.getParent()))
+				names.add(path.getFileName().toString());
+		for (Path path : directories)
+			if (directory.equals(path.getParent()))
+				names.add(path.getFileName().toString());
+		return new ArrayList<>(names);
+	}
+
+	/**
+	 * The archive is read-only
+	 */
+	@Override
+	public void publish(Path stagedFile, Path path) throws IOException {
+		throw new AccessDeniedException(path.toString(), null, archiveFile + " is read-only");
+	}
+
+	/**
+	 * toString method, used for printing
+	 */
+	@Override
+	public String toString() {
+		return "Storage: " + entries.size() + " entries of " + archiveFile + " (read-only)\n";
+	}
+}
@@ -1,6 +1,6 @@
 package project;
 
-import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * Enum class that represent different TFTP packet type
@@ -13,8 +13,10 @@ public enum Type {
 	WRQ(2, "WRQ"),
 	DATA(3, "DATA"),
 	ACK(4, "ACK"),
-	ERROR(5, "ERROR");
+	ERROR(5, "ERROR"),
+	OACK(6, "OACK");
 	
+	private static final Type[] TYPES = values(); // all types, in OPCODE order
 	private int OPCODE;
 	private String type;
 	
@@ -30,15 +32,13 @@ public enum Type {
 	}
 	
 	/**
-	 * Convert the OPCODE into byte array of length 2
+	 * Write the OPCODE into the buffer as 2 bytes
 	 * 
-	 * @return byteArray
+	 * @param buffer
 	 */
-	public byte[] OPCODE() {
-		ByteArrayOutputStream steam = new ByteArrayOutputStream();
-		steam.write(0);
-		steam.write(OPCODE);
-		return steam.toByteArray();
+	public void encodeTo(ByteBuffer buffer) {
+		buffer.put((byte) (OPCODE >> 8));
+		buffer.put((byte) OPCODE);
 	}
 	
 	/**
@@ -51,6 +51,18 @@ public enum Type {
 		return OPCODE == t.OPCODE;
 	}
 	
+	/**
+	 * Get the type with the given OPCODE
+	 * 
+	 * @param OPCODE
+	 * @return type, or null if the OPCODE is invalid
+	 */
+	public static Type getFromOPCODE(int OPCODE) {
+		if (OPCODE < 1 || OPCODE > TYPES.length)
+			return null;
+		return TYPES[OPCODE - 1];
+	}
+	
 	/**
 	 * Getter
 	 * 